@@ -29,6 +29,7 @@ import org.apache.commons.cli.ParseException;
 
 import com.qwazr.cluster.manager.ClusterManager;
 import com.qwazr.cluster.service.ClusterServiceImpl;
+import com.qwazr.cluster.service.ClusterSmileProvider;
 import com.qwazr.utils.server.AbstractServer;
 import com.qwazr.utils.server.RestApplication;
 import com.qwazr.utils.server.ServletApplication;
@@ -60,6 +61,8 @@ public class ClusterServer extends AbstractServer {
 		public Set<Class<?>> getClasses() {
 			Set<Class<?>> classes = super.getClasses();
 			classes.add(ClusterServiceImpl.class);
+			// The binary encoding requested by the cluster clients
+			classes.add(ClusterSmileProvider.class);
 			return classes;
 		}
 	}
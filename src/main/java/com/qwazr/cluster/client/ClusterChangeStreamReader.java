@@ -0,0 +1,211 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.client;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+
+import javax.ws.rs.WebApplicationException;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpHeaders;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.qwazr.cluster.service.ClusterChangeJson;
+import com.qwazr.cluster.service.ClusterChangeListener;
+import com.qwazr.cluster.service.ClusterChangesJson;
+import com.qwazr.cluster.service.ClusterServiceInterface;
+import com.qwazr.utils.http.HttpUtils;
+import com.qwazr.utils.threads.ThreadUtils;
+
+/**
+ * Read the change stream of a master in a background thread. The connection
+ * is reopened after any failure. After a reconnection, the missed changes are
+ * loaded from the journal of the master. If they are not available anymore,
+ * a reset change is sent to the listener.
+ */
+public class ClusterChangeStreamReader extends Thread implements Closeable {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(ClusterChangeStreamReader.class);
+
+	private final static int RETRY_DELAY_MS = 1000;
+
+	private final ClusterSingleClient client;
+
+	private final URI uri;
+
+	private final String service;
+
+	private final ClusterChangeListener listener;
+
+	private final CloseableHttpClient httpClient;
+
+	private volatile HttpGet httpGet;
+
+	private volatile boolean closed;
+
+	private String instance;
+
+	private long lastSeq;
+
+	ClusterChangeStreamReader(ClusterSingleClient client, URI uri,
+			String service, int msTimeOut, ClusterChangeListener listener) {
+		super("Cluster change stream " + uri);
+		setDaemon(true);
+		this.client = client;
+		this.uri = uri;
+		this.service = service;
+		this.listener = listener;
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(msTimeOut)
+				.setSocketTimeout(ClusterServiceInterface.STREAM_HEARTBEAT_MS * 3)
+				.build();
+		httpClient = HttpClients.custom()
+				.setDefaultRequestConfig(requestConfig).build();
+		httpGet = null;
+		closed = false;
+		instance = null;
+		lastSeq = 0;
+	}
+
+	/**
+	 * @param change
+	 *            the change to deliver
+	 * @return false if the listener stopped listening
+	 */
+	private boolean deliver(ClusterChangeJson change) {
+		// Already delivered
+		if (change.seq <= lastSeq)
+			return true;
+		lastSeq = change.seq;
+		return listener.onChange(change);
+	}
+
+	private boolean matches(ClusterChangeJson change) {
+		return service == null || change.concerns(service);
+	}
+
+	/**
+	 * Called on each (re)connection.
+	 * 
+	 * @param init
+	 *            the instance and the last sequence number of the master
+	 * @return false if the listener stopped listening
+	 */
+	private boolean init(ClusterChangesJson init) {
+		// Same master, we load the missed changes from the journal
+		if (instance != null && instance.equals(init.instance)) {
+			ClusterChangesJson missed = client.getChanges(lastSeq, instance);
+			if (!missed.full_snapshot && missed.changes != null) {
+				for (ClusterChangeJson change : missed.changes)
+					if (matches(change) && !deliver(change))
+						return false;
+				lastSeq = Math.max(lastSeq, missed.last);
+				return true;
+			}
+		}
+		instance = init.instance;
+		lastSeq = init.last;
+		return listener.onChange(new ClusterChangeJson(init.last,
+				ClusterChangeJson.Type.reset, null, null, null));
+	}
+
+	private boolean dispatch(String event, String data) throws IOException {
+		switch (event) {
+		case "init":
+			return init(ClusterSingleClient.mapper.readValue(data,
+					ClusterChangesJson.class));
+		case "change":
+			return deliver(ClusterSingleClient.mapper.readValue(data,
+					ClusterChangeJson.class));
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Read the stream until it is closed
+	 * 
+	 * @return false if the listener stopped listening
+	 * @throws IOException
+	 *             if any error occurs
+	 */
+	private boolean readStream() throws IOException {
+		httpGet = new HttpGet(uri);
+		httpGet.setHeader(HttpHeaders.ACCEPT,
+				ClusterServiceInterface.TEXT_EVENT_STREAM);
+		try (CloseableHttpResponse response = httpClient.execute(httpGet)) {
+			HttpUtils.checkStatusCodes(response, 200);
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					response.getEntity().getContent(), StandardCharsets.UTF_8));
+			String event = null;
+			StringBuilder data = new StringBuilder();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isEmpty()) {
+					if (event != null && !dispatch(event, data.toString()))
+						return false;
+					event = null;
+					data.setLength(0);
+				} else if (line.startsWith("event:"))
+					event = line.substring(6).trim();
+				else if (line.startsWith("data:"))
+					data.append(line.substring(5).trim());
+			}
+			return true;
+		}
+	}
+
+	@Override
+	public void run() {
+		while (!closed) {
+			try {
+				if (!readStream())
+					break;
+			} catch (IOException | WebApplicationException e) {
+				if (closed)
+					break;
+				logger.warn("Change stream failure on " + uri + ": "
+						+ e.getMessage());
+			}
+			if (!closed)
+				ThreadUtils.sleepMs(RETRY_DELAY_MS);
+		}
+		IOUtils.closeQuietly(httpClient);
+	}
+
+	/**
+	 * Stop listening
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		HttpGet get = httpGet;
+		if (get != null)
+			get.abort();
+	}
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.client;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.fluent.Executor;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * The HTTP connections shared by all the cluster clients. The connections to
+ * the masters are kept alive and reused, the idle ones are closed in the
+ * background. The pools are configured with the system properties:
+ * <ul>
+ * <li>com.qwazr.cluster.client.max_connections: the size of each pool
+ * (default 200)</li>
+ * <li>com.qwazr.cluster.client.max_connections_per_master: the connections
+ * kept to one master (default 50)</li>
+ * <li>com.qwazr.cluster.client.keep_alive_ms: the maximum time a connection
+ * is kept alive (default 30000)</li>
+ * <li>com.qwazr.cluster.client.idle_timeout_ms: an idle connection is closed
+ * after this time (default 10000)</li>
+ * <li>com.qwazr.cluster.client.compression: ask the masters for gzip
+ * compressed responses (default false)</li>
+ * </ul>
+ */
+public final class ClusterConnectionPool {
+
+	private final static String PREFIX = "com.qwazr.cluster.client.";
+
+	final static int MAX_CONNECTIONS = Integer.getInteger(PREFIX
+			+ "max_connections", 200);
+
+	final static int MAX_CONNECTIONS_PER_MASTER = Integer.getInteger(PREFIX
+			+ "max_connections_per_master", 50);
+
+	final static long KEEP_ALIVE_MS = Long
+			.getLong(PREFIX + "keep_alive_ms", 30000);
+
+	final static long IDLE_TIMEOUT_MS = Long.getLong(
+			PREFIX + "idle_timeout_ms", 10000);
+
+	final static boolean COMPRESSION = Boolean.getBoolean(PREFIX
+			+ "compression");
+
+	private static ThreadFactory threadFactory(final String name) {
+		return new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * The duration announced by the master (Keep-Alive header), bounded by
+	 * KEEP_ALIVE_MS
+	 */
+	private final static ConnectionKeepAliveStrategy keepAliveStrategy = new ConnectionKeepAliveStrategy() {
+
+		@Override
+		public long getKeepAliveDuration(HttpResponse response,
+				HttpContext context) {
+			long duration = DefaultConnectionKeepAliveStrategy.INSTANCE
+					.getKeepAliveDuration(response, context);
+			return duration > 0 ? Math.min(duration, KEEP_ALIVE_MS)
+					: KEEP_ALIVE_MS;
+		}
+	};
+
+	private final static PoolingHttpClientConnectionManager connectionManager;
+
+	private final static CloseableHttpClient httpClient;
+
+	/**
+	 * Executes the fluent requests of the blocking clients
+	 */
+	final static Executor executor;
+
+	private final static PoolingNHttpClientConnectionManager asyncConnectionManager;
+
+	/**
+	 * Executes the requests of the non blocking clients
+	 */
+	final static CloseableHttpAsyncClient asyncHttpClient;
+
+	static {
+		connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(MAX_CONNECTIONS);
+		connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_MASTER);
+		// A connection closed by the master while idle is detected before use
+		connectionManager.setValidateAfterInactivity(1000);
+		HttpClientBuilder builder = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setKeepAliveStrategy(keepAliveStrategy);
+		if (!COMPRESSION)
+			builder.disableContentCompression();
+		httpClient = builder.build();
+		executor = Executor.newInstance(httpClient);
+
+		try {
+			asyncConnectionManager = new PoolingNHttpClientConnectionManager(
+					new DefaultConnectingIOReactor(IOReactorConfig.DEFAULT,
+							threadFactory("Cluster async client")));
+		} catch (IOReactorException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+		asyncConnectionManager.setMaxTotal(MAX_CONNECTIONS);
+		asyncConnectionManager
+				.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_MASTER);
+		asyncHttpClient = HttpAsyncClients.custom()
+				.setConnectionManager(asyncConnectionManager)
+				.setKeepAliveStrategy(keepAliveStrategy).build();
+		asyncHttpClient.start();
+
+		ScheduledExecutorService evictor = Executors
+				.newSingleThreadScheduledExecutor(threadFactory("Cluster connection evictor"));
+		long period = Math.max(1000, IDLE_TIMEOUT_MS / 2);
+		evictor.scheduleWithFixedDelay(() -> {
+			connectionManager.closeExpiredConnections();
+			connectionManager.closeIdleConnections(IDLE_TIMEOUT_MS,
+					TimeUnit.MILLISECONDS);
+			asyncConnectionManager.closeExpiredConnections();
+			asyncConnectionManager.closeIdleConnections(IDLE_TIMEOUT_MS,
+					TimeUnit.MILLISECONDS);
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	private ClusterConnectionPool() {
+	}
+
+	/**
+	 * @return the statistics of the connections used by the blocking clients
+	 */
+	public static PoolStats getStats() {
+		return connectionManager.getTotalStats();
+	}
+
+	/**
+	 * @return the statistics of the connections used by the non blocking
+	 *         clients
+	 */
+	public static PoolStats getAsyncStats() {
+		return asyncConnectionManager.getTotalStats();
+	}
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.client;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of a request sent to all the masters
+ */
+public class ClusterFanOutResult<T> {
+
+	/**
+	 * The result given by one master
+	 */
+	public static class MasterResult<T> {
+
+		public final String master;
+		public final boolean success;
+		public final T result;
+
+		/**
+		 * The duration of the request in milliseconds
+		 */
+		public final long latency;
+
+		public final String error;
+
+		MasterResult(String master, boolean success, T result, long latency,
+				String error) {
+			this.master = master;
+			this.success = success;
+			this.result = result;
+			this.latency = latency;
+			this.error = error;
+		}
+	}
+
+	public final List<MasterResult<T>> masters;
+
+	ClusterFanOutResult(List<MasterResult<T>> masters) {
+		this.masters = Collections.unmodifiableList(masters);
+	}
+
+	/**
+	 * @return the number of masters which succeeded
+	 */
+	public int getSuccessCount() {
+		int count = 0;
+		for (MasterResult<T> master : masters)
+			if (master.success)
+				count++;
+		return count;
+	}
+
+	/**
+	 * @return the result of the first master which succeeded, or null
+	 */
+	public T getFirstResult() {
+		for (MasterResult<T> master : masters)
+			if (master.success)
+				return master.result;
+		return null;
+	}
+}
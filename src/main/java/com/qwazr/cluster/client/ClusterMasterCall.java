@@ -0,0 +1,128 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.client;
+
+import java.util.concurrent.Callable;
+import java.util.function.Function;
+
+import org.apache.http.client.fluent.Request;
+
+/**
+ * A request executed on one master, as part of a hedged read or of a
+ * fan-out. The HTTP request of the call is registered, so a late call can be
+ * aborted.
+ */
+class ClusterMasterCall<T> implements Callable<T> {
+
+	private final static ThreadLocal<ClusterMasterCall<?>> currentCall = new ThreadLocal<ClusterMasterCall<?>>();
+
+	private final ClusterSingleClient client;
+	private final Function<ClusterSingleClient, T> action;
+	private final boolean read;
+	private volatile Request request;
+	private volatile boolean finished;
+	private volatile boolean cancelled;
+	private volatile long latency;
+
+	/**
+	 * @param client
+	 *            the client of the master
+	 * @param action
+	 *            the request to execute
+	 * @param read
+	 *            true for a read. Only the latencies of the reads give the
+	 *            hedging delay.
+	 */
+	ClusterMasterCall(ClusterSingleClient client,
+			Function<ClusterSingleClient, T> action, boolean read) {
+		this.client = client;
+		this.action = action;
+		this.read = read;
+		this.request = null;
+		this.finished = false;
+		this.cancelled = false;
+		this.latency = -1;
+	}
+
+	ClusterSingleClient getClient() {
+		return client;
+	}
+
+	/**
+	 * @return the duration of the call in milliseconds, or -1 if it is not
+	 *         finished
+	 */
+	long getLatency() {
+		return latency;
+	}
+
+	@Override
+	public T call() {
+		currentCall.set(this);
+		long start = System.currentTimeMillis();
+		try {
+			T result = action.apply(client);
+			client.stats.success(System.currentTimeMillis() - start, read);
+			return result;
+		} catch (RuntimeException e) {
+			if (cancelled)
+				client.stats.cancelled(System.currentTimeMillis() - start,
+						read);
+			else if (ClusterMasterStats.isHealthFailure(e))
+				client.stats.failure(System.currentTimeMillis());
+			else if (ClusterMasterStats.isAnswer(e))
+				client.stats.answered();
+			else
+				client.stats.cancelled();
+			throw e;
+		} finally {
+			latency = System.currentTimeMillis() - start;
+			finished = true;
+			currentCall.remove();
+		}
+	}
+
+	private void abort() {
+		Request r = request;
+		if (r != null && !finished)
+			r.abort();
+	}
+
+	/**
+	 * Abort the HTTP request if it is still running
+	 */
+	void cancel() {
+		cancelled = true;
+		abort();
+	}
+
+	/**
+	 * Called by the client before executing a request. If the current thread
+	 * runs a master call, the request is attached to it.
+	 * 
+	 * @param request
+	 *            the request which is going to be executed
+	 */
+	static void register(Request request) {
+		ClusterMasterCall<?> call = currentCall.get();
+		if (call == null)
+			return;
+		call.request = request;
+		// The call may have been cancelled in the meantime
+		if (call.cancelled)
+			call.abort();
+	}
+}
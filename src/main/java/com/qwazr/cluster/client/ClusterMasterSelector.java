@@ -0,0 +1,113 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+
+/**
+ * Choose the order in which the masters are asked by a read. The reads are
+ * spread over the healthy masters, the fastest ones receive more reads. The
+ * masters with an open circuit are only used as a last resort, except the one
+ * which receives the probe.
+ */
+final class ClusterMasterSelector {
+
+	private ClusterMasterSelector() {
+	}
+
+	/**
+	 * @param masters
+	 *            the clients of the masters
+	 * @param statsOf
+	 *            gives the statistics of a master
+	 * @return the masters in the order they should be asked
+	 */
+	static <T> List<T> order(List<T> masters,
+			Function<T, ClusterMasterStats> statsOf) {
+		long time = System.currentTimeMillis();
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		List<T> healthy = new ArrayList<T>(masters.size());
+		List<T> open = new ArrayList<T>(0);
+		for (T master : masters)
+			if (statsOf.apply(master).getCircuit() == ClusterMasterStats.Circuit.closed)
+				healthy.add(master);
+			else
+				open.add(master);
+		List<T> ordered = new ArrayList<T>(masters.size());
+
+		// At most one probe per read, it is sent first so it is never skipped
+		if (!open.isEmpty()) {
+			Collections.shuffle(open, random);
+			for (int i = 0; i < open.size(); i++) {
+				if (statsOf.apply(open.get(i)).acquireProbe(time)) {
+					ordered.add(open.remove(i));
+					break;
+				}
+			}
+		}
+
+		int size = healthy.size();
+		if (size > 0) {
+			// The latencies may change meanwhile, we work on a copy
+			double[] latencies = new double[size];
+			double maxWeight = 0;
+			for (int i = 0; i < size; i++) {
+				latencies[i] = statsOf.apply(healthy.get(i))
+						.getLatencyAverage();
+				if (latencies[i] > 0)
+					maxWeight = Math.max(maxWeight, 1 / latencies[i]);
+			}
+			// A master without latency gets the best weight, so it is measured
+			if (maxWeight == 0)
+				maxWeight = 1;
+			double[] weights = new double[size];
+			double total = 0;
+			for (int i = 0; i < size; i++) {
+				weights[i] = latencies[i] > 0 ? 1 / latencies[i] : maxWeight;
+				total += weights[i];
+			}
+			// The first master is chosen with a probability proportional to
+			// the inverse of its latency
+			double target = random.nextDouble() * total;
+			int first = size - 1;
+			for (int i = 0; i < size - 1; i++) {
+				target -= weights[i];
+				if (target < 0) {
+					first = i;
+					break;
+				}
+			}
+			ordered.add(healthy.get(first));
+			// The failover goes to the fastest masters first
+			Integer[] rest = new Integer[size - 1];
+			for (int i = 0, j = 0; i < size; i++)
+				if (i != first)
+					rest[j++] = i;
+			Arrays.sort(rest,
+					(a, b) -> Double.compare(latencies[a], latencies[b]));
+			for (Integer i : rest)
+				ordered.add(healthy.get(i));
+		}
+
+		ordered.addAll(open);
+		return ordered;
+	}
+}
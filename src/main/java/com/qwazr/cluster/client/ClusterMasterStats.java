@@ -0,0 +1,307 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.client;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.http.client.ClientProtocolException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+/**
+ * What a client observed from one master. The hedging delay is the 95th
+ * percentile of the latest latencies. The health of the master is tracked by
+ * a circuit breaker: after repeated failures the master is not used until a
+ * single probe request succeeds.
+ */
+class ClusterMasterStats {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(ClusterMasterStats.class);
+
+	/**
+	 * The states of the circuit breaker
+	 */
+	enum Circuit {
+
+		/**
+		 * The master is healthy
+		 */
+		closed,
+
+		/**
+		 * The master failed, it is not used
+		 */
+		open,
+
+		/**
+		 * One probe request is being sent to the master
+		 */
+		half_open
+	}
+
+	/**
+	 * The number of latencies kept
+	 */
+	final static int SAMPLES = 128;
+
+	/**
+	 * The number of latencies required before the delay follows the master
+	 */
+	final static int MIN_SAMPLES = 16;
+
+	/**
+	 * The percentile is computed again after this number of samples
+	 */
+	final static int UPDATE_PERIOD = 16;
+
+	final static long DEFAULT_HEDGE_DELAY_MS = 1000;
+
+	final static long MIN_HEDGE_DELAY_MS = 5;
+
+	/**
+	 * The number of consecutive failures which opens the circuit
+	 */
+	final static int FAILURE_THRESHOLD = 3;
+
+	/**
+	 * The time before the first probe. It doubles after each failed probe.
+	 */
+	final static long MIN_OPEN_MS = 1000;
+
+	final static long MAX_OPEN_MS = 30000;
+
+	/**
+	 * The weight of the latest latency in the moving average
+	 */
+	private final static double LATENCY_ALPHA = 0.3;
+
+	private final String master;
+
+	private final long[] latencies;
+	private int count;
+	private int position;
+	private volatile long hedgeDelay;
+	private volatile double latencyAverage;
+
+	private int failures;
+	private volatile Circuit circuit;
+	private long openUntil;
+	private long openDuration;
+	private long probeTime;
+
+	ClusterMasterStats(String master) {
+		this.master = master;
+		latencies = new long[SAMPLES];
+		count = 0;
+		position = 0;
+		hedgeDelay = DEFAULT_HEDGE_DELAY_MS;
+		latencyAverage = 0;
+		failures = 0;
+		circuit = Circuit.closed;
+		openUntil = 0;
+		openDuration = MIN_OPEN_MS;
+		probeTime = 0;
+	}
+
+	/**
+	 * @param latency
+	 *            the latency of a successful request, in milliseconds
+	 * @param read
+	 *            true if the request is a read. The writes (register,
+	 *            unregister, bulk, heartbeat) are slower, their latency
+	 *            would skew the hedging delay of the reads.
+	 */
+	synchronized void success(long latency, boolean read) {
+		answered();
+		if (!read)
+			return;
+		// The resolution is the millisecond, 0 means unknown
+		double sample = Math.max(latency, 1);
+		double average = latencyAverage;
+		latencyAverage = average == 0 ? sample : average + LATENCY_ALPHA
+				* (sample - average);
+		addSample(latency);
+	}
+
+	/**
+	 * Add a latency to the window of the hedging delay
+	 * 
+	 * @param latency
+	 *            the latency in milliseconds
+	 */
+	private void addSample(long latency) {
+		latencies[position] = latency;
+		position = (position + 1) % SAMPLES;
+		if (count < SAMPLES)
+			count++;
+		if (count < MIN_SAMPLES || position % UPDATE_PERIOD != 0)
+			return;
+		long[] sorted = Arrays.copyOf(latencies, count);
+		Arrays.sort(sorted);
+		hedgeDelay = Math.max(MIN_HEDGE_DELAY_MS,
+				sorted[(int) Math.ceil(count * 0.95) - 1]);
+	}
+
+	/**
+	 * The master answered, even if the answer is an HTTP error or cannot be
+	 * read: it is reachable, the circuit is closed. No latency is recorded.
+	 */
+	synchronized void answered() {
+		if (circuit != Circuit.closed)
+			logger.info("Circuit closed for master " + master);
+		failures = 0;
+		circuit = Circuit.closed;
+		openDuration = MIN_OPEN_MS;
+	}
+
+	/**
+	 * @param error
+	 *            the error of a failed request
+	 * @return true if the master answered: an HTTP error status or an
+	 *         unexpected content
+	 */
+	static boolean isAnswer(Throwable error) {
+		for (Throwable e = error; e != null; e = e.getCause())
+			if (e instanceof ClientProtocolException
+					|| e instanceof JsonProcessingException)
+				return true;
+		return false;
+	}
+
+	/**
+	 * @param error
+	 *            the error of a failed request
+	 * @return true if the error means that the master is not healthy: it
+	 *         could not be reached or did not answer in time. An HTTP error
+	 *         status or an unexpected content is a valid answer.
+	 */
+	static boolean isHealthFailure(Throwable error) {
+		for (Throwable e = error; e != null; e = e.getCause())
+			if (e instanceof ClientProtocolException
+					|| e instanceof JsonProcessingException)
+				return false;
+			else if (e instanceof IOException)
+				return true;
+		return false;
+	}
+
+	/**
+	 * A request failed. The circuit opens after FAILURE_THRESHOLD
+	 * consecutive failures, or if the probe failed.
+	 * 
+	 * @param time
+	 *            the time of the failure
+	 */
+	synchronized void failure(long time) {
+		failures++;
+		if (circuit == Circuit.half_open)
+			openDuration = Math.min(openDuration * 2, MAX_OPEN_MS);
+		else if (circuit == Circuit.open || failures < FAILURE_THRESHOLD)
+			return;
+		circuit = Circuit.open;
+		openUntil = time + openDuration;
+		logger.warn("Circuit opened for master " + master + " during "
+				+ openDuration + " ms");
+	}
+
+	/**
+	 * A request was cancelled before its answer, or failed without telling
+	 * anything about the master. If it was the probe, another probe can be
+	 * sent at once.
+	 */
+	synchronized void cancelled() {
+		if (circuit != Circuit.half_open)
+			return;
+		circuit = Circuit.open;
+		openUntil = 0;
+	}
+
+	/**
+	 * A request was cancelled because another master answered first. Its
+	 * latency is at least the elapsed time. If it already exceeds the
+	 * hedging delay, it is kept as a sample: only keeping the reads which
+	 * won would lower the 95th percentile, and the client would hedge more
+	 * and more.
+	 * 
+	 * @param elapsed
+	 *            the time spent before the cancellation, in milliseconds
+	 * @param read
+	 *            true if the request is a read
+	 */
+	synchronized void cancelled(long elapsed, boolean read) {
+		cancelled();
+		if (read && elapsed >= hedgeDelay)
+			addSample(elapsed);
+	}
+
+	/**
+	 * @param time
+	 *            the current time
+	 * @return true if the circuit is open but a probe may be sent
+	 */
+	synchronized boolean isProbeDue(long time) {
+		switch (circuit) {
+		case open:
+			return time >= openUntil;
+		case half_open:
+			// The probe was lost, we allow another one
+			return time - probeTime >= MAX_OPEN_MS;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Try to become the caller which sends the probe
+	 * 
+	 * @param time
+	 *            the current time
+	 * @return true if the caller must send the probe
+	 */
+	synchronized boolean acquireProbe(long time) {
+		if (!isProbeDue(time))
+			return false;
+		circuit = Circuit.half_open;
+		probeTime = time;
+		return true;
+	}
+
+	/**
+	 * @return the state of the circuit breaker
+	 */
+	Circuit getCircuit() {
+		return circuit;
+	}
+
+	/**
+	 * @return the exponential moving average of the latency of the successful
+	 *         requests, in milliseconds, or 0 if no request succeeded
+	 */
+	double getLatencyAverage() {
+		return latencyAverage;
+	}
+
+	/**
+	 * @return the time to wait for this master before asking another one
+	 */
+	long getHedgeDelay() {
+		return hedgeDelay;
+	}
+}
@@ -0,0 +1,422 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.qwazr.cluster.service.ClusterBulkJson;
+import com.qwazr.cluster.service.ClusterBulkResultJson;
+import com.qwazr.cluster.service.ClusterNodeRegisterJson;
+import com.qwazr.cluster.service.ClusterNodeStatusJson;
+import com.qwazr.cluster.service.ClusterSelectionStrategy;
+import com.qwazr.cluster.service.ClusterServiceLatencyJson;
+import com.qwazr.cluster.service.ClusterServiceStatusJson;
+import com.qwazr.cluster.service.ClusterStatusJson;
+
+/**
+ * The non blocking client of several masters. The reads are hedged and the
+ * registrations are sent to all the masters, like {@link ClusterMultiClient},
+ * but the requests are composed on futures: no thread waits for a master.
+ */
+public class ClusterMultiAsyncClient implements ClusterServiceAsyncInterface {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(ClusterMultiAsyncClient.class);
+
+	/**
+	 * Only runs the hedging and deadline timers
+	 */
+	private final static ScheduledExecutorService scheduler = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable,
+							"Cluster async client timer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final ClusterSingleAsyncClient[] clients;
+
+	private final List<ClusterSingleAsyncClient> masters;
+
+	private final int msTimeOut;
+
+	/**
+	 * @param urls
+	 *            the addresses of the masters
+	 * @param msTimeOut
+	 *            the timeout of the requests
+	 */
+	public ClusterMultiAsyncClient(Collection<String> urls, int msTimeOut) {
+		this(newClients(urls, msTimeOut), msTimeOut);
+	}
+
+	/**
+	 * @param clients
+	 *            the clients of the masters
+	 * @param msTimeOut
+	 *            the timeout of the requests
+	 */
+	ClusterMultiAsyncClient(ClusterSingleAsyncClient[] clients, int msTimeOut) {
+		this.msTimeOut = msTimeOut;
+		this.clients = clients;
+		masters = Collections.unmodifiableList(Arrays.asList(clients));
+	}
+
+	private static ClusterSingleAsyncClient[] newClients(
+			Collection<String> urls, int msTimeOut) {
+		ClusterSingleAsyncClient[] clients = new ClusterSingleAsyncClient[urls
+				.size()];
+		int i = 0;
+		for (String url : urls)
+			clients[i++] = new ClusterSingleAsyncClient(url, msTimeOut);
+		return clients;
+	}
+
+	private static WebApplicationException toWebAppException(Throwable e) {
+		if (e instanceof CompletionException && e.getCause() != null)
+			e = e.getCause();
+		if (e instanceof WebApplicationException)
+			return (WebApplicationException) e;
+		return new WebApplicationException(e.getMessage(), e,
+				Status.INTERNAL_SERVER_ERROR);
+	}
+
+	/**
+	 * A read sent to the masters one after the other, in the order chosen by
+	 * {@link ClusterMasterSelector}. The next master is asked when the current
+	 * one does not answer within its hedging delay, or at once when it fails.
+	 * The first answer completes the read and cancels the other requests.
+	 */
+	private class HedgedRead<T> {
+
+		private final Function<ClusterSingleAsyncClient, CompletableFuture<T>> read;
+		private final CompletableFuture<T> result;
+		private final List<CompletableFuture<T>> requests;
+		private final List<ClusterSingleAsyncClient> order;
+		private int next;
+		private int running;
+		private ScheduledFuture<?> hedgeTimer;
+		private WebApplicationException lastError;
+
+		private HedgedRead(
+				Function<ClusterSingleAsyncClient, CompletableFuture<T>> read) {
+			this.read = read;
+			this.result = new CompletableFuture<T>();
+			this.requests = new ArrayList<CompletableFuture<T>>(clients.length);
+			this.order = ClusterMasterSelector.order(masters,
+					client -> client.stats);
+			this.next = 0;
+			this.running = 0;
+			this.hedgeTimer = null;
+			this.lastError = null;
+			result.whenComplete((value, error) -> cancelAll());
+		}
+
+		private synchronized void cancelAll() {
+			if (hedgeTimer != null)
+				hedgeTimer.cancel(false);
+			for (CompletableFuture<T> request : requests)
+				request.cancel(false);
+		}
+
+		/**
+		 * Send the read to the next master
+		 */
+		private synchronized void sendNext() {
+			if (result.isDone() || next == clients.length)
+				return;
+			if (hedgeTimer != null)
+				hedgeTimer.cancel(false);
+			ClusterSingleAsyncClient client = order.get(next);
+			final int sent = ++next;
+			running++;
+			CompletableFuture<T> request = read.apply(client);
+			requests.add(request);
+			request.whenComplete((value, error) -> completed(value, error));
+			// We may already be done if the request failed at once
+			if (result.isDone() || next != sent || next == clients.length)
+				return;
+			hedgeTimer = scheduler.schedule(() -> hedge(sent),
+					client.stats.getHedgeDelay(), TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * The master number "sent" was too slow, we ask the next one too
+		 */
+		private synchronized void hedge(int sent) {
+			if (next == sent)
+				sendNext();
+		}
+
+		private void completed(T value, Throwable error) {
+			if (error == null) {
+				// Completed outside of the lock, the dependent stages run now
+				result.complete(value);
+				return;
+			}
+			WebApplicationException failure = null;
+			synchronized (this) {
+				running--;
+				if (result.isDone())
+					return;
+				lastError = toWebAppException(error);
+				logger.warn(lastError.getMessage());
+				if (next < clients.length)
+					sendNext();
+				else if (running == 0)
+					failure = lastError;
+			}
+			if (failure != null)
+				result.completeExceptionally(failure);
+		}
+
+		private CompletableFuture<T> start() {
+			if (clients.length == 0)
+				result.completeExceptionally(new WebApplicationException(
+						"No master", Status.SERVICE_UNAVAILABLE));
+			else
+				sendNext();
+			return result;
+		}
+	}
+
+	private <T> CompletableFuture<T> hedgedRead(
+			Function<ClusterSingleAsyncClient, CompletableFuture<T>> read) {
+		return new HedgedRead<T>(read).start();
+	}
+
+	/**
+	 * Send the same request to all the masters at once. The returned future
+	 * is completed when every master answered or at the deadline. The
+	 * requests still running at the deadline are cancelled.
+	 * 
+	 * @param action
+	 *            the request to execute on each master
+	 * @param deadlineMs
+	 *            the maximum duration in milliseconds
+	 * @return the future result of each master
+	 */
+	private <T> CompletableFuture<ClusterFanOutResult<T>> fanOut(
+			Function<ClusterSingleAsyncClient, CompletableFuture<T>> action,
+			long deadlineMs) {
+		final long start = System.currentTimeMillis();
+		final List<CompletableFuture<T>> requests = new ArrayList<CompletableFuture<T>>(
+				clients.length);
+		final List<CompletableFuture<ClusterFanOutResult.MasterResult<T>>> results = new ArrayList<CompletableFuture<ClusterFanOutResult.MasterResult<T>>>(
+				clients.length);
+		for (ClusterSingleAsyncClient client : clients) {
+			String master = client.masterUrl;
+			CompletableFuture<ClusterFanOutResult.MasterResult<T>> masterResult = new CompletableFuture<ClusterFanOutResult.MasterResult<T>>();
+			CompletableFuture<T> request = action.apply(client);
+			request.whenComplete((value, error) -> {
+				long latency = System.currentTimeMillis() - start;
+				if (error == null) {
+					masterResult
+							.complete(new ClusterFanOutResult.MasterResult<T>(
+									master, true, value, latency, null));
+					return;
+				}
+				// Cancelled by the deadline timer, which gives the result
+				if (error instanceof CancellationException)
+					return;
+				String message = toWebAppException(error).getMessage();
+				if (masterResult
+						.complete(new ClusterFanOutResult.MasterResult<T>(
+								master, false, null, latency, message)))
+					logger.warn(master + ": " + message);
+			});
+			requests.add(request);
+			results.add(masterResult);
+		}
+		ScheduledFuture<?> deadlineTimer = scheduler.schedule(() -> {
+			// The requests are aborted before the caller gets the result
+			for (int i = 0; i < results.size(); i++) {
+				if (results.get(i).isDone())
+					continue;
+				requests.get(i).cancel(false);
+				results.get(i).complete(
+						new ClusterFanOutResult.MasterResult<T>(clients[i].masterUrl,
+								false, null, deadlineMs, "Deadline exceeded"));
+			}
+		}, deadlineMs, TimeUnit.MILLISECONDS);
+		return CompletableFuture.allOf(
+				results.toArray(new CompletableFuture<?>[results.size()]))
+				.thenApply(
+						v -> {
+							deadlineTimer.cancel(false);
+							List<ClusterFanOutResult.MasterResult<T>> list = new ArrayList<ClusterFanOutResult.MasterResult<T>>(
+									results.size());
+							for (CompletableFuture<ClusterFanOutResult.MasterResult<T>> result : results)
+								list.add(result.join());
+							return new ClusterFanOutResult<T>(list);
+						});
+	}
+
+	@Override
+	public CompletableFuture<ClusterStatusJson> list() {
+		return hedgedRead(client -> client.list());
+	}
+
+	@Override
+	public CompletableFuture<Map<String, Set<String>>> getNodes() {
+		return hedgedRead(client -> client.getNodes());
+	}
+
+	@Override
+	public CompletableFuture<ClusterNodeStatusJson> register(
+			ClusterNodeRegisterJson register) {
+		return registerAll(register, msTimeOut).thenApply(
+				result -> result.getFirstResult());
+	}
+
+	/**
+	 * Register the node to all the masters in parallel
+	 * 
+	 * @param register
+	 *            the node and its services
+	 * @param deadlineMs
+	 *            the maximum duration in milliseconds
+	 * @return the future result of each master
+	 */
+	public CompletableFuture<ClusterFanOutResult<ClusterNodeStatusJson>> registerAll(
+			ClusterNodeRegisterJson register, long deadlineMs) {
+		return fanOut(client -> client.register(register), deadlineMs);
+	}
+
+	@Override
+	public CompletableFuture<Response> unregister(String address) {
+		return unregisterAll(address, msTimeOut).thenApply(
+				result -> Response.ok().build());
+	}
+
+	/**
+	 * Unregister the node from all the masters in parallel
+	 * 
+	 * @param address
+	 *            the address of the node
+	 * @param deadlineMs
+	 *            the maximum duration in milliseconds
+	 * @return the future result of each master
+	 */
+	public CompletableFuture<ClusterFanOutResult<Response>> unregisterAll(
+			String address, long deadlineMs) {
+		return fanOut(client -> client.unregister(address), deadlineMs);
+	}
+
+	@Override
+	public CompletableFuture<Response> heartbeat(String address) {
+		return heartbeatAll(address, msTimeOut).thenApply(
+				result -> Response.ok().build());
+	}
+
+	/**
+	 * Renew the lease of the node on all the masters in parallel
+	 * 
+	 * @param address
+	 *            the address of the node
+	 * @param deadlineMs
+	 *            the maximum duration in milliseconds
+	 * @return the future result of each master, 404 if the master does not
+	 *         know the leased node
+	 */
+	public CompletableFuture<ClusterFanOutResult<Response>> heartbeatAll(
+			String address, long deadlineMs) {
+		return fanOut(client -> client.heartbeat(address), deadlineMs);
+	}
+
+	@Override
+	public CompletableFuture<ClusterBulkResultJson> bulk(ClusterBulkJson bulk) {
+		return bulkAll(bulk, msTimeOut).thenApply(
+				result -> result.getFirstResult());
+	}
+
+	/**
+	 * Send the registrations and removals to all the masters in parallel
+	 * 
+	 * @param bulk
+	 *            the nodes to register and to unregister
+	 * @param deadlineMs
+	 *            the maximum duration in milliseconds
+	 * @return the future result of each master
+	 */
+	public CompletableFuture<ClusterFanOutResult<ClusterBulkResultJson>> bulkAll(
+			ClusterBulkJson bulk, long deadlineMs) {
+		return fanOut(client -> client.bulk(bulk), deadlineMs);
+	}
+
+	@Override
+	public CompletableFuture<Map<String, ClusterServiceStatusJson>> getServicesStatus(
+			Set<String> service_names) {
+		return hedgedRead(client -> client.getServicesStatus(service_names));
+	}
+
+	@Override
+	public CompletableFuture<ClusterServiceStatusJson> getServiceStatus(
+			String service_name) {
+		return hedgedRead(client -> client.getServiceStatus(service_name));
+	}
+
+	@Override
+	public CompletableFuture<ClusterServiceLatencyJson> getServiceLatency(
+			String service_name) {
+		return hedgedRead(client -> client.getServiceLatency(service_name));
+	}
+
+	@Override
+	public CompletableFuture<List<String>> getActiveNodes(String service_name) {
+		return hedgedRead(client -> client.getActiveNodes(service_name));
+	}
+
+	@Override
+	public CompletableFuture<List<String>> getActiveNodesByHash(
+			String service_name, String key, Integer replicas) {
+		return hedgedRead(client -> client.getActiveNodesByHash(service_name,
+				key, replicas));
+	}
+
+	@Override
+	public CompletableFuture<String> getActiveNodeRandom(String service_name,
+			ClusterSelectionStrategy strategy) {
+		return hedgedRead(client -> client.getActiveNodeRandom(service_name,
+				strategy));
+	}
+}
@@ -16,10 +16,22 @@
 package com.qwazr.cluster.client;
 
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
 
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Response;
@@ -28,9 +40,15 @@ import javax.ws.rs.core.Response.Status;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.qwazr.cluster.service.ClusterBulkJson;
+import com.qwazr.cluster.service.ClusterBulkResultJson;
+import com.qwazr.cluster.service.ClusterChangesJson;
+import com.qwazr.cluster.service.ClusterDigestJson;
 import com.qwazr.cluster.service.ClusterNodeRegisterJson;
 import com.qwazr.cluster.service.ClusterNodeStatusJson;
 import com.qwazr.cluster.service.ClusterServiceInterface;
+import com.qwazr.cluster.service.ClusterSelectionStrategy;
+import com.qwazr.cluster.service.ClusterServiceLatencyJson;
 import com.qwazr.cluster.service.ClusterServiceStatusJson;
 import com.qwazr.cluster.service.ClusterStatusJson;
 import com.qwazr.utils.json.client.JsonMultiClientAbstract;
@@ -42,9 +60,55 @@ public class ClusterMultiClient extends
 	private static final Logger logger = LoggerFactory
 			.getLogger(ClusterMultiClient.class);
 
+	private final static ExecutorService executor = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "Cluster client");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/**
+	 * The local cache of the active nodes, null if the cache is disabled
+	 */
+	private final ClusterTopologyCache topologyCache;
+
+	private final int msTimeOut;
+
+	/**
+	 * The clients of the masters
+	 */
+	private final List<ClusterSingleClient> masters;
+
 	public ClusterMultiClient(Collection<String> urls, int msTimeOut)
 			throws URISyntaxException {
+		this(urls, msTimeOut, 0);
+	}
+
+	/**
+	 * @param urls
+	 *            the addresses of the masters
+	 * @param msTimeOut
+	 *            the timeout of the requests
+	 * @param cacheTtlMs
+	 *            the time to live of the cached active nodes. If positive, the
+	 *            active nodes are cached and the nodes are selected locally.
+	 * @throws URISyntaxException
+	 *             if an address is not valid
+	 */
+	public ClusterMultiClient(Collection<String> urls, int msTimeOut,
+			long cacheTtlMs) throws URISyntaxException {
 		super(new ClusterSingleClient[urls.size()], urls, msTimeOut);
+		this.msTimeOut = msTimeOut;
+		List<ClusterSingleClient> clients = new ArrayList<ClusterSingleClient>();
+		for (ClusterSingleClient client : this)
+			clients.add(client);
+		masters = Collections.unmodifiableList(clients);
+		topologyCache = cacheTtlMs > 0 ? new ClusterTopologyCache(this,
+				cacheTtlMs) : null;
 	}
 
 	@Override
@@ -53,104 +117,312 @@ public class ClusterMultiClient extends
 		return new ClusterSingleClient(url, msTimeOut);
 	}
 
-	@Override
-	public ClusterStatusJson list() {
+	/**
+	 * Execute a read on the first master, chosen by
+	 * {@link ClusterMasterSelector}. If it does not answer within its hedging
+	 * delay (the 95th percentile of its latencies), the read is also sent to
+	 * the next master, and so on. A failure moves to the next master at once.
+	 * The first answer wins, the other requests are aborted.
+	 * 
+	 * @param read
+	 *            the read to execute on a master
+	 * @return the first answer
+	 */
+	private <T> T hedgedRead(Function<ClusterSingleClient, T> read) {
 		WebAppExceptionHolder exceptionHolder = new WebAppExceptionHolder(
 				logger);
-		for (ClusterSingleClient client : this) {
-			try {
-				return client.list();
-			} catch (WebApplicationException e) {
-				exceptionHolder.switchAndWarn(e);
+		List<ClusterMasterCall<T>> calls = new ArrayList<ClusterMasterCall<T>>();
+		ExecutorCompletionService<T> completionService = new ExecutorCompletionService<T>(
+				executor);
+		Iterator<ClusterSingleClient> clients = ClusterMasterSelector.order(
+				masters, client -> client.stats).iterator();
+		int running = 0;
+		try {
+			ClusterMasterCall<T> last = submit(completionService, calls,
+					clients.next(), read);
+			running++;
+			while (running > 0) {
+				Future<T> future = clients.hasNext() ? completionService.poll(
+						last.getClient().stats.getHedgeDelay(),
+						TimeUnit.MILLISECONDS) : completionService.take();
+				if (future == null) {
+					// Too slow, we ask the next master too
+					last = submit(completionService, calls, clients.next(),
+							read);
+					running++;
+					continue;
+				}
+				running--;
+				try {
+					return future.get();
+				} catch (ExecutionException e) {
+					exceptionHolder.switchAndWarn(toWebAppException(e
+							.getCause()));
+					if (clients.hasNext()) {
+						last = submit(completionService, calls,
+								clients.next(), read);
+						running++;
+					}
+				}
 			}
+			throw exceptionHolder.getException();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new WebApplicationException(e, Status.SERVICE_UNAVAILABLE);
+		} finally {
+			for (ClusterMasterCall<T> call : calls)
+				call.cancel();
 		}
-		throw exceptionHolder.getException();
 	}
 
-	@Override
-	public Map<String, Set<String>> getNodes() {
-		WebAppExceptionHolder exceptionHolder = new WebAppExceptionHolder(
-				logger);
-		for (ClusterSingleClient client : this) {
+	private static <T> ClusterMasterCall<T> submit(
+			ExecutorCompletionService<T> completionService,
+			List<ClusterMasterCall<T>> calls, ClusterSingleClient client,
+			Function<ClusterSingleClient, T> read) {
+		ClusterMasterCall<T> call = new ClusterMasterCall<T>(client, read,
+				true);
+		calls.add(call);
+		completionService.submit(call);
+		return call;
+	}
+
+	/**
+	 * Send the same request to all the masters at once, and wait for the
+	 * answers until the deadline. The requests still running at the deadline
+	 * are aborted.
+	 * 
+	 * @param action
+	 *            the request to execute on each master
+	 * @param deadlineMs
+	 *            the maximum duration in milliseconds
+	 * @return the result of each master
+	 */
+	private <T> ClusterFanOutResult<T> fanOut(
+			Function<ClusterSingleClient, T> action, long deadlineMs) {
+		long deadline = System.currentTimeMillis() + deadlineMs;
+		List<ClusterMasterCall<T>> calls = new ArrayList<ClusterMasterCall<T>>();
+		List<Future<T>> futures = new ArrayList<Future<T>>();
+		for (ClusterSingleClient client : masters) {
+			ClusterMasterCall<T> call = new ClusterMasterCall<T>(client,
+					action, false);
+			calls.add(call);
+			futures.add(executor.submit(call));
+		}
+		List<ClusterFanOutResult.MasterResult<T>> results = new ArrayList<ClusterFanOutResult.MasterResult<T>>(
+				calls.size());
+		boolean interrupted = false;
+		for (int i = 0; i < calls.size(); i++) {
+			ClusterMasterCall<T> call = calls.get(i);
+			String master = call.getClient().masterUrl;
 			try {
-				return client.getNodes();
-			} catch (WebApplicationException e) {
-				exceptionHolder.switchAndWarn(e);
+				// After the deadline, we only take the finished requests
+				long remaining = interrupted ? 0 : Math.max(0, deadline
+						- System.currentTimeMillis());
+				T result = futures.get(i).get(remaining, TimeUnit.MILLISECONDS);
+				results.add(new ClusterFanOutResult.MasterResult<T>(master,
+						true, result, call.getLatency(), null));
+			} catch (TimeoutException e) {
+				call.cancel();
+				results.add(new ClusterFanOutResult.MasterResult<T>(master,
+						false, null, deadlineMs, "Deadline exceeded"));
+			} catch (ExecutionException e) {
+				String error = toWebAppException(e.getCause()).getMessage();
+				logger.warn(master + ": " + error);
+				results.add(new ClusterFanOutResult.MasterResult<T>(master,
+						false, null, call.getLatency(), error));
+			} catch (InterruptedException e) {
+				interrupted = true;
+				call.cancel();
+				results.add(new ClusterFanOutResult.MasterResult<T>(master,
+						false, null, deadlineMs, "Interrupted"));
 			}
 		}
-		throw exceptionHolder.getException();
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		return new ClusterFanOutResult<T>(results);
+	}
+
+	private static WebApplicationException toWebAppException(Throwable e) {
+		if (e instanceof WebApplicationException)
+			return (WebApplicationException) e;
+		return new WebApplicationException(e.getMessage(), e,
+				Status.INTERNAL_SERVER_ERROR);
+	}
+
+	@Override
+	public ClusterStatusJson list() {
+		return hedgedRead(client -> client.list());
+	}
+
+	@Override
+	public Map<String, Set<String>> getNodes() {
+		return hedgedRead(client -> client.getNodes());
+	}
+
+	@Override
+	public ClusterChangesJson getChanges(Long since, String instance) {
+		return hedgedRead(client -> client.getChanges(since, instance));
+	}
+
+	@Override
+	public ClusterDigestJson getDigest() {
+		return hedgedRead(client -> client.getDigest());
+	}
+
+	@Override
+	public Map<String, Set<String>> getDigestNodes(Set<Integer> buckets) {
+		return hedgedRead(client -> client.getDigestNodes(buckets));
 	}
 
 	@Override
 	public ClusterNodeStatusJson register(ClusterNodeRegisterJson register) {
-		ClusterNodeStatusJson result = null;
-		for (ClusterSingleClient client : this) {
-			try {
-				result = client.register(register);
-			} catch (WebApplicationException e) {
-				logger.warn(e.getMessage(), e);
-			}
-		}
-		return result;
+		return registerAll(register, msTimeOut).getFirstResult();
+	}
+
+	/**
+	 * Register the node to all the masters in parallel
+	 * 
+	 * @param register
+	 *            the node and its services
+	 * @param deadlineMs
+	 *            the maximum duration in milliseconds
+	 * @return the result of each master
+	 */
+	public ClusterFanOutResult<ClusterNodeStatusJson> registerAll(
+			ClusterNodeRegisterJson register, long deadlineMs) {
+		return fanOut(client -> client.register(register), deadlineMs);
 	}
 
 	@Override
 	public Response unregister(String address) {
-		for (ClusterSingleClient client : this) {
-			try {
-				client.unregister(address);
-			} catch (WebApplicationException e) {
-				logger.warn(e.getMessage(), e);
-			}
-		}
+		unregisterAll(address, msTimeOut);
 		return Response.ok().build();
 	}
 
+	/**
+	 * Unregister the node from all the masters in parallel
+	 * 
+	 * @param address
+	 *            the address of the node
+	 * @param deadlineMs
+	 *            the maximum duration in milliseconds
+	 * @return the result of each master
+	 */
+	public ClusterFanOutResult<Response> unregisterAll(String address,
+			long deadlineMs) {
+		return fanOut(client -> client.unregister(address), deadlineMs);
+	}
+
+	@Override
+	public Response heartbeat(String address) {
+		heartbeatAll(address, msTimeOut);
+		return Response.ok().build();
+	}
+
+	/**
+	 * Renew the lease of the node on all the masters in parallel
+	 * 
+	 * @param address
+	 *            the address of the node
+	 * @param deadlineMs
+	 *            the maximum duration in milliseconds
+	 * @return the result of each master, 404 if the master does not know the
+	 *         leased node
+	 */
+	public ClusterFanOutResult<Response> heartbeatAll(String address,
+			long deadlineMs) {
+		return fanOut(client -> client.heartbeat(address), deadlineMs);
+	}
+
+	@Override
+	public ClusterBulkResultJson bulk(ClusterBulkJson bulk) {
+		return bulkAll(bulk, msTimeOut).getFirstResult();
+	}
+
+	/**
+	 * Send the registrations and removals to all the masters in parallel
+	 * 
+	 * @param bulk
+	 *            the nodes to register and to unregister
+	 * @param deadlineMs
+	 *            the maximum duration in milliseconds
+	 * @return the result of each master
+	 */
+	public ClusterFanOutResult<ClusterBulkResultJson> bulkAll(
+			ClusterBulkJson bulk, long deadlineMs) {
+		return fanOut(client -> client.bulk(bulk), deadlineMs);
+	}
+
+	@Override
+	public Response getReady() {
+		// The readiness is given by each master
+		return Response.status(Status.NOT_IMPLEMENTED).build();
+	}
+
 	@Override
 	public Response check(String checkValue) {
 		return Response.status(Status.NOT_IMPLEMENTED).build();
 	}
 
+	@Override
+	public Response getStream(String service_name) {
+		return Response.status(Status.NOT_IMPLEMENTED).build();
+	}
+
+	@Override
+	public Map<String, ClusterServiceStatusJson> getServicesStatus(
+			Set<String> service_names) {
+		return hedgedRead(client -> client.getServicesStatus(service_names));
+	}
+
 	@Override
 	public ClusterServiceStatusJson getServiceStatus(String service_name) {
-		WebAppExceptionHolder exceptionHolder = new WebAppExceptionHolder(
-				logger);
-		for (ClusterSingleClient client : this) {
-			try {
-				return client.getServiceStatus(service_name);
-			} catch (WebApplicationException e) {
-				exceptionHolder.switchAndWarn(e);
-			}
-		}
-		throw exceptionHolder.getException();
+		return hedgedRead(client -> client.getServiceStatus(service_name));
+	}
+
+	@Override
+	public ClusterServiceLatencyJson getServiceLatency(String service_name) {
+		return hedgedRead(client -> client.getServiceLatency(service_name));
 	}
 
 	@Override
 	public List<String> getActiveNodes(String service_name) {
-		WebAppExceptionHolder exceptionHolder = new WebAppExceptionHolder(
-				logger);
-		for (ClusterSingleClient client : this) {
-			try {
-				return client.getActiveNodes(service_name);
-			} catch (WebApplicationException e) {
-				exceptionHolder.switchAndWarn(e);
-			}
-		}
-		throw exceptionHolder.getException();
+		if (topologyCache != null)
+			return topologyCache.getActiveNodes(service_name);
+		return fetchActiveNodes(service_name);
+	}
+
+	/**
+	 * @param service_name
+	 *            the name of the service
+	 * @return the active nodes given by the first available master. The list
+	 *         cannot be modified.
+	 */
+	List<String> fetchActiveNodes(String service_name) {
+		List<String> nodes = hedgedRead(client -> client
+				.getActiveNodes(service_name));
+		return nodes == null ? Collections.<String> emptyList() : Collections
+				.unmodifiableList(nodes);
 	}
 
 	@Override
-	public String getActiveNodeRandom(String service_name) {
-		WebAppExceptionHolder exceptionHolder = new WebAppExceptionHolder(
-				logger);
-		for (ClusterSingleClient client : this) {
-			try {
-				return client.getActiveNodeRandom(service_name);
-			} catch (WebApplicationException e) {
-				exceptionHolder.switchAndWarn(e);
-			}
-		}
-		throw exceptionHolder.getException();
+	public List<String> getActiveNodesByHash(String service_name, String key,
+			Integer replicas) {
+		return hedgedRead(client -> client.getActiveNodesByHash(service_name,
+				key, replicas));
+	}
+
+	@Override
+	public String getActiveNodeRandom(String service_name,
+			ClusterSelectionStrategy strategy) {
+		// The latency based strategies need the master
+		if (topologyCache != null
+				&& (strategy == null
+						|| strategy == ClusterSelectionStrategy.uniform || strategy == ClusterSelectionStrategy.round_robin))
+			return topologyCache.getActiveNode(service_name,
+					strategy == ClusterSelectionStrategy.round_robin);
+		return hedgedRead(client -> client.getActiveNodeRandom(service_name,
+				strategy));
 	}
 
 }
@@ -0,0 +1,70 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.client;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import javax.ws.rs.core.Response;
+
+import com.qwazr.cluster.service.ClusterBulkJson;
+import com.qwazr.cluster.service.ClusterBulkResultJson;
+import com.qwazr.cluster.service.ClusterNodeRegisterJson;
+import com.qwazr.cluster.service.ClusterNodeStatusJson;
+import com.qwazr.cluster.service.ClusterSelectionStrategy;
+import com.qwazr.cluster.service.ClusterServiceLatencyJson;
+import com.qwazr.cluster.service.ClusterServiceStatusJson;
+import com.qwazr.cluster.service.ClusterStatusJson;
+
+/**
+ * The non blocking variant of the client side of
+ * {@link com.qwazr.cluster.service.ClusterServiceInterface}. The futures
+ * fail with a {@link javax.ws.rs.WebApplicationException}.
+ */
+public interface ClusterServiceAsyncInterface {
+
+	public CompletableFuture<ClusterStatusJson> list();
+
+	public CompletableFuture<Map<String, Set<String>>> getNodes();
+
+	public CompletableFuture<ClusterNodeStatusJson> register(
+			ClusterNodeRegisterJson register);
+
+	public CompletableFuture<Response> unregister(String address);
+
+	public CompletableFuture<Response> heartbeat(String address);
+
+	public CompletableFuture<ClusterBulkResultJson> bulk(ClusterBulkJson bulk);
+
+	public CompletableFuture<Map<String, ClusterServiceStatusJson>> getServicesStatus(
+			Set<String> service_names);
+
+	public CompletableFuture<ClusterServiceStatusJson> getServiceStatus(
+			String service_name);
+
+	public CompletableFuture<ClusterServiceLatencyJson> getServiceLatency(
+			String service_name);
+
+	public CompletableFuture<List<String>> getActiveNodes(String service_name);
+
+	public CompletableFuture<List<String>> getActiveNodesByHash(
+			String service_name, String key, Integer replicas);
+
+	public CompletableFuture<String> getActiveNodeRandom(String service_name,
+			ClusterSelectionStrategy strategy);
+}
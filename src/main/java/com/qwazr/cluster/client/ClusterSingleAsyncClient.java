@@ -0,0 +1,370 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.client;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URLEncoder;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+
+import com.fasterxml.jackson.databind.JavaType;
+import com.qwazr.cluster.service.ClusterBulkJson;
+import com.qwazr.cluster.service.ClusterBulkResultJson;
+import com.qwazr.cluster.service.ClusterNodeRegisterJson;
+import com.qwazr.cluster.service.ClusterNodeStatusJson;
+import com.qwazr.cluster.service.ClusterSelectionStrategy;
+import com.qwazr.cluster.service.ClusterServiceLatencyJson;
+import com.qwazr.cluster.service.ClusterServiceStatusJson;
+import com.qwazr.cluster.service.ClusterStatusJson;
+import com.qwazr.utils.http.HttpUtils;
+
+/**
+ * The non blocking client of one master. The requests are executed by the
+ * asynchronous HTTP client of {@link ClusterConnectionPool}, no thread waits
+ * for the answers.
+ */
+public class ClusterSingleAsyncClient implements ClusterServiceAsyncInterface {
+
+	/**
+	 * Read the result from the response
+	 */
+	private interface ResponseReader<T> {
+
+		T read(HttpResponse response) throws IOException;
+	}
+
+	/**
+	 * The address of the master, as given to the constructor
+	 */
+	final String masterUrl;
+
+	/**
+	 * What the multi client observed from this master
+	 */
+	final ClusterMasterStats stats;
+
+	private final RequestConfig requestConfig;
+
+	public ClusterSingleAsyncClient(String url, int msTimeOut) {
+		this.masterUrl = url;
+		this.stats = new ClusterMasterStats(url);
+		this.requestConfig = RequestConfig.custom()
+				.setSocketTimeout(msTimeOut).setConnectTimeout(msTimeOut)
+				.setConnectionRequestTimeout(msTimeOut).build();
+	}
+
+	private URIBuilder getBaseUrl(String... paths) throws URISyntaxException {
+		StringBuilder sb = new StringBuilder(masterUrl);
+		for (String path : paths)
+			sb.append(path);
+		return new URIBuilder(sb.toString());
+	}
+
+	private static WebApplicationException toWebAppException(Throwable e) {
+		if (e instanceof WebApplicationException)
+			return (WebApplicationException) e;
+		return new WebApplicationException(e.getMessage(), e,
+				Status.INTERNAL_SERVER_ERROR);
+	}
+
+	/**
+	 * Execute the request. Cancelling the returned future aborts the request.
+	 * 
+	 * @param request
+	 *            the request to execute
+	 * @param reader
+	 *            reads the result from the response
+	 * @return the future result
+	 */
+	private <T> CompletableFuture<T> execute(HttpRequestBase request,
+			final ResponseReader<T> reader) {
+		request.setConfig(requestConfig);
+		request.setHeader(HttpHeaders.ACCEPT,
+				ClusterWireFormat.DEFAULT.accept);
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+		final boolean read = HttpGet.METHOD_NAME.equals(request.getMethod());
+		final long start = System.currentTimeMillis();
+		final Future<HttpResponse> future = ClusterConnectionPool.asyncHttpClient.execute(request,
+				new FutureCallback<HttpResponse>() {
+
+					@Override
+					public void completed(HttpResponse response) {
+						try {
+							T value = reader.read(response);
+							stats.success(System.currentTimeMillis() - start,
+									read);
+							result.complete(value);
+						} catch (IOException | RuntimeException e) {
+							// An HTTP error or an unexpected content, the
+							// master is reachable
+							stats.answered();
+							result.completeExceptionally(toWebAppException(e));
+						}
+					}
+
+					@Override
+					public void failed(Exception e) {
+						if (result.isCancelled())
+							stats.cancelled(System.currentTimeMillis() - start,
+									read);
+						else if (ClusterMasterStats.isHealthFailure(e))
+							stats.failure(System.currentTimeMillis());
+						else
+							stats.cancelled();
+						result.completeExceptionally(toWebAppException(e));
+					}
+
+					@Override
+					public void cancelled() {
+						stats.cancelled(System.currentTimeMillis() - start,
+								read);
+						result.cancel(false);
+					}
+				});
+		result.whenComplete((value, error) -> {
+			if (result.isCancelled())
+				future.cancel(true);
+		});
+		return result;
+	}
+
+	private <T> CompletableFuture<T> executeJson(HttpRequestBase request,
+			final JavaType type) {
+		return execute(request, response -> {
+			HttpUtils.checkStatusCodes(response, 200);
+			return ClusterWireFormat.read(response, type);
+		});
+	}
+
+	/**
+	 * @param body
+	 *            the document to send
+	 * @return the document encoded with the {@link ClusterWireFormat}
+	 * @throws IOException
+	 *             if the document cannot be encoded
+	 */
+	private static ByteArrayEntity entity(Object body) throws IOException {
+		ClusterWireFormat format = ClusterWireFormat.DEFAULT;
+		return new ByteArrayEntity(format.write(body), format.contentType);
+	}
+
+	private static <T> CompletableFuture<T> failed(Exception e) {
+		CompletableFuture<T> result = new CompletableFuture<T>();
+		result.completeExceptionally(toWebAppException(e));
+		return result;
+	}
+
+	private static JavaType type(Class<?> clazz) {
+		return ClusterSingleClient.mapper.getTypeFactory().constructType(clazz);
+	}
+
+	private final static JavaType ClusterStatusJsonType = type(ClusterStatusJson.class);
+
+	@Override
+	public CompletableFuture<ClusterStatusJson> list() {
+		try {
+			return executeJson(new HttpGet(getBaseUrl("/cluster").build()),
+					ClusterStatusJsonType);
+		} catch (URISyntaxException e) {
+			return failed(e);
+		}
+	}
+
+	private final static JavaType MapStringSetStringType = ClusterSingleClient.mapper
+			.getTypeFactory().constructType(
+					ClusterSingleClient.MapStringSetStringTypeRef);
+
+	@Override
+	public CompletableFuture<Map<String, Set<String>>> getNodes() {
+		try {
+			return executeJson(new HttpGet(getBaseUrl("/cluster/nodes")
+					.build()), MapStringSetStringType);
+		} catch (URISyntaxException e) {
+			return failed(e);
+		}
+	}
+
+	private final static JavaType ClusterNodeStatusJsonType = type(ClusterNodeStatusJson.class);
+
+	@Override
+	public CompletableFuture<ClusterNodeStatusJson> register(
+			ClusterNodeRegisterJson register) {
+		try {
+			HttpPost request = new HttpPost(getBaseUrl("/cluster").build());
+			request.setEntity(entity(register));
+			return executeJson(request, ClusterNodeStatusJsonType);
+		} catch (URISyntaxException | IOException e) {
+			return failed(e);
+		}
+	}
+
+	@Override
+	public CompletableFuture<Response> unregister(String address) {
+		try {
+			URIBuilder uriBuilder = getBaseUrl("/cluster");
+			uriBuilder.setParameter("address", address);
+			return execute(new HttpDelete(uriBuilder.build()), response -> {
+				HttpUtils.checkStatusCodes(response, 200);
+				return Response.status(
+						response.getStatusLine().getStatusCode()).build();
+			});
+		} catch (URISyntaxException e) {
+			return failed(e);
+		}
+	}
+
+	@Override
+	public CompletableFuture<Response> heartbeat(String address) {
+		try {
+			URIBuilder uriBuilder = getBaseUrl("/cluster/heartbeat");
+			uriBuilder.setParameter("address", address);
+			return execute(new HttpPost(uriBuilder.build()),
+					response -> Response.status(
+							HttpUtils.checkStatusCodes(response, 200, 404))
+							.build());
+		} catch (URISyntaxException e) {
+			return failed(e);
+		}
+	}
+
+	private final static JavaType ClusterBulkResultJsonType = type(ClusterBulkResultJson.class);
+
+	@Override
+	public CompletableFuture<ClusterBulkResultJson> bulk(ClusterBulkJson bulk) {
+		try {
+			HttpPost request = new HttpPost(getBaseUrl("/cluster/bulk")
+					.build());
+			request.setEntity(entity(bulk));
+			return executeJson(request, ClusterBulkResultJsonType);
+		} catch (URISyntaxException | IOException e) {
+			return failed(e);
+		}
+	}
+
+	private final static JavaType ClusterServiceStatusJsonType = type(ClusterServiceStatusJson.class);
+
+	private final static JavaType MapStringServiceStatusType = ClusterSingleClient.mapper
+			.getTypeFactory().constructType(
+					ClusterSingleClient.MapStringServiceStatusTypeRef);
+
+	@Override
+	public CompletableFuture<Map<String, ClusterServiceStatusJson>> getServicesStatus(
+			Set<String> service_names) {
+		try {
+			URIBuilder uriBuilder = getBaseUrl("/cluster/services");
+			if (service_names != null)
+				for (String service_name : service_names)
+					uriBuilder.addParameter("service", service_name);
+			return executeJson(new HttpGet(uriBuilder.build()),
+					MapStringServiceStatusType);
+		} catch (URISyntaxException e) {
+			return failed(e);
+		}
+	}
+
+	@Override
+	public CompletableFuture<ClusterServiceStatusJson> getServiceStatus(
+			String service_name) {
+		try {
+			return executeJson(new HttpGet(getBaseUrl("/cluster/services/",
+					service_name).build()), ClusterServiceStatusJsonType);
+		} catch (URISyntaxException e) {
+			return failed(e);
+		}
+	}
+
+	private final static JavaType ClusterServiceLatencyJsonType = type(ClusterServiceLatencyJson.class);
+
+	@Override
+	public CompletableFuture<ClusterServiceLatencyJson> getServiceLatency(
+			String service_name) {
+		try {
+			return executeJson(new HttpGet(getBaseUrl("/cluster/services/",
+					service_name, "/latency").build()),
+					ClusterServiceLatencyJsonType);
+		} catch (URISyntaxException e) {
+			return failed(e);
+		}
+	}
+
+	private final static JavaType ListStringType = ClusterSingleClient.mapper
+			.getTypeFactory().constructType(
+					ClusterSingleClient.ListStringTypeRef);
+
+	@Override
+	public CompletableFuture<List<String>> getActiveNodes(String service_name) {
+		try {
+			return executeJson(new HttpGet(getBaseUrl("/cluster/services/",
+					service_name, "/active").build()), ListStringType);
+		} catch (URISyntaxException e) {
+			return failed(e);
+		}
+	}
+
+	@Override
+	public CompletableFuture<List<String>> getActiveNodesByHash(
+			String service_name, String key, Integer replicas) {
+		try {
+			URIBuilder uriBuilder = getBaseUrl("/cluster/services/",
+					service_name, "/active/hash/",
+					URLEncoder.encode(key, "UTF-8").replace("+", "%20"));
+			if (replicas != null)
+				uriBuilder.addParameter("replicas", replicas.toString());
+			return executeJson(new HttpGet(uriBuilder.build()), ListStringType);
+		} catch (URISyntaxException | IOException e) {
+			return failed(e);
+		}
+	}
+
+	@Override
+	public CompletableFuture<String> getActiveNodeRandom(String service_name,
+			ClusterSelectionStrategy strategy) {
+		try {
+			URIBuilder uriBuilder = getBaseUrl("/cluster/services/",
+					service_name, "/active/random");
+			if (strategy != null)
+				uriBuilder.addParameter("strategy", strategy.name());
+			return execute(new HttpGet(uriBuilder.build()), response -> {
+				HttpUtils.checkStatusCodes(response, 200);
+				return IOUtils.toString(HttpUtils.checkIsEntity(response,
+						ContentType.TEXT_PLAIN).getContent());
+			});
+		} catch (URISyntaxException e) {
+			return failed(e);
+		}
+	}
+}
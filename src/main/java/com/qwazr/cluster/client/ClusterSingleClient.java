@@ -16,7 +16,10 @@
 package com.qwazr.cluster.client;
 
 import java.io.IOException;
+import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URLEncoder;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -26,15 +29,26 @@ import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.fluent.Request;
 import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.entity.ContentType;
 
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.qwazr.cluster.service.ClusterBulkJson;
+import com.qwazr.cluster.service.ClusterBulkResultJson;
+import com.qwazr.cluster.service.ClusterChangeListener;
+import com.qwazr.cluster.service.ClusterChangesJson;
+import com.qwazr.cluster.service.ClusterDigestJson;
 import com.qwazr.cluster.service.ClusterNodeRegisterJson;
 import com.qwazr.cluster.service.ClusterNodeStatusJson;
 import com.qwazr.cluster.service.ClusterServiceInterface;
+import com.qwazr.cluster.service.ClusterSelectionStrategy;
+import com.qwazr.cluster.service.ClusterServiceLatencyJson;
 import com.qwazr.cluster.service.ClusterServiceStatusJson;
 import com.qwazr.cluster.service.ClusterStatusJson;
 import com.qwazr.utils.http.HttpUtils;
@@ -43,18 +57,140 @@ import com.qwazr.utils.json.client.JsonClientAbstract;
 public class ClusterSingleClient extends JsonClientAbstract implements
 		ClusterServiceInterface {
 
+	final static ObjectMapper mapper = ClusterWireFormat.json.mapper;
+
+	/**
+	 * The latest result received for a resource, with its ETag
+	 */
+	private static class ETagResult {
+
+		private final String etag;
+		private final Object result;
+
+		private ETagResult(String etag, Object result) {
+			this.etag = etag;
+			this.result = result;
+		}
+	}
+
+	/**
+	 * The maximum number of results kept with their ETag. Each query string
+	 * is a resource, the least recently used ones are evicted.
+	 */
+	final static int MAX_ETAG_RESULTS = 256;
+
+	private final Map<URI, ETagResult> etagResults;
+
+	/**
+	 * What the multi client observed from this master
+	 */
+	final ClusterMasterStats stats;
+
+	/**
+	 * The address of the master, as given to the constructor
+	 */
+	final String masterUrl;
+
 	public ClusterSingleClient(String url, int msTimeOut)
 			throws URISyntaxException {
 		super(url, msTimeOut);
+		masterUrl = url;
+		etagResults = new LinkedHashMap<URI, ETagResult>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<URI, ETagResult> eldest) {
+				return size() > MAX_ETAG_RESULTS;
+			}
+		};
+		stats = new ClusterMasterStats(url);
+	}
+
+	/**
+	 * Execute the request using the pooled connections of
+	 * {@link ClusterConnectionPool}. The response is fully read, so the
+	 * connection goes back to the pool at once.
+	 * 
+	 * @param request
+	 *            the request to execute
+	 * @param bodyObject
+	 *            an optional object sent with the {@link ClusterWireFormat}
+	 * @return the response
+	 * @throws IOException
+	 *             if any error occurs
+	 */
+	private HttpResponse execute(Request request, Object bodyObject)
+			throws IOException {
+		request.connectTimeout(msTimeOut).socketTimeout(msTimeOut);
+		ClusterWireFormat format = ClusterWireFormat.DEFAULT;
+		request.setHeader(HttpHeaders.ACCEPT, format.accept);
+		if (bodyObject != null)
+			request.bodyByteArray(format.write(bodyObject),
+					format.contentType);
+		return ClusterConnectionPool.executor.execute(request)
+				.returnResponse();
+	}
+
+	private <T> T execute(Request request, Object bodyObject, JavaType type,
+			int... expectedCodes) throws IOException {
+		HttpResponse response = execute(request, bodyObject);
+		HttpUtils.checkStatusCodes(response, expectedCodes);
+		return ClusterWireFormat.read(response, type);
 	}
 
+	/**
+	 * Execute a GET request. The ETag of the latest result is sent using
+	 * If-None-Match. If the master replies 304 Not Modified, the latest result
+	 * is returned (the same instance). The results are shared by every caller
+	 * of this client: they must be read only.
+	 * 
+	 * @param uri
+	 *            the URI of the resource
+	 * @param type
+	 *            the type of the result
+	 * @return the result
+	 * @throws IOException
+	 *             if any error occurs
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> T executeGet(URI uri, JavaType type) throws IOException {
+		Request request = Request.Get(uri);
+		ClusterMasterCall.register(request);
+		ETagResult latest;
+		synchronized (etagResults) {
+			latest = etagResults.get(uri);
+		}
+		if (latest != null)
+			request.addHeader(HttpHeaders.IF_NONE_MATCH, latest.etag);
+		HttpResponse response = execute(request, null);
+		HttpUtils.checkStatusCodes(response, 200, 304);
+		if (response.getStatusLine().getStatusCode() == 304) {
+			if (latest == null)
+				throw new WebApplicationException("Unexpected response: 304",
+						Status.INTERNAL_SERVER_ERROR);
+			return (T) latest.result;
+		}
+		T result = ClusterWireFormat.read(response, type);
+		Header etag = response.getFirstHeader(HttpHeaders.ETAG);
+		synchronized (etagResults) {
+			if (etag != null)
+				etagResults.put(uri, new ETagResult(etag.getValue(), result));
+			else
+				etagResults.remove(uri);
+		}
+		return result;
+	}
+
+	private final static JavaType ClusterStatusJsonType = mapper
+			.getTypeFactory().constructType(ClusterStatusJson.class);
+
 	@Override
 	public ClusterStatusJson list() {
 		try {
 			URIBuilder uriBuilder = getBaseUrl("/cluster");
-			Request request = Request.Get(uriBuilder.build());
-			return execute(request, null, msTimeOut, ClusterStatusJson.class,
-					200);
+			return executeGet(uriBuilder.build(), ClusterStatusJsonType);
 		} catch (URISyntaxException | IOException e) {
 			throw new WebApplicationException(e.getMessage(), e,
 					Status.INTERNAL_SERVER_ERROR);
@@ -64,26 +200,105 @@ public class ClusterSingleClient extends JsonClientAbstract implements
 	public final static TypeReference<Map<String, Set<String>>> MapStringSetStringTypeRef = new TypeReference<Map<String, Set<String>>>() {
 	};
 
+	private final static JavaType MapStringSetStringType = mapper
+			.getTypeFactory().constructType(MapStringSetStringTypeRef);
+
 	@Override
 	public Map<String, Set<String>> getNodes() {
 		try {
 			URIBuilder uriBuilder = getBaseUrl("/cluster/nodes");
+			return executeGet(uriBuilder.build(), MapStringSetStringType);
+		} catch (URISyntaxException | IOException e) {
+			throw new WebApplicationException(e.getMessage(), e,
+					Status.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	private final static JavaType ClusterChangesJsonType = mapper
+			.getTypeFactory().constructType(ClusterChangesJson.class);
+
+	@Override
+	public ClusterChangesJson getChanges(Long since, String instance) {
+		try {
+			URIBuilder uriBuilder = getBaseUrl("/cluster/changes");
+			if (since != null)
+				uriBuilder.setParameter("since", since.toString());
+			if (instance != null)
+				uriBuilder.setParameter("instance", instance);
 			Request request = Request.Get(uriBuilder.build());
-			return (Map<String, Set<String>>) execute(request, null, msTimeOut,
-					MapStringSetStringTypeRef, 200);
+			return execute(request, null, ClusterChangesJsonType, 200);
 		} catch (URISyntaxException | IOException e) {
 			throw new WebApplicationException(e.getMessage(), e,
 					Status.INTERNAL_SERVER_ERROR);
 		}
 	}
 
+	/**
+	 * Listen to the changes pushed by the master. The stream is read by a
+	 * background thread which reconnects after any failure.
+	 * 
+	 * @param service_name
+	 *            an optional service name. If set, only the changes of the
+	 *            nodes providing this service are received.
+	 * @param listener
+	 *            the listener called for each change
+	 * @return the started reader. Close it to stop listening.
+	 */
+	public ClusterChangeStreamReader listen(String service_name,
+			ClusterChangeListener listener) {
+		try {
+			URIBuilder uriBuilder = getBaseUrl("/cluster/stream");
+			if (service_name != null)
+				uriBuilder.setParameter("service", service_name);
+			ClusterChangeStreamReader reader = new ClusterChangeStreamReader(
+					this, uriBuilder.build(), service_name, msTimeOut, listener);
+			reader.start();
+			return reader;
+		} catch (URISyntaxException e) {
+			throw new WebApplicationException(e.getMessage(), e,
+					Status.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	private final static JavaType ClusterDigestJsonType = mapper
+			.getTypeFactory().constructType(ClusterDigestJson.class);
+
+	@Override
+	public ClusterDigestJson getDigest() {
+		try {
+			URIBuilder uriBuilder = getBaseUrl("/cluster/digest");
+			return executeGet(uriBuilder.build(), ClusterDigestJsonType);
+		} catch (URISyntaxException | IOException e) {
+			throw new WebApplicationException(e.getMessage(), e,
+					Status.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	@Override
+	public Map<String, Set<String>> getDigestNodes(Set<Integer> buckets) {
+		try {
+			URIBuilder uriBuilder = getBaseUrl("/cluster/digest/nodes");
+			if (buckets != null)
+				for (Integer bucket : buckets)
+					uriBuilder.addParameter("bucket", bucket.toString());
+			Request request = Request.Get(uriBuilder.build());
+			return execute(request, null, MapStringSetStringType, 200);
+		} catch (URISyntaxException | IOException e) {
+			throw new WebApplicationException(e.getMessage(), e,
+					Status.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	private final static JavaType ClusterNodeStatusJsonType = mapper
+			.getTypeFactory().constructType(ClusterNodeStatusJson.class);
+
 	@Override
 	public ClusterNodeStatusJson register(ClusterNodeRegisterJson register) {
 		try {
 			URIBuilder uriBuilder = getBaseUrl("/cluster");
 			Request request = Request.Post(uriBuilder.build());
-			return execute(request, register, msTimeOut,
-					ClusterNodeStatusJson.class, 200);
+			ClusterMasterCall.register(request);
+			return execute(request, register, ClusterNodeStatusJsonType, 200);
 		} catch (URISyntaxException | IOException e) {
 			throw new WebApplicationException(e.getMessage(), e,
 					Status.INTERNAL_SERVER_ERROR);
@@ -96,7 +311,8 @@ public class ClusterSingleClient extends JsonClientAbstract implements
 			URIBuilder uriBuilder = getBaseUrl("/cluster");
 			uriBuilder.setParameter("address", address);
 			Request request = Request.Delete(uriBuilder.build());
-			HttpResponse response = execute(request, null, msTimeOut);
+			ClusterMasterCall.register(request);
+			HttpResponse response = execute(request, null);
 			HttpUtils.checkStatusCodes(response, 200);
 			return Response.status(response.getStatusLine().getStatusCode())
 					.build();
@@ -106,19 +322,117 @@ public class ClusterSingleClient extends JsonClientAbstract implements
 		}
 	}
 
+	/**
+	 * Renew the lease of the node. The master answers 404 if it does not know
+	 * the leased node, which has to register again.
+	 */
+	@Override
+	public Response heartbeat(String address) {
+		try {
+			URIBuilder uriBuilder = getBaseUrl("/cluster/heartbeat");
+			uriBuilder.setParameter("address", address);
+			Request request = Request.Post(uriBuilder.build());
+			ClusterMasterCall.register(request);
+			HttpResponse response = execute(request, null);
+			return Response.status(
+					HttpUtils.checkStatusCodes(response, 200, 404)).build();
+		} catch (URISyntaxException | IOException e) {
+			throw new WebApplicationException(e.getMessage(), e,
+					Status.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	private final static JavaType ClusterBulkResultJsonType = mapper
+			.getTypeFactory().constructType(ClusterBulkResultJson.class);
+
+	@Override
+	public ClusterBulkResultJson bulk(ClusterBulkJson bulk) {
+		try {
+			URIBuilder uriBuilder = getBaseUrl("/cluster/bulk");
+			Request request = Request.Post(uriBuilder.build());
+			ClusterMasterCall.register(request);
+			return execute(request, bulk, ClusterBulkResultJsonType, 200);
+		} catch (URISyntaxException | IOException e) {
+			throw new WebApplicationException(e.getMessage(), e,
+					Status.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	/**
+	 * @return 200 if the master is ready, 503 if it is still reconciling its
+	 *         nodes with the other masters
+	 */
+	@Override
+	public Response getReady() {
+		try {
+			Request request = Request.Get(getBaseUrl("/cluster/ready")
+					.build());
+			ClusterMasterCall.register(request);
+			HttpResponse response = execute(request, null);
+			return Response.status(
+					HttpUtils.checkStatusCodes(response, 200, 503)).build();
+		} catch (URISyntaxException | IOException e) {
+			throw new WebApplicationException(e.getMessage(), e,
+					Status.INTERNAL_SERVER_ERROR);
+		}
+	}
+
 	@Override
 	public Response check(String checkValue) {
 		return Response.status(Status.NOT_IMPLEMENTED).build();
 	}
 
+	@Override
+	public Response getStream(String service_name) {
+		return Response.status(Status.NOT_IMPLEMENTED).build();
+	}
+
+	private final static JavaType ClusterServiceStatusJsonType = mapper
+			.getTypeFactory().constructType(ClusterServiceStatusJson.class);
+
+	public final static TypeReference<Map<String, ClusterServiceStatusJson>> MapStringServiceStatusTypeRef = new TypeReference<Map<String, ClusterServiceStatusJson>>() {
+	};
+
+	private final static JavaType MapStringServiceStatusType = mapper
+			.getTypeFactory().constructType(MapStringServiceStatusTypeRef);
+
+	@Override
+	public Map<String, ClusterServiceStatusJson> getServicesStatus(
+			Set<String> service_names) {
+		try {
+			URIBuilder uriBuilder = getBaseUrl("/cluster/services");
+			if (service_names != null)
+				for (String service_name : service_names)
+					uriBuilder.addParameter("service", service_name);
+			return executeGet(uriBuilder.build(), MapStringServiceStatusType);
+		} catch (URISyntaxException | IOException e) {
+			throw new WebApplicationException(e.getMessage(), e,
+					Status.INTERNAL_SERVER_ERROR);
+		}
+	}
+
 	@Override
 	public ClusterServiceStatusJson getServiceStatus(String service_name) {
 		try {
 			URIBuilder uriBuilder = getBaseUrl("/cluster/services/",
 					service_name);
-			Request request = Request.Get(uriBuilder.build());
-			return execute(request, null, msTimeOut,
-					ClusterServiceStatusJson.class, 200);
+			return executeGet(uriBuilder.build(), ClusterServiceStatusJsonType);
+		} catch (URISyntaxException | IOException e) {
+			throw new WebApplicationException(e.getMessage(), e,
+					Status.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	private final static JavaType ClusterServiceLatencyJsonType = mapper
+			.getTypeFactory().constructType(ClusterServiceLatencyJson.class);
+
+	@Override
+	public ClusterServiceLatencyJson getServiceLatency(String service_name) {
+		try {
+			URIBuilder uriBuilder = getBaseUrl("/cluster/services/",
+					service_name, "/latency");
+			return executeGet(uriBuilder.build(),
+					ClusterServiceLatencyJsonType);
 		} catch (URISyntaxException | IOException e) {
 			throw new WebApplicationException(e.getMessage(), e,
 					Status.INTERNAL_SERVER_ERROR);
@@ -128,14 +442,34 @@ public class ClusterSingleClient extends JsonClientAbstract implements
 	public final static TypeReference<List<String>> ListStringTypeRef = new TypeReference<List<String>>() {
 	};
 
+	private final static JavaType ListStringType = mapper.getTypeFactory()
+			.constructType(ListStringTypeRef);
+
 	@Override
 	public List<String> getActiveNodes(String service_name) {
 		try {
 			URIBuilder uriBuilder = getBaseUrl("/cluster/services/",
 					service_name, "/active");
+			return executeGet(uriBuilder.build(), ListStringType);
+		} catch (URISyntaxException | IOException e) {
+			throw new WebApplicationException(e.getMessage(), e,
+					Status.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	@Override
+	public List<String> getActiveNodesByHash(String service_name, String key,
+			Integer replicas) {
+		try {
+			URIBuilder uriBuilder = getBaseUrl("/cluster/services/",
+					service_name, "/active/hash/",
+					URLEncoder.encode(key, "UTF-8").replace("+", "%20"));
+			if (replicas != null)
+				uriBuilder.addParameter("replicas", replicas.toString());
+			// One resource per key: the results are not kept for the ETags
 			Request request = Request.Get(uriBuilder.build());
-			return (List<String>) execute(request, null, msTimeOut,
-					ListStringTypeRef, 200);
+			ClusterMasterCall.register(request);
+			return execute(request, null, ListStringType, 200);
 		} catch (URISyntaxException | IOException e) {
 			throw new WebApplicationException(e.getMessage(), e,
 					Status.INTERNAL_SERVER_ERROR);
@@ -143,12 +477,16 @@ public class ClusterSingleClient extends JsonClientAbstract implements
 	}
 
 	@Override
-	public String getActiveNodeRandom(String service_name) {
+	public String getActiveNodeRandom(String service_name,
+			ClusterSelectionStrategy strategy) {
 		try {
 			URIBuilder uriBuilder = getBaseUrl("/cluster/services/",
 					service_name, "/active/random");
+			if (strategy != null)
+				uriBuilder.addParameter("strategy", strategy.name());
 			Request request = Request.Get(uriBuilder.build());
-			HttpResponse response = execute(request, null, msTimeOut);
+			ClusterMasterCall.register(request);
+			HttpResponse response = execute(request, null);
 			HttpUtils.checkStatusCodes(response, 200);
 			return IOUtils.toString(HttpUtils.checkIsEntity(response,
 					ContentType.TEXT_PLAIN).getContent());
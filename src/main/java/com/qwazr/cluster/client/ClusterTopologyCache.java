@@ -0,0 +1,175 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.client;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The active nodes of each service, kept by the client. An entry is
+ * refreshed in the background when it reaches half of its time to live. When
+ * it is expired, one caller reloads it while the other callers get the stale
+ * entry at once. Once a load failed (the masters cannot be reached), the
+ * stale entry is served to every caller and only reloaded in the background.
+ */
+class ClusterTopologyCache {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(ClusterTopologyCache.class);
+
+	private static class Entry {
+
+		private final List<String> nodes;
+		private final long time;
+		private final AtomicBoolean refreshing;
+		private final AtomicInteger roundRobin;
+
+		/**
+		 * True when the latest load of this service failed
+		 */
+		private volatile boolean failed;
+
+		private Entry(List<String> nodes, long time) {
+			this.nodes = nodes;
+			this.time = time;
+			this.refreshing = new AtomicBoolean();
+			this.roundRobin = new AtomicInteger();
+			this.failed = false;
+		}
+	}
+
+	/**
+	 * The maximum number of services refreshed at the same time. A refresh
+	 * waiting for an unreachable master does not hold the other ones.
+	 */
+	final static int REFRESH_THREADS = 4;
+
+	private final ClusterMultiClient client;
+	private final long ttlMs;
+	private final ConcurrentHashMap<String, Entry> entries;
+	private final ThreadPoolExecutor refreshExecutor;
+
+	ClusterTopologyCache(ClusterMultiClient client, long ttlMs) {
+		this.client = client;
+		this.ttlMs = ttlMs;
+		this.entries = new ConcurrentHashMap<String, Entry>();
+		this.refreshExecutor = new ThreadPoolExecutor(REFRESH_THREADS,
+				REFRESH_THREADS, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), runnable -> {
+					Thread thread = new Thread(runnable,
+							"Cluster topology refresh");
+					thread.setDaemon(true);
+					return thread;
+				});
+		refreshExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	private Entry load(String service) {
+		Entry entry = new Entry(client.fetchActiveNodes(service),
+				System.currentTimeMillis());
+		entries.put(service, entry);
+		return entry;
+	}
+
+	private void refresh(final String service, final Entry entry) {
+		if (!entry.refreshing.compareAndSet(false, true))
+			return;
+		try {
+			refreshExecutor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						load(service);
+					} catch (RuntimeException e) {
+						entry.failed = true;
+						logger.warn("Unable to refresh the nodes of "
+								+ service + ": " + e.getMessage());
+					} finally {
+						entry.refreshing.set(false);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			entry.refreshing.set(false);
+			throw e;
+		}
+	}
+
+	private Entry get(String service) {
+		Entry entry = entries.get(service);
+		if (entry == null)
+			return load(service);
+		long age = System.currentTimeMillis() - entry.time;
+		if (age < ttlMs / 2)
+			return entry;
+		// The masters were not reachable, nobody waits for them
+		if (age < ttlMs || entry.failed) {
+			refresh(service, entry);
+			return entry;
+		}
+		// Another caller (or the background) is already reloading it
+		if (!entry.refreshing.compareAndSet(false, true))
+			return entry;
+		try {
+			return load(service);
+		} catch (RuntimeException e) {
+			logger.warn("Serving stale nodes of " + service + ": "
+					+ e.getMessage());
+			entry.failed = true;
+			return entry;
+		} finally {
+			entry.refreshing.set(false);
+		}
+	}
+
+	/**
+	 * @param service
+	 *            the name of the service
+	 * @return the active nodes of the service
+	 */
+	List<String> getActiveNodes(String service) {
+		return get(service).nodes;
+	}
+
+	/**
+	 * @param service
+	 *            the name of the service
+	 * @param roundRobin
+	 *            true to choose the nodes in turn, false to choose randomly
+	 * @return an active node, or null if there is no active node
+	 */
+	String getActiveNode(String service, boolean roundRobin) {
+		Entry entry = get(service);
+		int size = entry.nodes.size();
+		if (size == 0)
+			return null;
+		int i = roundRobin ? (entry.roundRobin.getAndIncrement() & Integer.MAX_VALUE)
+				% size
+				: ThreadLocalRandom.current().nextInt(size);
+		return entry.nodes.get(i);
+	}
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.client;
+
+import java.io.IOException;
+import java.util.Locale;
+
+import javax.ws.rs.core.MediaType;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ContentType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import com.qwazr.cluster.service.ClusterServiceInterface;
+import com.qwazr.utils.http.HttpUtils;
+
+/**
+ * The encodings of the documents exchanged with the masters. Smile is the
+ * binary form of JSON: the same documents, smaller and faster to parse. The
+ * clients use the format given by the system property
+ * com.qwazr.cluster.client.format (smile by default, or json). They still
+ * accept JSON, a response is read with the format of its content type.
+ */
+public enum ClusterWireFormat {
+
+	json(ContentType.APPLICATION_JSON, new JsonFactory(), MediaType.WILDCARD),
+
+	smile(ContentType.create(ClusterServiceInterface.APPLICATION_SMILE),
+			new SmileFactory().enable(
+					SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES),
+			ClusterServiceInterface.APPLICATION_SMILE + ", "
+					+ MediaType.WILDCARD + ";q=0.5");
+
+	final ContentType contentType;
+
+	/**
+	 * The mapper of this format. The addresses and the service names are
+	 * repeated in most documents, the Smile encoder writes them once.
+	 */
+	public final ObjectMapper mapper;
+
+	/**
+	 * The Accept header of the requests. The other types are still accepted,
+	 * for the plain text resources and the masters which only know JSON.
+	 */
+	final String accept;
+
+	private ClusterWireFormat(ContentType contentType, JsonFactory factory,
+			String accept) {
+		this.contentType = contentType;
+		this.mapper = new ObjectMapper(factory).configure(
+				DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+		this.accept = accept;
+	}
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(ClusterWireFormat.class);
+
+	/**
+	 * The format of the requests sent by the clients
+	 */
+	public final static ClusterWireFormat DEFAULT = parse(System
+			.getProperty("com.qwazr.cluster.client.format"));
+
+	/**
+	 * @param value
+	 *            the name of a format, the case and the surrounding spaces are
+	 *            ignored
+	 * @return the format, smile if the value is null or empty, json if the
+	 *         format is unknown
+	 */
+	static ClusterWireFormat parse(String value) {
+		if (value == null || value.trim().isEmpty())
+			return smile;
+		String name = value.trim().toLowerCase(Locale.ROOT);
+		for (ClusterWireFormat format : values())
+			if (format.name().equals(name))
+				return format;
+		logger.warn("Unknown cluster client format: " + value
+				+ ", json is used");
+		return json;
+	}
+
+	/**
+	 * @param object
+	 *            the document to send
+	 * @return the encoded document
+	 * @throws IOException
+	 *             if the document cannot be encoded
+	 */
+	byte[] write(Object object) throws IOException {
+		return mapper.writeValueAsBytes(object);
+	}
+
+	/**
+	 * Read the body of a response with the format given by its content type
+	 * 
+	 * @param response
+	 *            the response
+	 * @param type
+	 *            the type of the document
+	 * @return the decoded document
+	 * @throws IOException
+	 *             if there is no body, or if it cannot be decoded
+	 */
+	static <T> T read(HttpResponse response, JavaType type)
+			throws IOException {
+		ClusterWireFormat format = json;
+		HttpEntity entity = response.getEntity();
+		if (entity != null) {
+			Header header = entity.getContentType();
+			if (header != null
+					&& header.getValue().startsWith(
+							smile.contentType.getMimeType()))
+				format = smile;
+		}
+		return format.mapper.readValue(
+				HttpUtils.checkIsEntity(response, format.contentType)
+						.getContent(), type);
+	}
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.gossip;
+
+/**
+ * The parameters of the gossip membership (YAML). Only the port, or the port
+ * offset, is required.
+ */
+public class GossipConfiguration {
+
+	/**
+	 * The UDP port used by all the members
+	 */
+	public final Integer port;
+
+	/**
+	 * If set, the UDP port of a member is the port of its web service plus
+	 * this offset. Several members can run on the same host.
+	 */
+	public final Integer port_offset;
+
+	/**
+	 * The protocol period: one member is probed in each period
+	 */
+	public final Integer period_ms;
+
+	/**
+	 * The time to wait for the answer to a direct probe
+	 */
+	public final Integer ack_timeout_ms;
+
+	/**
+	 * The number of members asked to probe a member which did not answer
+	 */
+	public final Integer indirect_probes;
+
+	/**
+	 * A suspect is declared dead after this number of periods (multiplied by
+	 * the log of the number of members)
+	 */
+	public final Integer suspicion_periods;
+
+	/**
+	 * Each update is piggybacked this number of times (multiplied by the log
+	 * of the number of members)
+	 */
+	public final Integer retransmit_multiplier;
+
+	public GossipConfiguration() {
+		this(null, null, null, null, null, null, null);
+	}
+
+	public GossipConfiguration(Integer port, Integer period_ms,
+			Integer ack_timeout_ms, Integer indirect_probes,
+			Integer suspicion_periods, Integer retransmit_multiplier) {
+		this(port, null, period_ms, ack_timeout_ms, indirect_probes,
+				suspicion_periods, retransmit_multiplier);
+	}
+
+	public GossipConfiguration(Integer port, Integer port_offset,
+			Integer period_ms, Integer ack_timeout_ms,
+			Integer indirect_probes, Integer suspicion_periods,
+			Integer retransmit_multiplier) {
+		this.port = port;
+		this.port_offset = port_offset;
+		this.period_ms = period_ms;
+		this.ack_timeout_ms = ack_timeout_ms;
+		this.indirect_probes = indirect_probes;
+		this.suspicion_periods = suspicion_periods;
+		this.retransmit_multiplier = retransmit_multiplier;
+	}
+
+	/**
+	 * @param webServicePort
+	 *            the port of the web service of the member
+	 * @return the UDP port of the member, or null if the gossip is not
+	 *         enabled
+	 */
+	public Integer udpPort(int webServicePort) {
+		if (port_offset != null)
+			return webServicePort + port_offset;
+		return port;
+	}
+
+	static int value(Integer value, int defaultValue) {
+		return value == null ? defaultValue : value;
+	}
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.gossip;
+
+public interface GossipListener {
+
+	/**
+	 * Called when a member joins, or comes back
+	 * 
+	 * @param id
+	 *            the identifier of the member
+	 */
+	void onAlive(String id);
+
+	/**
+	 * Called when a member is declared dead
+	 * 
+	 * @param id
+	 *            the identifier of the member
+	 */
+	void onDead(String id);
+
+}
@@ -0,0 +1,580 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.gossip;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.qwazr.cluster.gossip.GossipUpdate.State;
+
+/**
+ * A member of a SWIM-style gossip membership. In each protocol period, one
+ * member is probed (randomized round robin). If it does not answer, a few
+ * other members are asked to probe it. If it still does not answer, it is
+ * suspected, then declared dead if it does not refute the suspicion. The
+ * membership updates are piggybacked on the probes and the answers, so the
+ * load of each member is constant whatever the size of the cluster.
+ */
+public class GossipMembership implements Closeable {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(GossipMembership.class);
+
+	private final static ObjectMapper mapper = new ObjectMapper().configure(
+			DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+	private final static int MAX_PACKET_SIZE = 65507;
+
+	/**
+	 * The maximum number of updates piggybacked on one message
+	 */
+	private final static int MAX_PIGGYBACK = 8;
+
+	/**
+	 * The maximum number of members sent to a new member
+	 */
+	private final static int MAX_SYNC = 256;
+
+	/**
+	 * A probe waiting for its answer. A relayed probe forwards the answer to
+	 * the member which asked for it.
+	 */
+	private static class Pending {
+
+		private final CountDownLatch latch;
+		private final long relaySeq;
+		private final SocketAddress relayTo;
+		private final long time;
+
+		private Pending(long relaySeq, SocketAddress relayTo) {
+			this.latch = relayTo == null ? new CountDownLatch(1) : null;
+			this.relaySeq = relaySeq;
+			this.relayTo = relayTo;
+			this.time = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * An update which is still piggybacked
+	 */
+	private static class Broadcast {
+
+		private final GossipUpdate update;
+		private final AtomicInteger remaining;
+
+		private Broadcast(GossipUpdate update, int transmits) {
+			this.update = update;
+			this.remaining = new AtomicInteger(transmits);
+		}
+	}
+
+	private final String id;
+	private final String address;
+	private final DatagramSocket socket;
+	private final Collection<InetSocketAddress> seeds;
+	private final GossipListener listener;
+
+	private final int periodMs;
+	private final int ackTimeoutMs;
+	private final int indirectProbes;
+	private final int suspicionPeriods;
+	private final int retransmitMultiplier;
+
+	private final ConcurrentHashMap<String, GossipUpdate> members;
+	private final ConcurrentHashMap<String, InetSocketAddress> endpoints;
+	private final ConcurrentHashMap<String, Long> suspects;
+	private final ConcurrentHashMap<Long, Pending> pendings;
+	private final ConcurrentHashMap<String, Broadcast> broadcasts;
+	private final AtomicLong seqs;
+
+	private volatile long incarnation;
+
+	private final Thread receiverThread;
+	private final Thread proberThread;
+	private volatile boolean closed;
+
+	/**
+	 * A paused member neither sends nor receives, as during a long GC pause
+	 */
+	private volatile boolean paused;
+
+	/**
+	 * The probe order, only used by the prober thread
+	 */
+	private final List<String> probeList;
+	private int probeIndex;
+
+	/**
+	 * @param id
+	 *            the identifier of this member
+	 * @param bindAddress
+	 *            the local UDP address
+	 * @param publicHost
+	 *            the host name or IP address given to the other members
+	 * @param seeds
+	 *            the members contacted to join the cluster
+	 * @param configuration
+	 *            the parameters of the protocol
+	 * @param listener
+	 *            an optional listener
+	 * @throws SocketException
+	 *             if the socket cannot be bound
+	 */
+	public GossipMembership(String id, InetSocketAddress bindAddress,
+			String publicHost, Collection<InetSocketAddress> seeds,
+			GossipConfiguration configuration, GossipListener listener)
+			throws SocketException {
+		this.id = id;
+		this.socket = new DatagramSocket(bindAddress);
+		this.address = publicHost + ':' + socket.getLocalPort();
+		this.seeds = seeds == null ? Collections
+				.<InetSocketAddress> emptyList() : seeds;
+		this.listener = listener;
+		periodMs = GossipConfiguration.value(configuration.period_ms, 200);
+		ackTimeoutMs = GossipConfiguration.value(
+				configuration.ack_timeout_ms, periodMs / 5);
+		indirectProbes = GossipConfiguration.value(
+				configuration.indirect_probes, 3);
+		suspicionPeriods = GossipConfiguration.value(
+				configuration.suspicion_periods, 3);
+		retransmitMultiplier = GossipConfiguration.value(
+				configuration.retransmit_multiplier, 3);
+		members = new ConcurrentHashMap<String, GossipUpdate>();
+		endpoints = new ConcurrentHashMap<String, InetSocketAddress>();
+		suspects = new ConcurrentHashMap<String, Long>();
+		pendings = new ConcurrentHashMap<Long, Pending>();
+		broadcasts = new ConcurrentHashMap<String, Broadcast>();
+		seqs = new AtomicLong();
+		// A restarted member must override its previous incarnation
+		incarnation = System.currentTimeMillis();
+		probeList = new ArrayList<String>();
+		probeIndex = 0;
+		closed = false;
+		paused = false;
+		receiverThread = new Thread("Gossip receiver " + address) {
+			@Override
+			public void run() {
+				receive();
+			}
+		};
+		receiverThread.setDaemon(true);
+		proberThread = new Thread("Gossip prober " + address) {
+			@Override
+			public void run() {
+				probeLoop();
+			}
+		};
+		proberThread.setDaemon(true);
+	}
+
+	public void start() {
+		receiverThread.start();
+		proberThread.start();
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		socket.close();
+		proberThread.interrupt();
+	}
+
+	/**
+	 * Used by the tests to simulate a member which is wrongly declared dead
+	 * 
+	 * @param paused
+	 *            true to drop the messages and stop probing
+	 */
+	void setPaused(boolean paused) {
+		this.paused = paused;
+	}
+
+	/**
+	 * @return the identifier of this member
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * @return the gossip endpoint of this member: host:port
+	 */
+	public String getAddress() {
+		return address;
+	}
+
+	/**
+	 * @param memberId
+	 *            the identifier of a member
+	 * @return true if the member is alive or suspect
+	 */
+	public boolean isAlive(String memberId) {
+		GossipUpdate member = members.get(memberId);
+		return member != null && member.state != State.dead;
+	}
+
+	/**
+	 * @return the state of the known members
+	 */
+	public Map<String, State> getMembers() {
+		Map<String, State> states = new TreeMap<String, State>();
+		for (GossipUpdate member : members.values())
+			states.put(member.id, member.state);
+		return states;
+	}
+
+	private GossipUpdate self() {
+		return new GossipUpdate(id, address, State.alive, incarnation);
+	}
+
+	private int log2(int n) {
+		return 32 - Integer.numberOfLeadingZeros(n);
+	}
+
+	private void broadcast(GossipUpdate update) {
+		broadcasts.put(update.id, new Broadcast(update, retransmitMultiplier
+				* log2(members.size() + 1)));
+	}
+
+	/**
+	 * @return the state of this member followed by the pending updates
+	 */
+	private List<GossipUpdate> piggyback() {
+		List<GossipUpdate> updates = new ArrayList<GossipUpdate>(
+				MAX_PIGGYBACK + 1);
+		updates.add(self());
+		Iterator<Broadcast> iterator = broadcasts.values().iterator();
+		while (iterator.hasNext() && updates.size() <= MAX_PIGGYBACK) {
+			Broadcast broadcast = iterator.next();
+			updates.add(broadcast.update);
+			if (broadcast.remaining.decrementAndGet() <= 0)
+				broadcasts.remove(broadcast.update.id, broadcast);
+		}
+		return updates;
+	}
+
+	private static InetSocketAddress toEndpoint(String address) {
+		int i = address.lastIndexOf(':');
+		return new InetSocketAddress(address.substring(0, i),
+				Integer.parseInt(address.substring(i + 1)));
+	}
+
+	/**
+	 * Apply a membership update, following the rules of the protocol
+	 * 
+	 * @param update
+	 *            the update
+	 * @return true if the member was unknown
+	 */
+	private synchronized boolean apply(GossipUpdate update) {
+		if (update == null || update.id == null || update.state == null)
+			return false;
+		// Someone suspects me, I refute
+		if (id.equals(update.id)) {
+			if (update.state != State.alive && update.incarnation >= incarnation) {
+				incarnation = update.incarnation + 1;
+				broadcast(self());
+			}
+			return false;
+		}
+		GossipUpdate current = members.get(update.id);
+		if (!update.overrides(current))
+			return false;
+		members.put(update.id, update);
+		if (current == null || !update.address.equals(current.address))
+			endpoints.put(update.id, toEndpoint(update.address));
+		if (update.state == State.suspect)
+			suspects.put(update.id, System.currentTimeMillis());
+		else
+			suspects.remove(update.id);
+		broadcast(update);
+		boolean wasAlive = current != null && current.state != State.dead;
+		boolean isAlive = update.state != State.dead;
+		if (listener != null && wasAlive != isAlive) {
+			if (isAlive)
+				listener.onAlive(update.id);
+			else
+				listener.onDead(update.id);
+		}
+		if (logger.isDebugEnabled())
+			logger.debug(id + " learns " + update.id + " is " + update.state);
+		return current == null;
+	}
+
+	private void send(SocketAddress to, GossipMessage message) {
+		try {
+			byte[] bytes = mapper.writeValueAsBytes(message);
+			socket.send(new DatagramPacket(bytes, bytes.length, to));
+		} catch (IOException e) {
+			if (!closed)
+				logger.warn("Gossip send failure to " + to + ": "
+						+ e.getMessage());
+		}
+	}
+
+	private void receive() {
+		byte[] buffer = new byte[MAX_PACKET_SIZE];
+		while (!closed) {
+			try {
+				DatagramPacket packet = new DatagramPacket(buffer,
+						buffer.length);
+				socket.receive(packet);
+				if (paused)
+					continue;
+				handle(mapper.readValue(packet.getData(), packet.getOffset(),
+						packet.getLength(), GossipMessage.class),
+						packet.getSocketAddress());
+			} catch (IOException e) {
+				if (!closed)
+					logger.warn("Gossip receive failure: " + e.getMessage());
+			} catch (RuntimeException e) {
+				logger.warn(e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * @param sender
+	 *            the state announced by the sender of a message
+	 * @return our view of the sender if it is suspect or dead, else null
+	 */
+	private GossipUpdate refutable(GossipUpdate sender) {
+		if (sender == null || sender.id == null || id.equals(sender.id))
+			return null;
+		GossipUpdate current = members.get(sender.id);
+		return current == null || current.state == State.alive ? null
+				: current;
+	}
+
+	private void handle(GossipMessage message, SocketAddress from) {
+		if (message.type == null || message.updates == null
+				|| message.updates.isEmpty())
+			return;
+		boolean newMember = false;
+		for (int i = 0; i < message.updates.size(); i++) {
+			boolean unknown = apply(message.updates.get(i));
+			if (i == 0)
+				newMember = unknown;
+		}
+		// The sender talks to us although we hold it as suspect or dead. Its
+		// own update may have stopped spreading, we send it back so the
+		// sender refutes it with a new incarnation.
+		GossipUpdate refute = refutable(message.updates.get(0));
+		if (refute != null && message.type != GossipMessage.Type.ping) {
+			List<GossipUpdate> updates = piggyback();
+			updates.add(refute);
+			send(from, new GossipMessage(GossipMessage.Type.ping,
+					seqs.incrementAndGet(), null, updates));
+		}
+		switch (message.type) {
+		case ping:
+			List<GossipUpdate> updates = piggyback();
+			if (refute != null)
+				updates.add(refute);
+			// A new member receives the list of the members
+			if (newMember)
+				for (GossipUpdate member : members.values()) {
+					if (updates.size() >= MAX_SYNC)
+						break;
+					updates.add(member);
+				}
+			send(from, new GossipMessage(GossipMessage.Type.ack, message.seq,
+					null, updates));
+			break;
+		case ack:
+			Pending pending = pendings.remove(message.seq);
+			if (pending == null)
+				break;
+			if (pending.relayTo == null)
+				pending.latch.countDown();
+			else
+				send(pending.relayTo, new GossipMessage(GossipMessage.Type.ack,
+						pending.relaySeq, null, piggyback()));
+			break;
+		case ping_req:
+			InetSocketAddress target = message.target == null ? null
+					: endpoints.get(message.target);
+			if (target == null)
+				break;
+			long seq = seqs.incrementAndGet();
+			pendings.put(seq, new Pending(message.seq, from));
+			send(target, new GossipMessage(GossipMessage.Type.ping, seq, null,
+					piggyback()));
+			break;
+		}
+	}
+
+	/**
+	 * @return the next member to probe (randomized round robin)
+	 */
+	private String nextTarget() {
+		if (probeIndex >= probeList.size()) {
+			probeList.clear();
+			for (GossipUpdate member : members.values())
+				if (member.state != State.dead)
+					probeList.add(member.id);
+			Collections.shuffle(probeList, ThreadLocalRandom.current());
+			probeIndex = 0;
+		}
+		while (probeIndex < probeList.size()) {
+			String target = probeList.get(probeIndex++);
+			if (isAlive(target))
+				return target;
+		}
+		return null;
+	}
+
+	/**
+	 * Send a ping to a random dead member. If it was wrongly declared dead,
+	 * it answers and learns that it has to refute.
+	 */
+	private void probeDead() {
+		List<GossipUpdate> deads = new ArrayList<GossipUpdate>();
+		for (GossipUpdate member : members.values())
+			if (member.state == State.dead)
+				deads.add(member);
+		if (deads.isEmpty())
+			return;
+		GossipUpdate dead = deads.get(ThreadLocalRandom.current().nextInt(
+				deads.size()));
+		InetSocketAddress endpoint = endpoints.get(dead.id);
+		if (endpoint == null)
+			return;
+		List<GossipUpdate> updates = piggyback();
+		updates.add(dead);
+		send(endpoint, new GossipMessage(GossipMessage.Type.ping,
+				seqs.incrementAndGet(), null, updates));
+	}
+
+	private List<InetSocketAddress> randomHelpers(String target) {
+		List<String> candidates = new ArrayList<String>();
+		for (GossipUpdate member : members.values())
+			if (member.state == State.alive && !member.id.equals(target))
+				candidates.add(member.id);
+		Collections.shuffle(candidates, ThreadLocalRandom.current());
+		List<InetSocketAddress> helpers = new ArrayList<InetSocketAddress>(
+				indirectProbes);
+		for (String candidate : candidates) {
+			if (helpers.size() >= indirectProbes)
+				break;
+			InetSocketAddress endpoint = endpoints.get(candidate);
+			if (endpoint != null)
+				helpers.add(endpoint);
+		}
+		return helpers;
+	}
+
+	private void probe() throws InterruptedException {
+		// Once per round, we check that a dead member is really dead
+		if (probeIndex >= probeList.size())
+			probeDead();
+		String target = nextTarget();
+		if (target == null) {
+			// We know nobody, we try to join using the seeds
+			for (InetSocketAddress seed : seeds)
+				send(seed, new GossipMessage(GossipMessage.Type.ping,
+						seqs.incrementAndGet(), null, piggyback()));
+			return;
+		}
+		InetSocketAddress endpoint = endpoints.get(target);
+		long seq = seqs.incrementAndGet();
+		Pending pending = new Pending(0, null);
+		pendings.put(seq, pending);
+		try {
+			send(endpoint, new GossipMessage(GossipMessage.Type.ping, seq,
+					null, piggyback()));
+			if (pending.latch.await(ackTimeoutMs, TimeUnit.MILLISECONDS))
+				return;
+			// No answer, we ask other members to probe it
+			for (InetSocketAddress helper : randomHelpers(target))
+				send(helper, new GossipMessage(GossipMessage.Type.ping_req,
+						seq, target, piggyback()));
+			if (pending.latch.await(periodMs - ackTimeoutMs,
+					TimeUnit.MILLISECONDS))
+				return;
+		} finally {
+			pendings.remove(seq);
+		}
+		GossipUpdate member = members.get(target);
+		if (member != null && member.state == State.alive)
+			apply(new GossipUpdate(member.id, member.address, State.suspect,
+					member.incarnation));
+	}
+
+	/**
+	 * Declare dead the members suspected for too long, and forget the
+	 * expired relays.
+	 */
+	private void expire() {
+		long now = System.currentTimeMillis();
+		long suspicionTimeout = (long) suspicionPeriods
+				* log2(members.size() + 1) * periodMs;
+		for (Map.Entry<String, Long> entry : suspects.entrySet()) {
+			if (now - entry.getValue() < suspicionTimeout)
+				continue;
+			GossipUpdate member = members.get(entry.getKey());
+			if (member != null && member.state == State.suspect)
+				apply(new GossipUpdate(member.id, member.address, State.dead,
+						member.incarnation));
+		}
+		for (Map.Entry<Long, Pending> entry : pendings.entrySet())
+			if (now - entry.getValue().time > 2 * periodMs)
+				pendings.remove(entry.getKey(), entry.getValue());
+	}
+
+	private void probeLoop() {
+		while (!closed) {
+			try {
+				long start = System.currentTimeMillis();
+				if (!paused) {
+					probe();
+					expire();
+				}
+				long sleep = periodMs - (System.currentTimeMillis() - start);
+				if (sleep > 0)
+					Thread.sleep(sleep);
+			} catch (InterruptedException e) {
+				if (!closed)
+					logger.warn(e.getMessage(), e);
+			} catch (RuntimeException e) {
+				logger.warn(e.getMessage(), e);
+			}
+		}
+	}
+}
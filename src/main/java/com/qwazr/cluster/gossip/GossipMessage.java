@@ -0,0 +1,73 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.gossip;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+/**
+ * A datagram of the gossip protocol. The first update is always the state of
+ * the sender, the next ones are the piggybacked membership updates.
+ */
+@JsonInclude(Include.NON_NULL)
+public class GossipMessage {
+
+	public static enum Type {
+
+		/**
+		 * Direct probe
+		 */
+		ping,
+
+		/**
+		 * Answer to a ping
+		 */
+		ack,
+
+		/**
+		 * Ask another member to probe the target
+		 */
+		ping_req;
+	}
+
+	final public Type type;
+
+	final public long seq;
+
+	/**
+	 * The member to probe (ping_req)
+	 */
+	final public String target;
+
+	final public List<GossipUpdate> updates;
+
+	public GossipMessage() {
+		type = null;
+		seq = 0;
+		target = null;
+		updates = null;
+	}
+
+	public GossipMessage(Type type, long seq, String target,
+			List<GossipUpdate> updates) {
+		this.type = type;
+		this.seq = seq;
+		this.target = target;
+		this.updates = updates;
+	}
+}
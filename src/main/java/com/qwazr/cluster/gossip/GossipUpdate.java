@@ -0,0 +1,104 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.gossip;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+/**
+ * The state of a member, as disseminated by the gossip protocol
+ */
+@JsonInclude(Include.NON_NULL)
+public class GossipUpdate {
+
+	public static enum State {
+
+		/**
+		 * The member answers to the probes
+		 */
+		alive,
+
+		/**
+		 * The member did not answer to the direct and indirect probes
+		 */
+		suspect,
+
+		/**
+		 * The member has been suspected for too long
+		 */
+		dead;
+	}
+
+	/**
+	 * The identifier of the member (the address of the cluster node)
+	 */
+	final public String id;
+
+	/**
+	 * The gossip endpoint of the member: host:port
+	 */
+	final public String address;
+
+	final public State state;
+
+	/**
+	 * Only the member itself increments its incarnation, to refute a
+	 * suspicion
+	 */
+	final public long incarnation;
+
+	public GossipUpdate() {
+		id = null;
+		address = null;
+		state = null;
+		incarnation = 0;
+	}
+
+	public GossipUpdate(String id, String address, State state,
+			long incarnation) {
+		this.id = id;
+		this.address = address;
+		this.state = state;
+		this.incarnation = incarnation;
+	}
+
+	/**
+	 * Apply the rules of the SWIM protocol
+	 * 
+	 * @param current
+	 *            the current state of the member, or null if unknown
+	 * @return true if this update overrides the current state
+	 */
+	boolean overrides(GossipUpdate current) {
+		if (current == null)
+			return true;
+		switch (state) {
+		case alive:
+			return incarnation > current.incarnation;
+		case suspect:
+			if (current.state == State.alive)
+				return incarnation >= current.incarnation;
+			if (current.state == State.suspect)
+				return incarnation > current.incarnation;
+			return false;
+		case dead:
+			return current.state != State.dead
+					&& incarnation >= current.incarnation;
+		default:
+			return false;
+		}
+	}
+}
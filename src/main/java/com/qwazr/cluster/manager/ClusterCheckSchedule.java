@@ -0,0 +1,181 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.manager;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The health check schedule of one node. A new or flapping node is checked
+ * often, a stable node less often, and an unreachable node backs off
+ * exponentially. Each delay is jittered so the checks are spread over time.
+ */
+class ClusterCheckSchedule {
+
+	/**
+	 * The delay for a new or flapping node
+	 */
+	final static long FAST_MS = 5000;
+
+	/**
+	 * The delay for an online node which is not yet stable
+	 */
+	final static long BASE_MS = 30000;
+
+	/**
+	 * The delay for a stable node
+	 */
+	final static long STABLE_MS = 120000;
+
+	/**
+	 * The maximum delay for an unreachable node
+	 */
+	final static long MAX_BACKOFF_MS = 300000;
+
+	/**
+	 * The number of successful checks after which a node is stable
+	 */
+	final static int STABLE_CHECKS = 5;
+
+	/**
+	 * A node which switched between online and offline during this window is
+	 * flapping
+	 */
+	final static long FLAPPING_WINDOW_MS = 300000;
+
+	/**
+	 * The jitter, as a fraction of the delay (+/-)
+	 */
+	final static double JITTER = 0.2;
+
+	private int successes;
+	private int failures;
+	private long lastTransition;
+	private volatile long nextCheck;
+
+	/**
+	 * The time the running (or the latest) check was due
+	 */
+	private long due;
+
+	/**
+	 * The time the first check after the latest success was due
+	 */
+	private long expected;
+
+	ClusterCheckSchedule() {
+		successes = 0;
+		failures = 0;
+		lastTransition = 0;
+		due = 0;
+		expected = 0;
+		// The first check is spread over the fast delay
+		nextCheck = System.currentTimeMillis()
+				+ ThreadLocalRandom.current().nextLong(FAST_MS);
+	}
+
+	/**
+	 * @param now
+	 *            the current time
+	 * @return true if the check is due. The node is not rescheduled until
+	 *         the result of the check is known.
+	 */
+	synchronized boolean isDue(long now) {
+		if (now < nextCheck)
+			return false;
+		due = nextCheck;
+		nextCheck = Long.MAX_VALUE;
+		return true;
+	}
+
+	/**
+	 * @return the time the running (or the latest) check was due
+	 */
+	synchronized long getDue() {
+		return due;
+	}
+
+	/**
+	 * @return the time the first check after the latest success was due, or
+	 *         0 if no check succeeded
+	 */
+	synchronized long getExpected() {
+		return expected;
+	}
+
+	/**
+	 * Check a node loaded from the registry or from another master at once.
+	 * Nothing is done if a check is running.
+	 * 
+	 * @param now
+	 *            the current time
+	 */
+	synchronized void checkNow(long now) {
+		if (nextCheck != Long.MAX_VALUE && nextCheck > now)
+			nextCheck = now;
+	}
+
+	/**
+	 * Schedule the next check after a result
+	 * 
+	 * @param online
+	 *            the result of the check
+	 * @param transition
+	 *            true if the node switched between online and offline
+	 * @param now
+	 *            the current time
+	 */
+	synchronized void checked(boolean online, boolean transition, long now) {
+		if (transition)
+			lastTransition = now;
+		long delay;
+		if (online) {
+			failures = 0;
+			successes++;
+			if (now - lastTransition < FLAPPING_WINDOW_MS)
+				delay = FAST_MS;
+			else if (successes < STABLE_CHECKS)
+				delay = BASE_MS;
+			else
+				delay = STABLE_MS;
+		} else {
+			successes = 0;
+			failures++;
+			// FAST_MS, then doubled at each failure
+			delay = failures > 16 ? MAX_BACKOFF_MS : Math.min(MAX_BACKOFF_MS,
+					FAST_MS << (failures - 1));
+		}
+		nextCheck = now + jitter(delay);
+		// The suspicion grows from the time the next answer is expected
+		if (online)
+			expected = nextCheck;
+	}
+
+	/**
+	 * Retry soon, when a check did not give any result
+	 * 
+	 * @param now
+	 *            the current time
+	 */
+	synchronized void retry(long now) {
+		nextCheck = now + jitter(FAST_MS);
+	}
+
+	private static long jitter(long delay) {
+		long range = (long) (delay * JITTER);
+		return delay - range
+				+ ThreadLocalRandom.current().nextLong(2 * range + 1);
+	}
+}
@@ -21,13 +21,42 @@ import java.util.Set;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import com.qwazr.cluster.gossip.GossipConfiguration;
 
 public class ClusterConfiguration {
 
 	public final Set<String> masters;
 
+	/**
+	 * If set, the nodes are monitored by the gossip membership instead of the
+	 * periodic checks of the masters
+	 */
+	public final GossipConfiguration gossip;
+
+	/**
+	 * A node which fails a check stays active until its suspicion level (phi)
+	 * reaches this threshold
+	 */
+	public final Double phi_threshold;
+
+	/**
+	 * The maximum time spent unregistering from the masters when the server
+	 * stops
+	 */
+	public final Integer shutdown_budget_ms;
+
+	/**
+	 * If set, the node registers with a lease of this duration and renews it
+	 * with heartbeats. The masters do not check a leased node.
+	 */
+	public final Integer lease_ms;
+
 	public ClusterConfiguration() {
 		masters = null;
+		gossip = null;
+		phi_threshold = null;
+		shutdown_budget_ms = null;
+		lease_ms = null;
 	}
 
 	public static ClusterConfiguration newInstance(File clusterConfigurationFile)
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.manager;
+
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * The digest of the registrations, used to compare the masters. The nodes are
+ * dispatched in buckets by address. The hash of a bucket is the sum of the
+ * hashes of its nodes, so it is updated incrementally. The root hash is
+ * computed from the hashes of the buckets. The functions only use the address
+ * and the services, they give the same results on every master.
+ */
+final class ClusterDigest {
+
+	final static int BUCKETS = 256;
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * @param h
+	 *            the seed
+	 * @param value
+	 *            the string to hash
+	 * @return a 64 bits hash
+	 */
+	static long hash(long h, String value) {
+		for (int i = 0; i < value.length(); i++)
+			h = 31 * h + value.charAt(i);
+		return mix(h);
+	}
+
+	/**
+	 * @param address
+	 *            the address of the node
+	 * @return the bucket of the node
+	 */
+	static int bucket(String address) {
+		return (int) (hash(0, address) & (BUCKETS - 1));
+	}
+
+	/**
+	 * @param address
+	 *            the address of the node
+	 * @param services
+	 *            the services of the node
+	 * @return the hash of the registration, or 0 if the node has no service
+	 */
+	static long hash(String address, Set<String> services) {
+		if (services == null || services.isEmpty())
+			return 0;
+		String[] sortedServices = services.toArray(new String[services
+				.size()]);
+		Arrays.sort(sortedServices);
+		long h = hash(1, address);
+		for (String service : sortedServices)
+			h = hash(h, service);
+		return h;
+	}
+
+	/**
+	 * @param buckets
+	 *            the hashes of the buckets
+	 * @return the root hash
+	 */
+	static long root(long[] buckets) {
+		long h = 0;
+		for (long bucket : buckets)
+			h = mix(31 * h + bucket);
+		return h;
+	}
+}
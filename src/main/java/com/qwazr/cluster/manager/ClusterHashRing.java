@@ -0,0 +1,133 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.manager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An immutable consistent hash ring. Each node is placed at
+ * {@link #VIRTUAL_NODES} points of the ring. Adding or removing a node merges
+ * or filters its points without rehashing the other nodes, and only the keys
+ * of this node are remapped. The hashes only depend on the addresses, so
+ * every master gives the same answer.
+ */
+final class ClusterHashRing {
+
+	/**
+	 * The number of points of each node
+	 */
+	final static int VIRTUAL_NODES = 128;
+
+	static final ClusterHashRing EMPTY = new ClusterHashRing(new long[0],
+			new ClusterNode[0], 0);
+
+	private final long[] points;
+	private final ClusterNode[] nodes;
+
+	/**
+	 * The number of distinct nodes
+	 */
+	final int size;
+
+	private ClusterHashRing(long[] points, ClusterNode[] nodes, int size) {
+		this.points = points;
+		this.nodes = nodes;
+		this.size = size;
+	}
+
+	/**
+	 * @param key
+	 *            any key
+	 * @return the position of the key on the ring
+	 */
+	static long hash(String key) {
+		return ClusterDigest.hash(0, key);
+	}
+
+	/**
+	 * @param node
+	 *            the node to add
+	 * @return a new ring containing the points of the node
+	 */
+	ClusterHashRing add(ClusterNode node) {
+		long[] nodePoints = new long[VIRTUAL_NODES];
+		for (int i = 0; i < VIRTUAL_NODES; i++)
+			nodePoints[i] = ClusterDigest.hash(i + 1, node.address);
+		Arrays.sort(nodePoints);
+		// Merge the two sorted arrays
+		int length = points.length + VIRTUAL_NODES;
+		long[] newPoints = new long[length];
+		ClusterNode[] newNodes = new ClusterNode[length];
+		int i = 0, j = 0;
+		for (int k = 0; k < length; k++) {
+			if (j == VIRTUAL_NODES
+					|| (i < points.length && points[i] <= nodePoints[j])) {
+				newPoints[k] = points[i];
+				newNodes[k] = nodes[i++];
+			} else {
+				newPoints[k] = nodePoints[j++];
+				newNodes[k] = node;
+			}
+		}
+		return new ClusterHashRing(newPoints, newNodes, size + 1);
+	}
+
+	/**
+	 * @param node
+	 *            the node to remove
+	 * @return a new ring without the points of the node
+	 */
+	ClusterHashRing remove(ClusterNode node) {
+		if (size <= 1)
+			return EMPTY;
+		int length = points.length - VIRTUAL_NODES;
+		long[] newPoints = new long[length];
+		ClusterNode[] newNodes = new ClusterNode[length];
+		int k = 0;
+		for (int i = 0; i < points.length; i++) {
+			if (nodes[i].address.equals(node.address))
+				continue;
+			newPoints[k] = points[i];
+			newNodes[k++] = nodes[i];
+		}
+		return new ClusterHashRing(newPoints, newNodes, size - 1);
+	}
+
+	/**
+	 * @param key
+	 *            any key
+	 * @param replicas
+	 *            the number of nodes
+	 * @return the distinct nodes following the key on the ring
+	 */
+	List<ClusterNode> lookup(String key, int replicas) {
+		replicas = Math.min(replicas, size);
+		List<ClusterNode> result = new ArrayList<ClusterNode>(replicas);
+		if (replicas <= 0)
+			return result;
+		int i = Arrays.binarySearch(points, hash(key));
+		if (i < 0)
+			i = -i - 1;
+		for (int n = 0; n < points.length && result.size() < replicas; n++) {
+			ClusterNode node = nodes[(i + n) % points.length];
+			if (!result.contains(node))
+				result.add(node);
+		}
+		return result;
+	}
+}
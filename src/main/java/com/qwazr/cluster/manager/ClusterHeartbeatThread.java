@@ -0,0 +1,86 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.manager;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.qwazr.cluster.client.ClusterFanOutResult;
+import com.qwazr.cluster.client.ClusterMultiClient;
+import com.qwazr.cluster.service.ClusterNodeRegisterJson;
+import com.qwazr.utils.threads.PeriodicThread;
+
+/**
+ * Renew the lease of this node on every master, three times per lease. A
+ * master which does not know the node (restarted, or the node has been
+ * unregistered) answers 404, the node registers again.
+ */
+public class ClusterHeartbeatThread extends PeriodicThread {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(ClusterHeartbeatThread.class);
+
+	private final ClusterMultiClient clusterClient;
+
+	private final ClusterNodeRegisterJson register;
+
+	private final long deadlineMs;
+
+	private volatile boolean closed;
+
+	ClusterHeartbeatThread(ClusterMultiClient clusterClient,
+			ClusterNodeRegisterJson register) {
+		super("Lease heartbeat", Math.max(1, register.lease_ms / 3000));
+		this.clusterClient = clusterClient;
+		this.register = register;
+		// A heartbeat should not overlap the next one
+		this.deadlineMs = Math.max(1000, register.lease_ms / 3);
+		this.closed = false;
+		setDaemon(true);
+		start();
+	}
+
+	@Override
+	protected void runner() {
+		if (closed)
+			return;
+		ClusterFanOutResult<Response> result = clusterClient.heartbeatAll(
+				register.address, deadlineMs);
+		for (ClusterFanOutResult.MasterResult<Response> master : result.masters) {
+			if (closed)
+				return;
+			if (!master.success
+					|| master.result.getStatus() != Status.NOT_FOUND
+							.getStatusCode())
+				continue;
+			logger.info("Registering again, the lease is unknown by "
+					+ master.master);
+			clusterClient.registerAll(register, deadlineMs);
+			return;
+		}
+	}
+
+	/**
+	 * Stop the heartbeats
+	 */
+	void close() {
+		closed = true;
+		interrupt();
+	}
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.manager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.qwazr.cluster.service.ClusterChangeJson;
+import com.qwazr.cluster.service.ClusterChangeListener;
+import com.qwazr.cluster.service.ClusterChangesJson;
+
+/**
+ * A bounded journal of the changes of the cluster. The latest changes are
+ * kept in a ring buffer, the oldest are overwritten. Each change is also
+ * pushed to the registered listeners.
+ */
+class ClusterJournal {
+
+	private final ClusterChangeJson[] ring;
+
+	private long lastSeq;
+
+	private final CopyOnWriteArrayList<ClusterChangeListener> listeners;
+
+	ClusterJournal(int size) {
+		ring = new ClusterChangeJson[size];
+		lastSeq = 0;
+		listeners = new CopyOnWriteArrayList<ClusterChangeListener>();
+	}
+
+	/**
+	 * Append a change to the journal and notify the listeners
+	 * 
+	 * @param type
+	 *            the type of the change
+	 * @param node
+	 *            the node which changed
+	 * @param previousServices
+	 *            the services of the node before a services change
+	 */
+	synchronized void add(ClusterChangeJson.Type type, ClusterNode node,
+			Set<String> previousServices) {
+		lastSeq++;
+		boolean transition = type == ClusterChangeJson.Type.active
+				|| type == ClusterChangeJson.Type.inactive;
+		ClusterChangeJson change = new ClusterChangeJson(lastSeq, type,
+				node.address, node.services, previousServices,
+				transition ? node.getStatus() : null);
+		ring[(int) (lastSeq % ring.length)] = change;
+		for (ClusterChangeListener listener : listeners)
+			if (!listener.onChange(change))
+				listeners.remove(listener);
+	}
+
+	void addListener(ClusterChangeListener listener) {
+		listeners.add(listener);
+	}
+
+	void removeListener(ClusterChangeListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * @param instance
+	 *            the identifier of the master
+	 * @param since
+	 *            the sequence number of the latest change known by the client
+	 * @return the changes after the given sequence number. If they are not
+	 *         available anymore, the full snapshot flag is set.
+	 */
+	synchronized ClusterChangesJson getChanges(String instance, long since) {
+		long first = Math.max(1, lastSeq - ring.length + 1);
+		if (since > lastSeq || since + 1 < first)
+			return new ClusterChangesJson(instance, lastSeq, null);
+		List<ClusterChangeJson> changes = new ArrayList<ClusterChangeJson>(
+				(int) (lastSeq - since));
+		for (long seq = since + 1; seq <= lastSeq; seq++)
+			changes.add(ring[(int) (seq % ring.length)]);
+		return new ClusterChangesJson(instance, lastSeq, changes);
+	}
+
+	/**
+	 * @param instance
+	 *            the identifier of the master
+	 * @return an empty result with the full snapshot flag set
+	 */
+	synchronized ClusterChangesJson getFullSnapshot(String instance) {
+		return new ClusterChangesJson(instance, lastSeq, null);
+	}
+}
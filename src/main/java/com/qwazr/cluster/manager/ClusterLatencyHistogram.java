@@ -0,0 +1,166 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.manager;
+
+import java.util.Arrays;
+
+import com.qwazr.cluster.service.ClusterLatencyJson;
+
+/**
+ * A latency histogram over a rolling window. The buckets are log-linear (16
+ * sub-buckets per power of two, as in HdrHistogram), so the precision is
+ * about 6% whatever the latency. The window is made of two slots which are
+ * reused in turn: recording never allocates.
+ */
+class ClusterLatencyHistogram {
+
+	private final static int SUB_BITS = 4;
+	private final static int SUB_COUNT = 1 << SUB_BITS;
+
+	/**
+	 * From 0 to 2^31 ms
+	 */
+	final static int BUCKETS = (32 - SUB_BITS + 1) * SUB_COUNT;
+
+	/**
+	 * The duration of one slot. The window covers between one and two slots.
+	 */
+	final static long SLOT_MS = 300000;
+
+	private static class Slot {
+
+		private final int[] counts = new int[BUCKETS];
+		private long epoch = -1;
+		private long max = 0;
+
+		private void reset(long newEpoch) {
+			Arrays.fill(counts, 0);
+			epoch = newEpoch;
+			max = 0;
+		}
+	}
+
+	private final Slot[] slots;
+
+	ClusterLatencyHistogram() {
+		slots = new Slot[] { new Slot(), new Slot() };
+	}
+
+	static int bucket(long value) {
+		if (value < SUB_COUNT)
+			return value < 0 ? 0 : (int) value;
+		if (value > Integer.MAX_VALUE)
+			value = Integer.MAX_VALUE;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+		return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+	}
+
+	/**
+	 * @param bucket
+	 *            the index of a bucket
+	 * @return the highest value stored in the bucket
+	 */
+	static long highestValue(int bucket) {
+		if (bucket < SUB_COUNT)
+			return bucket;
+		int exponent = bucket / SUB_COUNT + SUB_BITS - 1;
+		int sub = bucket % SUB_COUNT;
+		long lowest = (long) (SUB_COUNT + sub) << (exponent - SUB_BITS);
+		return lowest + (1L << (exponent - SUB_BITS)) - 1;
+	}
+
+	/**
+	 * @param time
+	 *            the time of the measure
+	 * @param latency
+	 *            the latency in milliseconds
+	 */
+	synchronized void record(long time, long latency) {
+		long epoch = time / SLOT_MS;
+		Slot slot = slots[(int) (epoch & 1)];
+		if (slot.epoch != epoch)
+			slot.reset(epoch);
+		slot.counts[bucket(latency)]++;
+		if (latency > slot.max)
+			slot.max = latency;
+	}
+
+	/**
+	 * Add the counts of the current window
+	 * 
+	 * @param time
+	 *            the current time
+	 * @param counts
+	 *            the counts to increment
+	 * @return the maximum latency of the window
+	 */
+	synchronized long addTo(long time, long[] counts) {
+		long epoch = time / SLOT_MS;
+		long max = 0;
+		for (Slot slot : slots) {
+			if (slot.epoch < epoch - 1)
+				continue;
+			for (int i = 0; i < BUCKETS; i++)
+				counts[i] += slot.counts[i];
+			if (slot.max > max)
+				max = slot.max;
+		}
+		return max;
+	}
+
+	/**
+	 * @param time
+	 *            the current time
+	 * @return the percentiles of the current window, or null if there is no
+	 *         measure
+	 */
+	ClusterLatencyJson getLatency(long time) {
+		long[] counts = new long[BUCKETS];
+		return toJson(counts, addTo(time, counts));
+	}
+
+	private static long percentile(long[] counts, long total, double ratio,
+			long max) {
+		long rank = Math.max(1, (long) Math.ceil(total * ratio));
+		long cumulated = 0;
+		for (int i = 0; i < counts.length; i++) {
+			cumulated += counts[i];
+			if (cumulated >= rank)
+				return Math.min(highestValue(i), max);
+		}
+		return max;
+	}
+
+	/**
+	 * @param counts
+	 *            the counts of each bucket
+	 * @param max
+	 *            the maximum latency
+	 * @return the percentiles, or null if there is no measure
+	 */
+	static ClusterLatencyJson toJson(long[] counts, long max) {
+		long total = 0;
+		for (long count : counts)
+			total += count;
+		if (total == 0)
+			return null;
+		return new ClusterLatencyJson(total,
+				percentile(counts, total, 0.5, max), percentile(counts,
+						total, 0.9, max), percentile(counts, total, 0.99, max),
+				max);
+	}
+}
@@ -0,0 +1,54 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.manager;
+
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.qwazr.utils.threads.PeriodicThread;
+
+/**
+ * Move the lease wheel forward and mark the nodes whose lease expired as
+ * unreachable.
+ */
+public class ClusterLeaseThread extends PeriodicThread {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(ClusterLeaseThread.class);
+
+	private final ClusterLeaseWheel leaseWheel;
+
+	ClusterLeaseThread(int monitoring_period_seconds,
+			ClusterLeaseWheel leaseWheel) {
+		super("Lease expiry", monitoring_period_seconds);
+		this.leaseWheel = leaseWheel;
+		setDaemon(true);
+		start();
+	}
+
+	@Override
+	protected void runner() {
+		long now = System.currentTimeMillis();
+		List<ClusterNode> expired = leaseWheel.advance(now);
+		if (expired == null)
+			return;
+		logger.info(expired.size() + " lease(s) expired");
+		for (ClusterNode node : expired)
+			node.leaseExpired(now);
+	}
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.manager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hashed timing wheel which expires the leases of the nodes. A node is
+ * stored in the slot of the tick of its expiry. A renewal only moves the
+ * expiry time of the node: when its slot comes, the wheel checks the time
+ * and stores the node again if the lease has been renewed. So a lease is
+ * examined about once per duration, whatever the number of renewals, and a
+ * tick only reads one slot.
+ */
+class ClusterLeaseWheel {
+
+	/**
+	 * The resolution of the wheel
+	 */
+	final static long TICK_MS = 1000;
+
+	/**
+	 * The number of slots, a power of two. A longer lease stays in its slot
+	 * for several rounds.
+	 */
+	final static int SLOTS = 512;
+
+	private final static int MASK = SLOTS - 1;
+
+	private final List<List<ClusterNode>> slots;
+
+	/**
+	 * The next tick to process
+	 */
+	private long nextTick;
+
+	ClusterLeaseWheel(long time) {
+		slots = new ArrayList<List<ClusterNode>>(SLOTS);
+		for (int i = 0; i < SLOTS; i++)
+			slots.add(new ArrayList<ClusterNode>(0));
+		nextTick = time / TICK_MS;
+	}
+
+	/**
+	 * Store the node in the slot of its expiry. Nothing is done if the node
+	 * is already in the wheel at an earlier tick, which is the case of a
+	 * renewal. A shorter lease moves the node to an earlier slot, the entry
+	 * left in the former slot is dropped when this slot comes.
+	 * 
+	 * @param node
+	 *            a leased node
+	 */
+	synchronized void schedule(ClusterNode node) {
+		// The lease expires after the end of its tick
+		long tick = Math.max(node.getLeaseExpiry() / TICK_MS + 1, nextTick);
+		if (node.leaseScheduled && node.leaseTick <= tick)
+			return;
+		node.leaseTick = tick;
+		node.leaseScheduled = true;
+		slots.get((int) (tick & MASK)).add(node);
+	}
+
+	/**
+	 * Process the ticks up to the given time
+	 * 
+	 * @param time
+	 *            the current time
+	 * @return the nodes whose lease expired, or null if there is none
+	 */
+	synchronized List<ClusterNode> advance(long time) {
+		long lastTick = time / TICK_MS;
+		if (lastTick < nextTick)
+			return null;
+		// After a long pause, each slot is read only once
+		long count = Math.min(lastTick - nextTick + 1, SLOTS);
+		List<ClusterNode> expired = null;
+		List<ClusterNode> renewed = null;
+		for (long tick = nextTick; tick < nextTick + count; tick++) {
+			int index = (int) (tick & MASK);
+			List<ClusterNode> slot = slots.get(index);
+			if (slot.isEmpty())
+				continue;
+			List<ClusterNode> kept = new ArrayList<ClusterNode>(0);
+			for (ClusterNode node : slot) {
+				// The node has been moved to another slot, or already done
+				if (!node.leaseScheduled || (node.leaseTick & MASK) != index)
+					continue;
+				// Due at a later round
+				if (node.leaseTick > lastTick) {
+					kept.add(node);
+					continue;
+				}
+				node.leaseScheduled = false;
+				// The node registered again without a lease
+				if (!node.isLeased())
+					continue;
+				if (node.getLeaseExpiry() > time) {
+					if (renewed == null)
+						renewed = new ArrayList<ClusterNode>();
+					renewed.add(node);
+				} else {
+					if (expired == null)
+						expired = new ArrayList<ClusterNode>();
+					expired.add(node);
+				}
+			}
+			slots.set(index, kept);
+		}
+		nextTick = lastTick + 1;
+		if (renewed != null)
+			for (ClusterNode node : renewed)
+				schedule(node);
+		return expired;
+	}
+}
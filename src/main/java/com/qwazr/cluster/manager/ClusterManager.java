@@ -17,8 +17,11 @@ package com.qwazr.cluster.manager;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
@@ -28,6 +31,16 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.ws.rs.core.Response.Status;
 
@@ -35,13 +48,26 @@ import org.apache.commons.lang3.RandomUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.qwazr.cluster.client.ClusterFanOutResult;
 import com.qwazr.cluster.client.ClusterMultiClient;
 import com.qwazr.cluster.client.ClusterSingleClient;
+import com.qwazr.cluster.gossip.GossipConfiguration;
+import com.qwazr.cluster.gossip.GossipListener;
+import com.qwazr.cluster.gossip.GossipMembership;
 import com.qwazr.cluster.manager.ClusterNodeSet.Cache;
+import com.qwazr.cluster.service.ClusterBulkResultJson;
+import com.qwazr.cluster.service.ClusterChangeListener;
+import com.qwazr.cluster.service.ClusterChangesJson;
+import com.qwazr.cluster.service.ClusterDigestJson;
+import com.qwazr.cluster.service.ClusterLatencyJson;
 import com.qwazr.cluster.service.ClusterNodeRegisterJson;
 import com.qwazr.cluster.service.ClusterNodeStatusJson;
+import com.qwazr.cluster.service.ClusterNodeStatusJson.State;
+import com.qwazr.cluster.service.ClusterSelectionStrategy;
+import com.qwazr.cluster.service.ClusterServiceLatencyJson;
 import com.qwazr.cluster.service.ClusterServiceStatusJson;
 import com.qwazr.cluster.service.ClusterServiceStatusJson.StatusEnum;
+import com.qwazr.cluster.service.ClusterStatusJson;
 import com.qwazr.utils.server.AbstractServer;
 import com.qwazr.utils.server.ServerException;
 import com.qwazr.utils.threads.PeriodicThread;
@@ -60,11 +86,14 @@ public class ClusterManager {
 		try {
 			INSTANCE = new ClusterManager(server, directory, configurationFile);
 			if (INSTANCE.isMaster()) {
-				// First, we get the node list from another master (if any)
-				ClusterManager.INSTANCE.loadNodesFromOtherMaster();
-				// All is set, let's start the monitoring
+				// We serve at once with the restored nodes, and check them
 				INSTANCE.startMonitoringThread();
-			}
+				// The other masters are reconciled in the background
+				INSTANCE.startReconciliation();
+			} else
+				INSTANCE.ready = true;
+			if (INSTANCE.gossipMembership != null)
+				INSTANCE.gossipMembership.start();
 		} catch (URISyntaxException e) {
 			throw new IOException(e);
 		}
@@ -74,6 +103,12 @@ public class ClusterManager {
 
 	public static final String CLUSTER_CONFIGURATION_NAME = "cluster.yaml";
 
+	/**
+	 * The subdirectory of the data directory where a master persists its
+	 * registry
+	 */
+	public static final String CLUSTER_REGISTRY_DIRECTORY = "cluster-registry";
+
 	private static final String CLUSTER_CONF_PATH = System
 			.getProperty("com.qwazr.cluster.conf");
 
@@ -83,6 +118,17 @@ public class ClusterManager {
 
 	private final ClusterMultiClient clusterClient;
 
+	/**
+	 * The clients of the other masters, reused to keep their ETags
+	 */
+	private final Map<String, ClusterSingleClient> otherMasterClients;
+
+	/**
+	 * For each other master, the buckets already loaded: the hash of the
+	 * bucket of the other master combined with our hash once it was applied
+	 */
+	private final Map<String, Map<Integer, Long>> reconciledBuckets;
+
 	public final String myAddress;
 
 	private List<PeriodicThread> periodicThreads = null;
@@ -91,10 +137,102 @@ public class ClusterManager {
 
 	private final boolean isMaster;
 
+	/**
+	 * The default suspicion threshold of the failure detector
+	 */
+	public final static double DEFAULT_PHI_THRESHOLD = 8;
+
+	private final double phiThreshold;
+
+	/**
+	 * The default time spent unregistering when the server stops
+	 */
+	public final static int DEFAULT_SHUTDOWN_BUDGET_MS = 5000;
+
+	private final int shutdownBudgetMs;
+
+	/**
+	 * The timeout of the requests sent to the masters
+	 */
+	private final static int CLIENT_TIMEOUT_MS = 60000;
+
+	/**
+	 * The timeout of the requests sent to the other masters by a master
+	 */
+	private final static int SYNC_TIMEOUT_MS = 5000;
+
+	/**
+	 * The maximum duration of a synchronization with the other masters (a
+	 * digest, then the nodes)
+	 */
+	private final static int SYNC_DEADLINE_MS = 2 * SYNC_TIMEOUT_MS;
+
+	private final static ExecutorService syncExecutor = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "Master sync");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/**
+	 * True when the first reconciliation with the other masters is done
+	 */
+	private volatile boolean ready = false;
+
+	/**
+	 * The gossip membership, if configured
+	 */
+	private final GossipMembership gossipMembership;
+
+	/**
+	 * Identify this instance in the ETags, as the epochs of two masters (or
+	 * of a restarted master) are not comparable
+	 */
+	private final String instanceId;
+
+	/**
+	 * Incremented each time the status of an offline node is updated
+	 */
+	private final AtomicLong statusEpoch;
+
+	/**
+	 * Incremented each time a latency is recorded
+	 */
+	private final AtomicLong latencyEpoch;
+
+	/**
+	 * The shortest lease accepted by a master
+	 */
+	public final static int MIN_LEASE_MS = 3000;
+
+	/**
+	 * The duration of the lease of this node, or null if the node is checked
+	 * by the masters
+	 */
+	private final Integer leaseMs;
+
+	/**
+	 * Expire the leases of the registered nodes, only used by a master
+	 */
+	private final ClusterLeaseWheel leaseWheel;
+
+	/**
+	 * Renew the lease of this node
+	 */
+	private ClusterHeartbeatThread heartbeatThread = null;
+
 	private ClusterManager(AbstractServer server, File rootDirectory,
 			File configurationFile) throws IOException, URISyntaxException {
 		myAddress = ClusterNode.toAddress(server.getWebServicePublicAddress());
 		logger.info("Server: " + myAddress);
+		instanceId = Integer.toHexString(RandomUtils.nextInt(0,
+				Integer.MAX_VALUE));
+		statusEpoch = new AtomicLong();
+		latencyEpoch = new AtomicLong();
 
 		// Look for the configuration file
 		File clusterConfigurationFile = configurationFile;
@@ -109,6 +247,15 @@ public class ClusterManager {
 		ClusterConfiguration clusterConfiguration = ClusterConfiguration
 				.newInstance(clusterConfigurationFile);
 
+		phiThreshold = clusterConfiguration == null
+				|| clusterConfiguration.phi_threshold == null ? DEFAULT_PHI_THRESHOLD
+				: clusterConfiguration.phi_threshold;
+		shutdownBudgetMs = clusterConfiguration == null
+				|| clusterConfiguration.shutdown_budget_ms == null ? DEFAULT_SHUTDOWN_BUDGET_MS
+				: clusterConfiguration.shutdown_budget_ms;
+		leaseMs = clusterConfiguration == null ? null
+				: clusterConfiguration.lease_ms;
+
 		// No configuration file ? Okay, we are a simple node
 		if (clusterConfiguration == null
 				|| clusterConfiguration.masters == null
@@ -116,6 +263,10 @@ public class ClusterManager {
 			clusterMasterSet = null;
 			clusterNodeMap = null;
 			clusterClient = null;
+			otherMasterClients = null;
+			reconciledBuckets = null;
+			gossipMembership = null;
+			leaseWheel = null;
 			isMaster = false;
 			logger.info("No cluster configuration. This node is not part of a cluster.");
 			return;
@@ -133,37 +284,254 @@ public class ClusterManager {
 				logger.info("I am a master!");
 			}
 		}
-		clusterClient = new ClusterMultiClient(clusterMasterSet, 60000);
+		clusterClient = new ClusterMultiClient(clusterMasterSet,
+				CLIENT_TIMEOUT_MS);
 		this.isMaster = isMaster;
+		gossipMembership = newGossipMembership(clusterConfiguration.gossip);
 		if (!isMaster) {
 			clusterNodeMap = null;
+			otherMasterClients = null;
+			reconciledBuckets = null;
+			leaseWheel = null;
 			isMaster = false;
 			return;
 		}
 
+		otherMasterClients = new LinkedHashMap<String, ClusterSingleClient>();
+		reconciledBuckets = new ConcurrentHashMap<String, Map<Integer, Long>>();
+		for (String master : clusterMasterSet) {
+			if (master == myAddress)
+				continue;
+			otherMasterClients.put(master, new ClusterSingleClient(master,
+					SYNC_TIMEOUT_MS));
+			reconciledBuckets.put(master,
+					new ConcurrentHashMap<Integer, Long>());
+		}
+
 		// We load the cluster node map
 		clusterNodeMap = new ClusterNodeMap();
+		if (rootDirectory != null) {
+			clusterNodeMap.restore(new ClusterRegistryStore(new File(
+					rootDirectory, CLUSTER_REGISTRY_DIRECTORY)));
+			Runtime.getRuntime().addShutdownHook(
+					new Thread(clusterNodeMap::closeStore, "Registry close"));
+		}
+		leaseWheel = new ClusterLeaseWheel(System.currentTimeMillis());
 	}
 
 	/**
-	 * Load the node list from another master
+	 * Every node of the cluster is a member. The masters are the seeds, they
+	 * listen to the membership to update the status of the nodes.
+	 * 
+	 * @param gossip
+	 *            the gossip configuration
+	 * @return the membership, or null if the gossip is not configured
+	 * @throws IOException
+	 *             if the socket cannot be bound
+	 * @throws URISyntaxException
+	 *             if an address is not valid
 	 */
-	void loadNodesFromOtherMaster() {
+	private GossipMembership newGossipMembership(GossipConfiguration gossip)
+			throws IOException, URISyntaxException {
+		if (gossip == null)
+			return null;
+		URI myUri = new URI(myAddress);
+		Integer port = gossip.udpPort(myUri.getPort());
+		if (port == null)
+			return null;
+		List<InetSocketAddress> seeds = new ArrayList<InetSocketAddress>();
 		for (String master : clusterMasterSet) {
 			if (master == myAddress)
 				continue;
-			try {
-				logger.info("Get node list from  " + master);
-				Map<String, Set<String>> nodesMap = new ClusterSingleClient(
-						master, 60000).getNodes();
-				if (nodesMap == null)
-					continue;
-				for (Map.Entry<String, Set<String>> entry : nodesMap.entrySet())
-					upsertNode(entry.getKey(), entry.getValue());
-				break;
-			} catch (Exception e) {
-				logger.warn("Unable to load the node list from " + master, e);
+			URI masterUri = new URI(master);
+			seeds.add(new InetSocketAddress(masterUri.getHost(), gossip
+					.udpPort(masterUri.getPort())));
+		}
+		logger.info("Gossip membership on port " + port);
+		return new GossipMembership(myAddress, new InetSocketAddress(port),
+				myUri.getHost(), seeds, gossip,
+				isMaster ? new GossipListener() {
+
+					@Override
+					public void onAlive(String id) {
+						updateMembershipStatus(id, true);
+					}
+
+					@Override
+					public void onDead(String id) {
+						updateMembershipStatus(id, false);
+					}
+				} : null);
+	}
+
+	/**
+	 * Apply the status given by the gossip membership to a registered node
+	 * 
+	 * @param address
+	 *            the address of the node
+	 * @param alive
+	 *            true if the node is alive
+	 */
+	private void updateMembershipStatus(String address, boolean alive) {
+		ClusterNode node = clusterNodeMap.getSnapshot().nodesMap.get(address);
+		if (node != null)
+			node.setMembershipStatus(alive);
+	}
+
+	/**
+	 * Synchronize the node list with all the other masters in parallel. An
+	 * unresponsive master does not delay the others, the synchronization
+	 * stops at the deadline.
+	 * 
+	 * @return true if every master has been synchronized
+	 */
+	boolean syncWithOtherMasters() {
+		// The periodic sync and the reconciliation do not overlap
+		synchronized (otherMasterClients) {
+			long deadline = System.currentTimeMillis() + SYNC_DEADLINE_MS;
+			Map<String, Future<?>> futures = new LinkedHashMap<String, Future<?>>();
+			for (Map.Entry<String, ClusterSingleClient> entry : otherMasterClients
+					.entrySet()) {
+				String master = entry.getKey();
+				ClusterSingleClient client = entry.getValue();
+				futures.put(master, syncExecutor.submit(() -> {
+					syncWithMaster(client, reconciledBuckets.get(master));
+					return null;
+				}));
+			}
+			boolean complete = true;
+			for (Map.Entry<String, Future<?>> entry : futures.entrySet()) {
+				try {
+					entry.getValue().get(
+							Math.max(0, deadline - System.currentTimeMillis()),
+							TimeUnit.MILLISECONDS);
+				} catch (TimeoutException e) {
+					complete = false;
+					entry.getValue().cancel(true);
+					logger.warn("Sync deadline exceeded with "
+							+ entry.getKey());
+				} catch (ExecutionException e) {
+					complete = false;
+					logger.warn("Unable to sync the node list with "
+							+ entry.getKey(), e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
 			}
+			return complete;
+		}
+	}
+
+	/**
+	 * Reconcile the node list with the other masters in the background, then
+	 * set the readiness flag
+	 */
+	private void startReconciliation() {
+		Thread thread = new Thread("Master reconciliation") {
+			@Override
+			public void run() {
+				long time = System.currentTimeMillis();
+				boolean complete = syncWithOtherMasters();
+				ready = true;
+				logger.info("Reconciliation "
+						+ (complete ? "done" : "incomplete") + " in "
+						+ (System.currentTimeMillis() - time) + " ms");
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @return true when the first reconciliation with the other masters is
+	 *         done (successful or not)
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * @return the signature of a reconciled bucket
+	 */
+	private static long reconciled(long otherHash, long myHash) {
+		return ClusterDigest.root(new long[] { otherHash, myHash });
+	}
+
+	/**
+	 * Compare the digests, then load the nodes of the buckets which differ.
+	 * If most of the buckets differ, the full node list is loaded. A sync
+	 * never removes a node: a bucket may still differ once it is loaded (e.g.
+	 * a missed unregistration). It is not loaded again until one of the
+	 * masters changes it.
+	 * 
+	 * @param client
+	 *            the client of the other master
+	 * @param reconciledBuckets
+	 *            the buckets already loaded from this master
+	 * @throws URISyntaxException
+	 *             if an address is not valid
+	 * @throws ServerException
+	 *             if any error occurs
+	 */
+	private void syncWithMaster(ClusterSingleClient client,
+			Map<Integer, Long> reconciledBuckets) throws URISyntaxException,
+			ServerException {
+		ClusterNodeMap nodeMap = checkMaster();
+		ClusterNodeMap.Snapshot snapshot = nodeMap.getSnapshot();
+		ClusterDigestJson digest = client.getDigest();
+		if (digest == null || digest.root == snapshot.digestRoot)
+			return;
+		if (digest.buckets == null
+				|| digest.buckets.length != snapshot.digestBuckets.length) {
+			syncNodes(client.getNodes());
+			return;
+		}
+		Set<Integer> buckets = new TreeSet<Integer>();
+		for (int i = 0; i < digest.buckets.length; i++) {
+			long otherHash = digest.buckets[i];
+			long myHash = snapshot.digestBuckets[i];
+			// An empty bucket has nothing to give
+			if (otherHash == 0 || otherHash == myHash) {
+				reconciledBuckets.remove(i);
+				continue;
+			}
+			Long signature = reconciledBuckets.get(i);
+			if (signature == null
+					|| signature != reconciled(otherHash, myHash))
+				buckets.add(i);
+		}
+		if (buckets.isEmpty())
+			return;
+		syncNodes(buckets.size() > digest.buckets.length / 2 ? client
+				.getNodes() : client.getDigestNodes(buckets));
+		snapshot = nodeMap.getSnapshot();
+		for (Integer bucket : buckets)
+			reconciledBuckets.put(bucket, reconciled(digest.buckets[bucket],
+					snapshot.digestBuckets[bucket]));
+	}
+
+	/**
+	 * Upsert the nodes given by another master
+	 * 
+	 * @param nodesMap
+	 *            the nodes and their services
+	 * @throws URISyntaxException
+	 *             if an address is not valid
+	 * @throws ServerException
+	 *             if any error occurs
+	 */
+	private void syncNodes(Map<String, Set<String>> nodesMap)
+			throws URISyntaxException, ServerException {
+		if (nodesMap == null)
+			return;
+		logger.info("Sync " + nodesMap.size() + " node(s) from another master");
+		long time = System.currentTimeMillis();
+		for (Map.Entry<String, Set<String>> entry : nodesMap.entrySet()) {
+			ClusterNode node = upsertNode(entry.getKey(), entry.getValue());
+			// A new node is checked at once
+			if (node.getStatus().state == State.undetermined)
+				node.checkSchedule.checkNow(time);
 		}
 	}
 
@@ -176,9 +544,14 @@ public class ClusterManager {
 		if (periodicThreads != null)
 			return;
 		logger.info("Starting the periodc threads");
-		periodicThreads = new ArrayList<PeriodicThread>(2);
-		periodicThreads.add(new ClusterMasterThread(600));
-		periodicThreads.add(new ClusterMonitoringThread(60));
+		periodicThreads = new ArrayList<PeriodicThread>(4);
+		periodicThreads.add(new ClusterMasterThread(10));
+		periodicThreads.add(new ClusterLeaseThread(1, leaseWheel));
+		if (clusterNodeMap.isPersistent())
+			periodicThreads.add(new ClusterRegistryThread(1, clusterNodeMap));
+		// With the gossip, the members monitor each other
+		if (gossipMembership == null)
+			periodicThreads.add(new ClusterMonitoringThread(1));
 	}
 
 	private ClusterNodeMap checkMaster() throws ServerException {
@@ -190,16 +563,186 @@ public class ClusterManager {
 
 	public ClusterNode upsertNode(String address, Set<String> services)
 			throws URISyntaxException, ServerException {
-		return checkMaster().upsert(address, services);
+		ClusterNode node = checkMaster().upsert(address, services);
+		registered(node);
+		return node;
 	}
 
+	/**
+	 * Register a node. A node with a lease is online at once, it stays
+	 * online as long as it renews its lease. A node without lease is checked
+	 * by the master.
+	 * 
+	 * @param address
+	 *            the address of the node
+	 * @param services
+	 *            the services provided by the node
+	 * @param leaseMs
+	 *            the duration of the lease, or null
+	 * @return the registered node
+	 * @throws URISyntaxException
+	 *             if the address is not valid
+	 * @throws ServerException
+	 *             if I am not a master, or if the lease is too short
+	 */
+	public ClusterNode upsertNode(String address, Set<String> services,
+			Integer leaseMs) throws URISyntaxException, ServerException {
+		checkLease(leaseMs);
+		ClusterNode node = checkMaster().upsert(address, services, leaseMs);
+		registered(node);
+		return node;
+	}
+
+	private static void checkLease(Integer leaseMs) throws ServerException {
+		if (leaseMs != null && leaseMs < MIN_LEASE_MS)
+			throw new ServerException(Status.NOT_ACCEPTABLE,
+					"The lease should be at least " + MIN_LEASE_MS + " ms");
+	}
+
+	/**
+	 * Called after the registration of a node. The lease and the online
+	 * status of a leased node are already set by the registration.
+	 * 
+	 * @param node
+	 *            the registered node
+	 */
+	private void registered(ClusterNode node) {
+		if (node.isLeased())
+			leaseWheel.schedule(node);
+		// The membership may have seen the node before its registration
+		if (gossipMembership != null && !node.isActive()
+				&& gossipMembership.isAlive(node.address))
+			node.setMembershipStatus(true);
+	}
+
+	/**
+	 * Called by the heartbeat of a leased node
+	 * 
+	 * @param address
+	 *            the address of the node
+	 * @return false if the node is not registered with a lease
+	 * @throws URISyntaxException
+	 *             if the address is not valid
+	 * @throws ServerException
+	 *             if I am not a master
+	 */
+	public boolean renewLease(String address) throws URISyntaxException,
+			ServerException {
+		ClusterNode node = checkMaster().getSnapshot().nodesMap.get(ClusterNode
+				.toAddress(address));
+		if (node == null || !node.isLeased())
+			return false;
+		node.renewLease(System.currentTimeMillis());
+		// Does nothing if the node is still in the wheel
+		leaseWheel.schedule(node);
+		return true;
+	}
+
+	/**
+	 * Called by the node when it switches between online and offline
+	 * 
+	 * @param node
+	 *            the node which changed
+	 * @throws ServerException
+	 *             if I am not a master
+	 */
 	void updateNodeStatus(ClusterNode node) throws ServerException {
 		checkMaster().status(node);
 	}
 
+	/**
+	 * Called by the node when the latency of a check is recorded
+	 */
+	void latencyRecorded() {
+		latencyEpoch.incrementAndGet();
+	}
+
+	/**
+	 * @return the suspicion level above which a node is inactive
+	 */
+	double getPhiThreshold() {
+		return phiThreshold;
+	}
+
+	/**
+	 * Called by the node when the status of an offline node is updated
+	 */
+	void offlineStatusUpdated() {
+		statusEpoch.incrementAndGet();
+	}
+
 	public ClusterNode removeNode(String address) throws URISyntaxException,
 			ServerException {
-		return checkMaster().remove(address);
+		ClusterNode node = checkMaster().remove(address);
+		// The lease wheel drops the node
+		if (node != null)
+			node.setLease(null, 0);
+		return node;
+	}
+
+	/**
+	 * Apply many removals and registrations at once. The invalid addresses
+	 * are reported in the result, the other changes are applied as a single
+	 * mutation.
+	 * 
+	 * @param registers
+	 *            the nodes to register, may be null
+	 * @param addresses
+	 *            the addresses of the nodes to unregister, may be null
+	 * @return the status of the registered nodes and the removed addresses
+	 * @throws ServerException
+	 *             if I am not a master
+	 */
+	public ClusterBulkResultJson bulk(List<ClusterNodeRegisterJson> registers,
+			List<String> addresses) throws ServerException {
+		ClusterNodeMap nodeMap = checkMaster();
+		Map<String, String> errors = new LinkedHashMap<String, String>();
+		List<ClusterNode> newNodes = new ArrayList<ClusterNode>();
+		List<Integer> leases = new ArrayList<Integer>();
+		if (registers != null) {
+			for (ClusterNodeRegisterJson register : registers) {
+				if (register == null || register.address == null)
+					continue;
+				try {
+					checkLease(register.lease_ms);
+					newNodes.add(new ClusterNode(register.address,
+							register.services));
+					leases.add(register.lease_ms);
+				} catch (URISyntaxException | ServerException e) {
+					errors.put(register.address, e.getMessage());
+				}
+			}
+		}
+		List<String> removals = new ArrayList<String>();
+		if (addresses != null) {
+			for (String address : addresses) {
+				if (address == null)
+					continue;
+				try {
+					removals.add(ClusterNode.toAddress(address));
+				} catch (URISyntaxException e) {
+					errors.put(address, e.getMessage());
+				}
+			}
+		}
+		List<ClusterNode> registered = new ArrayList<ClusterNode>(
+				newNodes.size());
+		List<ClusterNode> removed = new ArrayList<ClusterNode>();
+		nodeMap.bulk(newNodes, leases, removals, registered, removed);
+		Map<String, ClusterNodeStatusJson> statusMap = new LinkedHashMap<String, ClusterNodeStatusJson>();
+		for (ClusterNode node : registered) {
+			registered(node);
+			statusMap.put(node.address, node.getStatus());
+		}
+		List<String> unregistered = new ArrayList<String>(removed.size());
+		for (ClusterNode node : removed) {
+			node.setLease(null, 0);
+			unregistered.add(node.address);
+		}
+		logger.info("Bulk: " + registered.size() + " registered, "
+				+ unregistered.size() + " unregistered, " + errors.size()
+				+ " error(s)");
+		return new ClusterBulkResultJson(statusMap, unregistered, errors);
 	}
 
 	public List<ClusterNode> getNodeList() throws ServerException {
@@ -214,27 +757,24 @@ public class ClusterManager {
 		return isMaster;
 	}
 
-	private List<String> buildList(ClusterNode[] nodes) {
+	private List<String> buildList(ClusterNodeArray nodes) {
 		if (nodes == null)
 			return ClusterServiceStatusJson.EMPTY_LIST;
-		List<String> nodeNameList = new ArrayList<String>();
-		for (ClusterNode node : nodes)
-			nodeNameList.add(node.address);
+		List<String> nodeNameList = new ArrayList<String>(nodes.size);
+		for (int i = 0; i < nodes.size; i++)
+			nodeNameList.add(nodes.get(i).address);
 		return nodeNameList;
 	}
 
 	private Cache getNodeSetCache(String service) throws ServerException {
-		ClusterNodeSet nodeSet = checkMaster().getNodeSet(service);
-		if (nodeSet == null)
-			return null;
-		return nodeSet.getCache();
+		return checkMaster().getNodeSet(service);
 	}
 
 	public List<String> getInactiveNodes(String service) throws ServerException {
 		Cache cache = getNodeSetCache(service);
 		if (cache == null)
 			return ClusterServiceStatusJson.EMPTY_LIST;
-		return buildList(cache.activeArray);
+		return buildList(cache.inactiveArray);
 	}
 
 	public List<String> getActiveNodes(String service) throws ServerException {
@@ -252,13 +792,49 @@ public class ClusterManager {
 	 *             if any error occurs
 	 */
 	public String getActiveNodeRandom(String service) throws ServerException {
+		return getActiveNode(service, ClusterSelectionStrategy.uniform);
+	}
+
+	/**
+	 * @param service
+	 *            the name of the service
+	 * @param strategy
+	 *            the selection strategy, uniform if null
+	 * @return an active node chosen with the given strategy
+	 * @throws ServerException
+	 *             if any error occurs
+	 */
+	public String getActiveNode(String service,
+			ClusterSelectionStrategy strategy) throws ServerException {
 		Cache cache = getNodeSetCache(service);
 		if (cache == null)
 			return null;
-		ClusterNode[] aa = cache.activeArray;
-		if (aa == null || aa.length == 0)
-			return null;
-		return aa[RandomUtils.nextInt(0, aa.length)].address;
+		ClusterNode node = cache.select(strategy);
+		return node == null ? null : node.address;
+	}
+
+	/**
+	 * @param service
+	 *            the name of the service
+	 * @param key
+	 *            any key
+	 * @param replicas
+	 *            the number of nodes to return
+	 * @return the active nodes which follow the key on the consistent hash
+	 *         ring of the service
+	 * @throws ServerException
+	 *             if any error occurs
+	 */
+	public List<String> getActiveNodesByHash(String service, String key,
+			int replicas) throws ServerException {
+		Cache cache = getNodeSetCache(service);
+		if (cache == null)
+			return ClusterServiceStatusJson.EMPTY_LIST;
+		List<ClusterNode> nodes = cache.ring.lookup(key, replicas);
+		List<String> nodeNameList = new ArrayList<String>(nodes.size());
+		for (ClusterNode node : nodes)
+			nodeNameList.add(node.address);
+		return nodeNameList;
 	}
 
 	/**
@@ -273,19 +849,105 @@ public class ClusterManager {
 	 */
 	public ClusterServiceStatusJson getServiceStatus(String service)
 			throws ServerException {
-		Cache cache = getNodeSetCache(service);
+		return getServiceStatus(getNodeSetCache(service));
+	}
+
+	/**
+	 * Build the status of several services from the same snapshot of the
+	 * cluster
+	 * 
+	 * @param services
+	 *            the names of the services, all the services if null or empty
+	 * @return the status of each service
+	 * @throws ServerException
+	 *             if any error occurs
+	 */
+	public Map<String, ClusterServiceStatusJson> getServiceStatus(
+			Collection<String> services) throws ServerException {
+		Map<String, Cache> servicesMap = checkMaster().getSnapshot().servicesMap;
+		if (services == null || services.isEmpty())
+			services = new TreeSet<String>(servicesMap.keySet());
+		Map<String, ClusterServiceStatusJson> statusMap = new LinkedHashMap<String, ClusterServiceStatusJson>();
+		for (String service : services)
+			statusMap.put(service, getServiceStatus(servicesMap.get(service)));
+		return statusMap;
+	}
+
+	private ClusterServiceStatusJson getServiceStatus(Cache cache) {
 		if (cache == null)
 			return new ClusterServiceStatusJson();
+		// The latency changes at each check, it is only given by its own
+		// resource, so the status keeps the same ETag
 		List<String> activeList = buildList(cache.activeArray);
 		if (cache.inactiveArray == null)
 			return new ClusterServiceStatusJson(activeList,
 					ClusterServiceStatusJson.EMPTY_MAP);
 		Map<String, ClusterNodeStatusJson> inactiveMap = new LinkedHashMap<String, ClusterNodeStatusJson>();
-		for (ClusterNode node : cache.inactiveArray)
+		for (int i = 0; i < cache.inactiveArray.size; i++) {
+			ClusterNode node = cache.inactiveArray.get(i);
 			inactiveMap.put(node.address, node.getStatus());
+		}
 		return new ClusterServiceStatusJson(activeList, inactiveMap);
 	}
 
+	/**
+	 * @param service
+	 *            the name of the service
+	 * @return the latency percentiles of the service and of each of its nodes
+	 * @throws ServerException
+	 *             if any error occurs
+	 */
+	public ClusterServiceLatencyJson getServiceLatency(String service)
+			throws ServerException {
+		Cache cache = getNodeSetCache(service);
+		if (cache == null)
+			return new ClusterServiceLatencyJson();
+		return getServiceLatency(cache);
+	}
+
+	private static long addLatency(ClusterNodeArray nodes, long time,
+			long[] serviceCounts, long serviceMax,
+			Map<String, ClusterLatencyJson> nodesLatency) {
+		long[] counts = new long[ClusterLatencyHistogram.BUCKETS];
+		for (int i = 0; i < nodes.size; i++) {
+			ClusterNode node = nodes.get(i);
+			Arrays.fill(counts, 0);
+			long max = node.latencyHistogram.addTo(time, counts);
+			ClusterLatencyJson latency = ClusterLatencyHistogram.toJson(
+					counts, max);
+			if (latency == null)
+				continue;
+			nodesLatency.put(node.address, latency);
+			for (int j = 0; j < counts.length; j++)
+				serviceCounts[j] += counts[j];
+			if (max > serviceMax)
+				serviceMax = max;
+		}
+		return serviceMax;
+	}
+
+	private ClusterServiceLatencyJson getServiceLatency(Cache cache) {
+		long time = System.currentTimeMillis();
+		long[] serviceCounts = new long[ClusterLatencyHistogram.BUCKETS];
+		Map<String, ClusterLatencyJson> nodesLatency = new TreeMap<String, ClusterLatencyJson>();
+		long max = addLatency(cache.activeArray, time, serviceCounts, 0,
+				nodesLatency);
+		max = addLatency(cache.inactiveArray, time, serviceCounts, max,
+				nodesLatency);
+		return new ClusterServiceLatencyJson(ClusterLatencyHistogram.toJson(
+				serviceCounts, max), nodesLatency);
+	}
+
+	private static void logResult(String action, ClusterFanOutResult<?> result) {
+		for (ClusterFanOutResult.MasterResult<?> master : result.masters)
+			if (master.success)
+				logger.info(action + " succeeded on " + master.master + " ("
+						+ master.latency + " ms)");
+			else
+				logger.warn(action + " failed on " + master.master + " ("
+						+ master.latency + " ms): " + master.error);
+	}
+
 	public void registerMe(Collection<String> services) {
 		if (services == null || services.isEmpty())
 			return;
@@ -297,8 +959,12 @@ public class ClusterManager {
 				|| services == null || services.length == 0)
 			return;
 		logger.info("Registering to the master");
-		clusterClient
-				.register(new ClusterNodeRegisterJson(myAddress, services));
+		ClusterNodeRegisterJson register = new ClusterNodeRegisterJson(
+				myAddress, new HashSet<String>(Arrays.asList(services)),
+				leaseMs);
+		logResult("Registration",
+				clusterClient.registerAll(register, CLIENT_TIMEOUT_MS));
+		startHeartbeatThread(register);
 		if (clusterNodeShutdownThread == null) {
 			clusterNodeShutdownThread = new Thread() {
 				@Override
@@ -314,28 +980,77 @@ public class ClusterManager {
 		}
 	}
 
+	/**
+	 * Start (or restart with the new services) the renewal of the lease
+	 * 
+	 * @param register
+	 *            the registration sent again to a master which lost the node
+	 */
+	private synchronized void startHeartbeatThread(
+			ClusterNodeRegisterJson register) {
+		if (register.lease_ms == null)
+			return;
+		if (heartbeatThread != null)
+			heartbeatThread.close();
+		heartbeatThread = new ClusterHeartbeatThread(clusterClient, register);
+	}
+
+	private synchronized void stopHeartbeatThread() {
+		if (heartbeatThread == null)
+			return;
+		heartbeatThread.close();
+		heartbeatThread = null;
+	}
+
 	public void unregisterMe() throws URISyntaxException {
 		if (clusterClient == null)
 			return;
+		// A heartbeat would register the node again
+		stopHeartbeatThread();
 		logger.info("Unregistering from masters");
-		clusterClient.unregister(myAddress);
+		logResult("Unregistration",
+				clusterClient.unregisterAll(myAddress, shutdownBudgetMs));
 	}
 
+	/**
+	 * @return the status of the services, or null if I am not a master
+	 */
 	public TreeMap<String, StatusEnum> getServicesStatus() {
-		HashMap<String, ClusterNodeSet> servicesMap = clusterNodeMap
-				.getServicesMap();
-		if (servicesMap == null)
+		if (clusterNodeMap == null)
 			return null;
+		return getServicesStatus(clusterNodeMap.getServicesMap());
+	}
+
+	private TreeMap<String, StatusEnum> getServicesStatus(
+			Map<String, Cache> servicesMap) {
 		TreeMap<String, StatusEnum> servicesStatusMap = new TreeMap<String, StatusEnum>();
-		for (Map.Entry<String, ClusterNodeSet> entry : servicesMap.entrySet()) {
-			Cache cache = entry.getValue().getCache();
+		for (Map.Entry<String, Cache> entry : servicesMap.entrySet()) {
+			Cache cache = entry.getValue();
 			StatusEnum status = ClusterServiceStatusJson.findStatus(
-					cache.activeArray.length, cache.inactiveArray.length);
+					cache.activeArray.size, cache.inactiveArray.size);
 			servicesStatusMap.put(entry.getKey(), status);
 		}
 		return servicesStatusMap;
 	}
 
+	/**
+	 * Build the status of the cluster. The nodes and the services are read
+	 * from the same snapshot.
+	 * 
+	 * @return the status of the cluster
+	 * @throws ServerException
+	 *             if any error occurs
+	 */
+	public ClusterStatusJson getClusterStatus() throws ServerException {
+		ClusterNodeMap.Snapshot snapshot = checkMaster().getSnapshot();
+		ClusterStatusJson clusterStatus = new ClusterStatusJson(isMaster,
+				ready, getServicesStatus(snapshot.servicesMap),
+				clusterMasterSet, getLastExecutions());
+		for (ClusterNode clusterNode : snapshot.nodesList)
+			clusterStatus.addNodeStatus(clusterNode);
+		return clusterStatus;
+	}
+
 	public Map<String, Date> getLastExecutions() {
 		if (periodicThreads == null)
 			return null;
@@ -345,6 +1060,211 @@ public class ClusterManager {
 		return threadsMap;
 	}
 
+	/**
+	 * @return the topology epoch. It is incremented each time the nodes or
+	 *         the services are modified.
+	 * @throws ServerException
+	 *             if I am not a master
+	 */
+	public long getEpoch() throws ServerException {
+		return checkMaster().getSnapshot().version;
+	}
+
+	/**
+	 * @param service
+	 *            the name of the service
+	 * @return the epoch of the latest modification of the service
+	 * @throws ServerException
+	 *             if I am not a master
+	 */
+	public long getServiceEpoch(String service) throws ServerException {
+		ClusterNodeMap.Snapshot snapshot = checkMaster().getSnapshot();
+		Cache cache = snapshot.servicesMap.get(service);
+		// An unknown service follows the global epoch
+		return cache == null ? snapshot.version : cache.epoch;
+	}
+
+	private String buildETag(long... epochs) {
+		StringBuilder sb = new StringBuilder(instanceId);
+		for (long epoch : epochs) {
+			sb.append('-');
+			sb.append(epoch);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return the ETag of the cluster status. It follows the topology epoch,
+	 *         the status of the offline nodes and the set of masters. The
+	 *         last executions of the threads move every second, they are
+	 *         left out.
+	 * @throws ServerException
+	 *             if I am not a master
+	 */
+	public String getClusterStatusETag() throws ServerException {
+		return buildETag(getEpoch(), statusEpoch.get(),
+				clusterMasterSet.hashCode(), ready ? 1 : 0);
+	}
+
+	/**
+	 * @return the ETag of the node list
+	 * @throws ServerException
+	 *             if I am not a master
+	 */
+	public String getNodesETag() throws ServerException {
+		return buildETag(getEpoch());
+	}
+
+	/**
+	 * @param service
+	 *            the name of the service
+	 * @return the ETag of the service status. It includes the status of the
+	 *         offline nodes.
+	 * @throws ServerException
+	 *             if I am not a master
+	 */
+	public String getServiceStatusETag(String service) throws ServerException {
+		return buildETag(getServiceEpoch(service), statusEpoch.get());
+	}
+
+	/**
+	 * @param services
+	 *            the names of the services, all the services if null or empty
+	 * @return the ETag of the status of the services. It follows the latest
+	 *         modification of any of the services.
+	 * @throws ServerException
+	 *             if I am not a master
+	 */
+	public String getServicesStatusETag(Collection<String> services)
+			throws ServerException {
+		ClusterNodeMap.Snapshot snapshot = checkMaster().getSnapshot();
+		long epoch = 0;
+		if (services == null || services.isEmpty())
+			epoch = snapshot.version;
+		else
+			for (String service : services) {
+				Cache cache = snapshot.servicesMap.get(service);
+				// An unknown service follows the global epoch
+				epoch = Math.max(epoch, cache == null ? snapshot.version
+						: cache.epoch);
+			}
+		return buildETag(epoch, statusEpoch.get());
+	}
+
+	/**
+	 * The latency window moves even if nothing is recorded
+	 */
+	private long getLatencySlot() {
+		return System.currentTimeMillis() / ClusterLatencyHistogram.SLOT_MS;
+	}
+
+	/**
+	 * @param service
+	 *            the name of the service
+	 * @return the ETag of the latency of the service
+	 * @throws ServerException
+	 *             if I am not a master
+	 */
+	public String getServiceLatencyETag(String service) throws ServerException {
+		return buildETag(getServiceEpoch(service), latencyEpoch.get(),
+				getLatencySlot());
+	}
+
+	/**
+	 * @param service
+	 *            the name of the service
+	 * @return the ETag of the active node list of the service
+	 * @throws ServerException
+	 *             if I am not a master
+	 */
+	public String getActiveNodesETag(String service) throws ServerException {
+		return buildETag(getServiceEpoch(service));
+	}
+
+	/**
+	 * @param since
+	 *            the sequence number of the latest change known by the client
+	 * @param instance
+	 *            the identifier of the master which gave this sequence number
+	 * @return the changes after the given sequence number. If the sequence
+	 *         number comes from another master, or if the changes have been
+	 *         evicted from the journal, the full snapshot flag is set.
+	 * @throws ServerException
+	 *             if I am not a master
+	 */
+	public ClusterChangesJson getChanges(long since, String instance)
+			throws ServerException {
+		ClusterJournal journal = checkMaster().getJournal();
+		if (!instanceId.equals(instance))
+			return journal.getFullSnapshot(instanceId);
+		return journal.getChanges(instanceId, since);
+	}
+
+	/**
+	 * Register a listener which is notified of each change
+	 * 
+	 * @param listener
+	 *            the listener to register
+	 * @throws ServerException
+	 *             if I am not a master
+	 */
+	public void addChangeListener(ClusterChangeListener listener)
+			throws ServerException {
+		checkMaster().getJournal().addListener(listener);
+	}
+
+	/**
+	 * @param listener
+	 *            the listener to unregister
+	 * @throws ServerException
+	 *             if I am not a master
+	 */
+	public void removeChangeListener(ClusterChangeListener listener)
+			throws ServerException {
+		checkMaster().getJournal().removeListener(listener);
+	}
+
+	/**
+	 * @return the digest of the registrations
+	 * @throws ServerException
+	 *             if I am not a master
+	 */
+	public ClusterDigestJson getDigest() throws ServerException {
+		ClusterNodeMap.Snapshot snapshot = checkMaster().getSnapshot();
+		return new ClusterDigestJson(snapshot.digestRoot,
+				snapshot.digestBuckets.clone());
+	}
+
+	/**
+	 * @return the ETag of the digest. It only depends on the registrations,
+	 *         two masters with the same registrations give the same ETag.
+	 * @throws ServerException
+	 *             if I am not a master
+	 */
+	public String getDigestETag() throws ServerException {
+		return "digest-"
+				+ Long.toHexString(checkMaster().getSnapshot().digestRoot);
+	}
+
+	/**
+	 * @param buckets
+	 *            a set of buckets
+	 * @return the nodes of the given buckets, with their services
+	 * @throws ServerException
+	 *             if I am not a master
+	 */
+	public Map<String, Set<String>> getDigestNodes(Set<Integer> buckets)
+			throws ServerException {
+		Map<String, Set<String>> nodesMap = new HashMap<String, Set<String>>();
+		if (buckets == null || buckets.isEmpty())
+			return nodesMap;
+		for (ClusterNode node : checkMaster().getNodeList())
+			if (node.services != null && !node.services.isEmpty()
+					&& buckets.contains(ClusterDigest.bucket(node.address)))
+				nodesMap.put(node.address, node.services);
+		return nodesMap;
+	}
+
 	public ClusterMultiClient getClusterClient() {
 		return clusterClient;
 	}
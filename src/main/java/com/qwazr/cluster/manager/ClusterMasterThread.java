@@ -27,6 +27,6 @@ public class ClusterMasterThread extends PeriodicThread {
 
 	@Override
 	protected void runner() {
-		ClusterManager.INSTANCE.loadNodesFromOtherMaster();
+		ClusterManager.INSTANCE.syncWithOtherMasters();
 	}
 }
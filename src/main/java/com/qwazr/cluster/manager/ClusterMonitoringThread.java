@@ -23,13 +23,20 @@ import org.slf4j.LoggerFactory;
 
 import com.qwazr.utils.server.ServerException;
 import com.qwazr.utils.threads.PeriodicThread;
-import com.qwazr.utils.threads.ThreadUtils;
 
+/**
+ * Check the nodes whose check is due, following the schedule of each node.
+ */
 public class ClusterMonitoringThread extends PeriodicThread {
 
 	private static final Logger logger = LoggerFactory
 			.getLogger(ClusterMonitoringThread.class);
 
+	/**
+	 * The timeout of one check
+	 */
+	private final static int CHECK_TIMEOUT_MS = 10000;
+
 	private final RequestConfig requestConfig;
 	private final CloseableHttpAsyncClient httpclient;
 
@@ -37,8 +44,8 @@ public class ClusterMonitoringThread extends PeriodicThread {
 		super("Nodes monitoring", monitoring_period_seconds);
 		setDaemon(true);
 		requestConfig = RequestConfig.custom()
-				.setSocketTimeout(monitoring_period)
-				.setConnectTimeout(monitoring_period).build();
+				.setSocketTimeout(CHECK_TIMEOUT_MS)
+				.setConnectTimeout(CHECK_TIMEOUT_MS).build();
 		httpclient = HttpAsyncClients.custom()
 				.setDefaultRequestConfig(requestConfig).build();
 		httpclient.start();
@@ -48,17 +55,24 @@ public class ClusterMonitoringThread extends PeriodicThread {
 	@Override
 	public void runner() {
 		try {
+			long now = System.currentTimeMillis();
 			for (ClusterNode clusterNode : ClusterManager.INSTANCE
-					.getNodeList())
-				clusterNode.startCheck(httpclient);
+					.getNodeList()) {
+				// A leased node proves its liveness by itself
+				if (clusterNode.isLeased()
+						|| !clusterNode.checkSchedule.isDue(now))
+					continue;
+				try {
+					clusterNode.startCheck(httpclient);
+				} catch (RuntimeException e) {
+					// No result will come, the node must stay scheduled
+					logger.warn("Cannot check " + clusterNode.address + ": "
+							+ e.getMessage());
+					clusterNode.checkSchedule.retry(now);
+				}
+			}
 		} catch (ServerException e) {
 			logger.error(e.getMessage(), e);
 		}
 	}
-
-	@Override
-	public void run() {
-		ThreadUtils.sleepMs(10000);
-		super.run();
-	}
 }
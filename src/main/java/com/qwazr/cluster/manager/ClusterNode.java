@@ -54,6 +54,39 @@ public class ClusterNode implements FutureCallback<HttpResponse> {
 
 	private volatile ClusterNodeStatusJson clusterNodeStatus;
 
+	final ClusterCheckSchedule checkSchedule;
+
+	private final ClusterPhiDetector phiDetector;
+
+	final ClusterLatencyHistogram latencyHistogram;
+
+	/**
+	 * The weight of the latest latency in the moving average
+	 */
+	private final static double LATENCY_ALPHA = 0.3;
+
+	private volatile double latencyAverage;
+
+	/**
+	 * The duration of the lease, 0 if the node is checked by the master
+	 */
+	private volatile long leaseMs;
+
+	/**
+	 * The end of the lease, moved by each heartbeat
+	 */
+	private volatile long leaseExpiry;
+
+	/**
+	 * The tick of the slot of the lease wheel, guarded by the wheel
+	 */
+	long leaseTick;
+
+	/**
+	 * True if the node is stored in the lease wheel, guarded by the wheel
+	 */
+	boolean leaseScheduled;
+
 	/**
 	 * Should never fail. The class will take care of the status of the cluster
 	 * node.
@@ -74,7 +107,15 @@ public class ClusterNode implements FutureCallback<HttpResponse> {
 				baseURI.getPort(), "/cluster", null, null);
 		latencyStart = 0;
 		checkToken = null;
-		setStatus(0, State.undetermined, null, null);
+		checkSchedule = new ClusterCheckSchedule();
+		phiDetector = new ClusterPhiDetector();
+		latencyHistogram = new ClusterLatencyHistogram();
+		latencyAverage = 0;
+		leaseMs = 0;
+		leaseExpiry = 0;
+		leaseTick = 0;
+		leaseScheduled = false;
+		setStatus(0, State.undetermined, null, null, null);
 	}
 
 	/**
@@ -84,13 +125,11 @@ public class ClusterNode implements FutureCallback<HttpResponse> {
 		return clusterNodeStatus;
 	}
 
-	private void setStatus(long time, State state, Long latency, String error) {
-		this.clusterNodeStatus = new ClusterNodeStatusJson(time == 0 ? null
-				: new Date(time), state, latency, error,
-				clusterNodeStatus == null ? null
-						: clusterNodeStatus.error_since);
-		if (error != null)
-			logger.warn(error);
+	private void setStatus(long time, State state, Long latency, String error,
+			Double phi) {
+		// Only a transition between online and offline updates the services
+		if (!updateStatus(time, state, latency, error, phi))
+			return;
 		try {
 			ClusterManager.INSTANCE.updateNodeStatus(this);
 		} catch (ServerException e) {
@@ -98,6 +137,29 @@ public class ClusterNode implements FutureCallback<HttpResponse> {
 		}
 	}
 
+	/**
+	 * Set the status without updating the services of the node
+	 * 
+	 * @return true if the node switched between online and offline
+	 */
+	private boolean updateStatus(long time, State state, Long latency,
+			String error, Double phi) {
+		ClusterNodeStatusJson previousStatus = clusterNodeStatus;
+		this.clusterNodeStatus = new ClusterNodeStatusJson(time == 0 ? null
+				: new Date(time), state, latency, error,
+				previousStatus == null ? null : previousStatus.error_since, phi);
+		if (error != null)
+			logger.warn(error);
+		if (previousStatus == null)
+			return false;
+		boolean transition = previousStatus.online != clusterNodeStatus.online;
+		checkSchedule.checked(error == null, transition, time);
+		// The status of an offline node is published in the service status
+		if (!clusterNodeStatus.online)
+			ClusterManager.INSTANCE.offlineStatusUpdated();
+		return transition;
+	}
+
 	void startCheck(CloseableHttpAsyncClient httpclient) {
 		checkToken = UUID.randomUUID().toString();
 		HttpHead httpHead = new HttpHead(checkURI);
@@ -107,13 +169,29 @@ public class ClusterNode implements FutureCallback<HttpResponse> {
 		httpclient.execute(httpHead, this);
 	}
 
+	/**
+	 * An active node stays active as long as its suspicion level is below the
+	 * threshold. The suspicion grows from the time the first check after the
+	 * latest success was due, so the retries of a dead node quickly reach the
+	 * threshold, whatever the delay between the checks of a stable node. The
+	 * failure is still reported in the status.
+	 */
+	private void checkFailed(long time, State state, Long latency,
+			String error) {
+		Double phi = phiDetector.phi(time - checkSchedule.getExpected());
+		if (isActive() && phi != null
+				&& phi < ClusterManager.INSTANCE.getPhiThreshold())
+			state = State.online;
+		setStatus(time, state, latency, error, phi);
+	}
+
 	@Override
 	public void completed(HttpResponse response) {
 		long time = System.currentTimeMillis();
 		long latency = time - latencyStart;
 		int responseCode = response.getStatusLine().getStatusCode();
 		if (responseCode != 200) {
-			setStatus(
+			checkFailed(
 					time,
 					State.unexpected_response,
 					latency,
@@ -124,7 +202,7 @@ public class ClusterNode implements FutureCallback<HttpResponse> {
 		Header header = response
 				.getFirstHeader(ClusterServiceInterface.HEADER_CHECK_NAME);
 		if (header == null) {
-			setStatus(
+			checkFailed(
 					time,
 					State.unexpected_response,
 					latency,
@@ -133,7 +211,7 @@ public class ClusterNode implements FutureCallback<HttpResponse> {
 			return;
 		}
 		if (!checkToken.equals(header.getValue())) {
-			setStatus(
+			checkFailed(
 					time,
 					State.unexpected_response,
 					latency,
@@ -141,20 +219,119 @@ public class ClusterNode implements FutureCallback<HttpResponse> {
 							+ checkURI.toString());
 			return;
 		}
-		setStatus(time, State.online, latency, null);
+		long delay = time - checkSchedule.getDue();
+		phiDetector.heartbeat(delay);
+		latencyHistogram.record(time, latency);
+		// The resolution is the millisecond, 0 means unknown
+		double sample = Math.max(latency, 1);
+		double average = latencyAverage;
+		latencyAverage = average == 0 ? sample : average + LATENCY_ALPHA
+				* (sample - average);
+		ClusterManager.INSTANCE.latencyRecorded();
+		setStatus(time, State.online, latency, null, phiDetector.phi(delay));
 	}
 
 	@Override
 	public void failed(Exception ex) {
 		long time = System.currentTimeMillis();
 		long latency = time - latencyStart;
-		setStatus(time, State.unreachable, latency, "Cluster node failure  - "
+		checkFailed(time, State.unreachable, latency, "Cluster node failure  - "
 				+ checkURI.toString());
 	}
 
+	/**
+	 * Called when the gossip membership detects that the node joined or left
+	 * the cluster
+	 * 
+	 * @param alive
+	 *            true if the node is alive
+	 */
+	void setMembershipStatus(boolean alive) {
+		if (alive)
+			setStatus(System.currentTimeMillis(), State.online, null, null,
+					null);
+		else
+			setStatus(System.currentTimeMillis(), State.unreachable, null,
+					"Cluster node declared dead by the gossip - " + address,
+					null);
+	}
+
+	/**
+	 * Set or remove the lease of the node. A leased node is not checked by the
+	 * master, it has to renew its lease before its expiry. The registration is
+	 * the first heartbeat: a leased node is online at once. The services are
+	 * not updated, {@link ClusterNodeMap} publishes the new status with the
+	 * registration.
+	 * 
+	 * @param leaseMs
+	 *            the duration of the lease, or null to remove the lease
+	 * @param time
+	 *            the time of the registration
+	 * @return true if the node switched to online
+	 */
+	boolean setLease(Integer leaseMs, long time) {
+		if (leaseMs == null || leaseMs <= 0) {
+			this.leaseMs = 0;
+			return false;
+		}
+		this.leaseExpiry = time + leaseMs;
+		this.leaseMs = leaseMs;
+		return !isActive()
+				&& updateStatus(time, State.online, null, null, null);
+	}
+
+	/**
+	 * @return true if the node renews a lease
+	 */
+	public boolean isLeased() {
+		return leaseMs != 0;
+	}
+
+	/**
+	 * @return the end of the lease
+	 */
+	long getLeaseExpiry() {
+		return leaseExpiry;
+	}
+
+	/**
+	 * Called by a heartbeat of the node
+	 * 
+	 * @param time
+	 *            the time of the heartbeat
+	 */
+	void renewLease(long time) {
+		leaseExpiry = time + leaseMs;
+		if (!isActive())
+			setStatus(time, State.online, null, null, null);
+	}
+
+	/**
+	 * Called by the lease wheel when the lease is over
+	 * 
+	 * @param time
+	 *            the current time
+	 */
+	void leaseExpired(long time) {
+		// A heartbeat may have been received in the meantime
+		if (!isLeased() || leaseExpiry > time)
+			return;
+		setStatus(time, State.unreachable, null, "Lease expired - " + address,
+				null);
+	}
+
 	@Override
 	public void cancelled() {
 		logger.warn("Cluster node cancelled " + checkURI.toString());
+		checkSchedule.retry(System.currentTimeMillis());
+	}
+
+	/**
+	 * @return the exponential moving average of the latency of the checks, in
+	 *         milliseconds, or 0 if no check succeeded
+	 */
+	public double getLatencyAverage() {
+		return latencyAverage;
 	}
 
 	/**
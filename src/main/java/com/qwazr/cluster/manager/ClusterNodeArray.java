@@ -0,0 +1,138 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.manager;
+
+/**
+ * An immutable indexed array of nodes. It is stored as a tree of 32 slots
+ * wide blocks. A modification only copies the path from the root to the
+ * modified slot (O(log32 n)), the other blocks are shared with the previous
+ * version. The random access reads at most a few blocks.
+ */
+final class ClusterNodeArray {
+
+	private static final int BITS = 5;
+	private static final int WIDTH = 1 << BITS;
+	private static final int MASK = WIDTH - 1;
+
+	static final ClusterNodeArray EMPTY = new ClusterNodeArray(0, 0,
+			new Object[WIDTH]);
+
+	final int size;
+	private final int shift;
+	private final Object[] root;
+
+	private ClusterNodeArray(int size, int shift, Object[] root) {
+		this.size = size;
+		this.shift = shift;
+		this.root = root;
+	}
+
+	/**
+	 * @param index
+	 *            the position of the node
+	 * @return the node at the given position
+	 */
+	ClusterNode get(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException(Integer.toString(index));
+		Object[] block = root;
+		for (int level = shift; level > 0; level -= BITS)
+			block = (Object[]) block[(index >>> level) & MASK];
+		return (ClusterNode) block[index & MASK];
+	}
+
+	private static Object[] set(int level, Object[] block, int index,
+			ClusterNode node) {
+		Object[] copy = block == null ? new Object[WIDTH] : block.clone();
+		int slot = (index >>> level) & MASK;
+		if (level == 0)
+			copy[slot] = node;
+		else
+			copy[slot] = set(level - BITS, (Object[]) copy[slot], index, node);
+		return copy;
+	}
+
+	/**
+	 * @param index
+	 *            the position of the node
+	 * @param node
+	 *            the node to store
+	 * @return a new array with the node stored at the given position
+	 */
+	ClusterNodeArray set(int index, ClusterNode node) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException(Integer.toString(index));
+		return new ClusterNodeArray(size, shift, set(shift, root, index, node));
+	}
+
+	/**
+	 * @param node
+	 *            the node to append
+	 * @return a new array with the node appended at the end
+	 */
+	ClusterNodeArray add(ClusterNode node) {
+		// The tree is full, we add a level
+		if (size == WIDTH << shift) {
+			Object[] newRoot = new Object[WIDTH];
+			newRoot[0] = root;
+			return new ClusterNodeArray(size + 1, shift + BITS, set(shift
+					+ BITS, newRoot, size, node));
+		}
+		return new ClusterNodeArray(size + 1, shift, set(shift, root, size,
+				node));
+	}
+
+	private static Object[] removeLast(int level, Object[] block, int index) {
+		int slot = (index >>> level) & MASK;
+		Object child = null;
+		if (level > 0)
+			child = removeLast(level - BITS, (Object[]) block[slot], index);
+		// The block becomes empty, the parent will release it
+		if (slot == 0 && child == null)
+			return null;
+		Object[] copy = block.clone();
+		copy[slot] = child;
+		return copy;
+	}
+
+	/**
+	 * @return a new array without the last node
+	 */
+	ClusterNodeArray removeLast() {
+		if (size == 0)
+			throw new IndexOutOfBoundsException();
+		if (size == 1)
+			return EMPTY;
+		int newShift = shift;
+		Object[] newRoot = removeLast(shift, root, size - 1);
+		// Remove the useless levels
+		while (newShift > 0 && newRoot[1] == null) {
+			newRoot = (Object[]) newRoot[0];
+			newShift -= BITS;
+		}
+		return new ClusterNodeArray(size - 1, newShift, newRoot);
+	}
+
+	/**
+	 * @return a new array containing the nodes
+	 */
+	ClusterNode[] toArray() {
+		ClusterNode[] array = new ClusterNode[size];
+		for (int i = 0; i < size; i++)
+			array[i] = get(i);
+		return array;
+	}
+}
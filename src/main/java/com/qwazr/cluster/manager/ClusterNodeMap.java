@@ -15,54 +15,183 @@
  */
 package com.qwazr.cluster.manager;
 
+import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
-import com.qwazr.utils.LockUtils.ReadWriteLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.qwazr.cluster.manager.ClusterNodeSet.Cache;
+import com.qwazr.cluster.service.ClusterChangeJson;
 import com.qwazr.utils.server.ServerException;
 
 public class ClusterNodeMap {
 
-	private final ReadWriteLock readWriteLock = new ReadWriteLock();
+	private static final Logger logger = LoggerFactory
+			.getLogger(ClusterNodeMap.class);
+
+	/**
+	 * An immutable and consistent view of the cluster. A new snapshot is
+	 * published after each modification. The readers never take a lock. The
+	 * version is the topology epoch, the epoch of a service is the version of
+	 * the last snapshot which modified it.
+	 */
+	static class Snapshot {
+
+		final long version;
+		final Map<String, ClusterNode> nodesMap;
+		final List<ClusterNode> nodesList;
+		final Map<String, Cache> servicesMap;
+		final long[] digestBuckets;
+		final long digestRoot;
 
+		private Snapshot(long version, Map<String, ClusterNode> nodesMap,
+				List<ClusterNode> nodesList, Map<String, Cache> servicesMap,
+				long[] digestBuckets, long digestRoot) {
+			this.version = version;
+			this.nodesMap = nodesMap;
+			this.nodesList = nodesList;
+			this.servicesMap = servicesMap;
+			this.digestBuckets = digestBuckets;
+			this.digestRoot = digestRoot;
+		}
+	}
+
+	/**
+	 * The mutable structures, only used by the writer (synchronized)
+	 */
 	private final HashMap<String, ClusterNode> nodesMap;
 	private final HashMap<String, ClusterNodeSet> nodesByServiceMap;
+	private final long[] digestBuckets;
+	private boolean digestChanged;
+
+	private final AtomicReference<Snapshot> snapshotRef;
+
+	/**
+	 * The number of changes kept in the journal
+	 */
+	private final static int JOURNAL_SIZE = 8192;
 
-	private volatile HashMap<String, ClusterNodeSet> cacheNodesByServiceMap;
-	private volatile List<ClusterNode> cacheNodesList;
+	private final ClusterJournal journal;
+
+	/**
+	 * Persist the registrations, null if the registry is only in memory
+	 */
+	private volatile ClusterRegistryStore store;
 
 	ClusterNodeMap() {
 		nodesMap = new HashMap<String, ClusterNode>();
 		nodesByServiceMap = new HashMap<String, ClusterNodeSet>();
-		buildCacheNodesByServiceMap();
-		buildCacheNodesList();
+		journal = new ClusterJournal(JOURNAL_SIZE);
+		store = null;
+		digestBuckets = new long[ClusterDigest.BUCKETS];
+		digestChanged = false;
+		snapshotRef = new AtomicReference<Snapshot>(new Snapshot(0,
+				Collections.<String, ClusterNode> emptyMap(),
+				Collections.<ClusterNode> emptyList(),
+				Collections.<String, Cache> emptyMap(), digestBuckets.clone(),
+				ClusterDigest.root(digestBuckets)));
 	}
 
-	private void buildCacheNodesByServiceMap() {
-		cacheNodesByServiceMap = new HashMap<String, ClusterNodeSet>(
-				nodesByServiceMap);
+	/**
+	 * Build and publish a new snapshot. The unchanged parts of the previous
+	 * snapshot are reused. Must be called by the writer.
+	 * 
+	 * @param nodesChanged
+	 *            true if the node map has been modified
+	 * @param servicesChanged
+	 *            true if the service index has been modified
+	 */
+	private void publish(boolean nodesChanged, boolean servicesChanged) {
+		if (!nodesChanged && !servicesChanged)
+			return;
+		Snapshot previous = snapshotRef.get();
+		long version = previous.version + 1;
+		Map<String, ClusterNode> nodes = previous.nodesMap;
+		List<ClusterNode> nodesList = previous.nodesList;
+		if (nodesChanged) {
+			nodes = Collections
+					.unmodifiableMap(new HashMap<String, ClusterNode>(nodesMap));
+			nodesList = Collections
+					.unmodifiableList(new ArrayList<ClusterNode>(nodesMap
+							.values()));
+		}
+		Map<String, Cache> services = previous.servicesMap;
+		if (servicesChanged) {
+			HashMap<String, Cache> servicesCache = new HashMap<String, Cache>();
+			for (Map.Entry<String, ClusterNodeSet> entry : nodesByServiceMap
+					.entrySet())
+				servicesCache.put(entry.getKey(),
+						entry.getValue().getCache(version));
+			services = Collections.unmodifiableMap(servicesCache);
+		}
+		long[] digest = previous.digestBuckets;
+		long digestRoot = previous.digestRoot;
+		if (digestChanged) {
+			digest = digestBuckets.clone();
+			digestRoot = ClusterDigest.root(digest);
+			digestChanged = false;
+		}
+		snapshotRef.set(new Snapshot(version, nodes, nodesList, services,
+				digest, digestRoot));
+	}
+
+	/**
+	 * Add or remove the registration of a node from the digest
+	 * 
+	 * @param node
+	 *            the node
+	 * @param add
+	 *            true to add the node, false to remove it
+	 */
+	private void updateDigest(ClusterNode node, boolean add) {
+		long hash = ClusterDigest.hash(node.address, node.services);
+		if (hash == 0)
+			return;
+		int bucket = ClusterDigest.bucket(node.address);
+		if (add)
+			digestBuckets[bucket] += hash;
+		else
+			digestBuckets[bucket] -= hash;
+		digestChanged = true;
+	}
+
+	/**
+	 * @return the journal of the changes
+	 */
+	ClusterJournal getJournal() {
+		return journal;
 	}
 
-	private void buildCacheNodesList() {
-		cacheNodesList = new ArrayList<ClusterNode>(nodesMap.values());
+	/**
+	 * @return the current snapshot of the cluster
+	 */
+	Snapshot getSnapshot() {
+		return snapshotRef.get();
 	}
 
 	/**
 	 * @param service
-	 * @return a list of nodes for the given service
+	 * @return the active and inactive nodes for the given service
 	 */
-	ClusterNodeSet getNodeSet(String service) {
-		return cacheNodesByServiceMap.get(service.intern());
+	Cache getNodeSet(String service) {
+		return snapshotRef.get().servicesMap.get(service);
 	}
 
 	/**
 	 * @return a list which contains the nodes
 	 */
 	List<ClusterNode> getNodeList() {
-		return cacheNodesList;
+		return snapshotRef.get().nodesList;
 	}
 
 	/**
@@ -72,15 +201,16 @@ public class ClusterNodeMap {
 	 *            the node to register
 	 * @param service
 	 *            any service
+	 * @return true if the service index has been modified
 	 */
-	private void registerService(ClusterNode node, String service) {
+	private boolean registerService(ClusterNode node, String service) {
 		service = service.intern();
 		ClusterNodeSet nodeSet = nodesByServiceMap.get(service);
 		if (nodeSet == null) {
 			nodeSet = new ClusterNodeSet();
 			nodesByServiceMap.put(service, nodeSet);
 		}
-		nodeSet.insert(node);
+		return nodeSet.insert(node);
 	}
 
 	/**
@@ -90,15 +220,16 @@ public class ClusterNodeMap {
 	 *            the node to unregister
 	 * @param service
 	 *            any service
+	 * @return true if the service index has been modified
 	 */
-	private void unregisterService(ClusterNode node, String service) {
-		service = service.intern();
+	private boolean unregisterService(ClusterNode node, String service) {
 		ClusterNodeSet nodeSet = nodesByServiceMap.get(service);
 		if (nodeSet == null)
-			return;
-		nodeSet.remove(node);
+			return false;
+		boolean changed = nodeSet.remove(node);
 		if (nodeSet.isEmpty())
 			nodesByServiceMap.remove(service);
+		return changed;
 	}
 
 	/**
@@ -108,18 +239,17 @@ public class ClusterNodeMap {
 	 *            the node to update
 	 * @param newServices
 	 *            The new services
+	 * @return true if the service index has been modified
 	 */
-	private void updateServices(ClusterNode node, Set<String> newServices) {
-		synchronized (nodesByServiceMap) {
-			if (node.services != null)
-				for (String service : node.services)
-					unregisterService(node, service);
-			node.setServices(newServices);
-			if (node.services != null)
-				for (String service : node.services)
-					registerService(node, service);
-			buildCacheNodesByServiceMap();
-		}
+	private boolean updateServices(ClusterNode node, Set<String> newServices) {
+		if (Objects.equals(node.services, newServices))
+			return false;
+		unregisterServices(node);
+		updateDigest(node, false);
+		node.setServices(newServices);
+		updateDigest(node, true);
+		registerServices(node);
+		return true;
 	}
 
 	/**
@@ -127,15 +257,15 @@ public class ClusterNodeMap {
 	 * 
 	 * @param clusterNode
 	 *            the node to register
+	 * @return true if the service index has been modified
 	 */
-	private void registerServices(ClusterNode node) {
+	private boolean registerServices(ClusterNode node) {
 		if (node.services == null)
-			return;
-		synchronized (nodesByServiceMap) {
-			for (String service : node.services)
-				registerService(node, service);
-			buildCacheNodesByServiceMap();
-		}
+			return false;
+		boolean changed = false;
+		for (String service : node.services)
+			changed |= registerService(node, service);
+		return changed;
 	}
 
 	/**
@@ -143,15 +273,225 @@ public class ClusterNodeMap {
 	 * 
 	 * @param node
 	 *            the node to unregister
+	 * @return true if the service index has been modified
 	 */
-	private void unregisterServices(ClusterNode node) {
+	private boolean unregisterServices(ClusterNode node) {
 		if (node.services == null)
+			return false;
+		boolean changed = false;
+		for (String service : node.services)
+			changed |= unregisterService(node, service);
+		return changed;
+	}
+
+	/**
+	 * The changes made by the writer, published when the mutation is done
+	 */
+	private static class Mutation {
+
+		private boolean nodesChanged;
+		private boolean servicesChanged;
+		private final List<ClusterChangeJson.Type> types;
+		private final List<ClusterNode> nodes;
+		private final List<Set<String>> previousServices;
+
+		private Mutation() {
+			nodesChanged = false;
+			servicesChanged = false;
+			types = new ArrayList<ClusterChangeJson.Type>();
+			nodes = new ArrayList<ClusterNode>();
+			previousServices = new ArrayList<Set<String>>();
+		}
+
+		private void change(ClusterChangeJson.Type type, ClusterNode node) {
+			change(type, node, null);
+		}
+
+		private void change(ClusterChangeJson.Type type, ClusterNode node,
+				Set<String> previous) {
+			types.add(type);
+			nodes.add(node);
+			previousServices.add(previous);
+		}
+	}
+
+	/**
+	 * Publish one snapshot for the whole mutation, then journal its changes.
+	 * Only the registrations are persisted, the status of the nodes is not
+	 * restored. Must be called by the writer.
+	 */
+	private void commit(Mutation mutation) {
+		publish(mutation.nodesChanged, mutation.servicesChanged);
+		for (int i = 0; i < mutation.types.size(); i++)
+			journal.add(mutation.types.get(i), mutation.nodes.get(i),
+					mutation.previousServices.get(i));
+		if (store == null)
+			return;
+		for (int i = 0; i < mutation.types.size(); i++) {
+			switch (mutation.types.get(i)) {
+			case register:
+			case services:
+				store.upsert(mutation.nodes.get(i));
+				break;
+			case unregister:
+				store.remove(mutation.nodes.get(i));
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Load the nodes persisted by the store, then persist the next changes.
+	 * The replayed files are compacted in a new snapshot.
+	 * 
+	 * @param store
+	 *            the store of the registry
+	 * @throws IOException
+	 *             if the registry cannot be read or written
+	 */
+	void restore(ClusterRegistryStore store) throws IOException {
+		Map<String, Set<String>> nodes = store.load();
+		List<ClusterNode> newNodes = new ArrayList<ClusterNode>(nodes.size());
+		long time = System.currentTimeMillis();
+		for (Map.Entry<String, Set<String>> entry : nodes.entrySet()) {
+			try {
+				ClusterNode node = new ClusterNode(entry.getKey(),
+						entry.getValue());
+				// The status is not persisted, the node is checked at once
+				node.checkSchedule.checkNow(time);
+				newNodes.add(node);
+			} catch (URISyntaxException | ServerException e) {
+				logger.warn("Cannot restore " + entry.getKey(), e);
+			}
+		}
+		long generation;
+		List<ClusterNode> nodesList;
+		synchronized (this) {
+			Mutation mutation = new Mutation();
+			for (ClusterNode newNode : newNodes)
+				upsert(newNode, mutation);
+			commit(mutation);
+			this.store = store;
+			generation = store.rotate();
+			nodesList = snapshotRef.get().nodesList;
+		}
+		store.writeSnapshot(generation, nodesList);
+	}
+
+	/**
+	 * Sync the journal to the disk, and write a new snapshot if the journal
+	 * is too long. Called periodically by {@link ClusterRegistryThread}.
+	 * 
+	 * @throws IOException
+	 *             if the registry cannot be written
+	 */
+	void syncStore() throws IOException {
+		ClusterRegistryStore s = store;
+		if (s == null)
 			return;
-		synchronized (nodesByServiceMap) {
-			for (String service : node.services)
-				unregisterService(node, service);
-			buildCacheNodesByServiceMap();
+		s.sync();
+		if (!s.isCompactionDue(snapshotRef.get().nodesMap.size()))
+			return;
+		long generation;
+		List<ClusterNode> nodesList;
+		synchronized (this) {
+			generation = s.rotate();
+			nodesList = snapshotRef.get().nodesList;
 		}
+		s.writeSnapshot(generation, nodesList);
+	}
+
+	/**
+	 * Sync and close the store, the next changes are only in memory
+	 */
+	void closeStore() {
+		ClusterRegistryStore s = store;
+		if (s != null)
+			s.close();
+	}
+
+	/**
+	 * @return true if the registrations are persisted
+	 */
+	boolean isPersistent() {
+		return store != null;
+	}
+
+	/**
+	 * Insert or update a node. Must be called by the writer.
+	 * 
+	 * @param newNode
+	 *            the node to insert
+	 * @param mutation
+	 *            collects the changes
+	 * @return the node record
+	 */
+	private ClusterNode upsert(ClusterNode newNode, Mutation mutation) {
+		// Let's check if we already have the node
+		ClusterNode oldNode = nodesMap.get(newNode.address);
+		if (oldNode != null) {
+			Set<String> previous = oldNode.services;
+			if (updateServices(oldNode, newNode.services)) {
+				mutation.servicesChanged = true;
+				mutation.change(ClusterChangeJson.Type.services, oldNode,
+						previous);
+			}
+			return oldNode;
+		}
+		// It's a new one, we insert it
+		nodesMap.put(newNode.address, newNode);
+		updateDigest(newNode, true);
+		registerServices(newNode);
+		mutation.nodesChanged = true;
+		mutation.servicesChanged = true;
+		mutation.change(ClusterChangeJson.Type.register, newNode);
+		return newNode;
+	}
+
+	/**
+	 * Set or remove the lease of a registered node. A leased node is online
+	 * at once, it moves to the active set in the snapshot of the
+	 * registration. Must be called by the writer.
+	 * 
+	 * @param node
+	 *            the node record
+	 * @param leaseMs
+	 *            the duration of the lease, or null
+	 * @param time
+	 *            the time of the registration
+	 * @param mutation
+	 *            collects the changes
+	 */
+	private void lease(ClusterNode node, Integer leaseMs, long time,
+			Mutation mutation) {
+		if (!node.setLease(leaseMs, time) || !registerServices(node))
+			return;
+		mutation.servicesChanged = true;
+		mutation.change(ClusterChangeJson.Type.active, node);
+	}
+
+	/**
+	 * Remove a node. Must be called by the writer.
+	 * 
+	 * @param address
+	 *            the address of the node
+	 * @param mutation
+	 *            collects the changes
+	 * @return the removed node, or null if the node is unknown
+	 */
+	private ClusterNode remove(String address, Mutation mutation) {
+		// Removed from the node map
+		ClusterNode node = nodesMap.remove(address);
+		if (node == null)
+			return null;
+		updateDigest(node, false);
+		// Removed from the service map
+		mutation.servicesChanged |= unregisterServices(node);
+		mutation.nodesChanged = true;
+		mutation.change(ClusterChangeJson.Type.unregister, node);
+		return node;
 	}
 
 	/**
@@ -170,27 +510,40 @@ public class ClusterNodeMap {
 
 		ClusterNode newNode = new ClusterNode(address, services);
 
-		// Let's check if we already have the node
-		readWriteLock.r.lock();
-		try {
-			ClusterNode oldNode = nodesMap.get(newNode.address);
-			if (oldNode != null) {
-				updateServices(oldNode, services);
-				return oldNode;
-			}
-		} finally {
-			readWriteLock.r.unlock();
+		synchronized (this) {
+			Mutation mutation = new Mutation();
+			ClusterNode node = upsert(newNode, mutation);
+			commit(mutation);
+			return node;
 		}
+	}
 
-		// It's a new one, we insert it
-		readWriteLock.w.lock();
-		try {
-			nodesMap.put(newNode.address, newNode);
-			registerServices(newNode);
-			buildCacheNodesList();
-			return newNode;
-		} finally {
-			readWriteLock.w.unlock();
+	/**
+	 * Insert or update a node, and set or remove its lease. A single snapshot
+	 * is published.
+	 * 
+	 * @param address
+	 *            the address of the node
+	 * @param services
+	 *            the services provided by the node
+	 * @param leaseMs
+	 *            the duration of the lease, or null to remove the lease
+	 * @return the node record
+	 * @throws URISyntaxException
+	 * @throws ServerException
+	 */
+	ClusterNode upsert(String address, Set<String> services, Integer leaseMs)
+			throws URISyntaxException, ServerException {
+
+		ClusterNode newNode = new ClusterNode(address, services);
+		long time = System.currentTimeMillis();
+
+		synchronized (this) {
+			Mutation mutation = new Mutation();
+			ClusterNode node = upsert(newNode, mutation);
+			lease(node, leaseMs, time, mutation);
+			commit(mutation);
+			return node;
 		}
 	}
 
@@ -204,47 +557,82 @@ public class ClusterNodeMap {
 	 */
 	ClusterNode remove(String address) throws URISyntaxException {
 
-		// Let's check if we know the node
-		readWriteLock.r.lock();
-		try {
-			// We do not know the node, nothing to do
-			if (!nodesMap.containsKey(address))
-				return null;
-		} finally {
-			readWriteLock.r.unlock();
-		}
-
-		// Ok, let's remove the node
-		readWriteLock.w.lock();
-		try {
-			// Removed from the node map
-			ClusterNode node = nodesMap.remove(address);
-			if (node == null)
-				return null;
-			// Removed from the service map
-			unregisterServices(node);
-			buildCacheNodesList();
+		// We do not know the node, nothing to do
+		if (!snapshotRef.get().nodesMap.containsKey(address))
+			return null;
+
+		synchronized (this) {
+			Mutation mutation = new Mutation();
+			ClusterNode node = remove(address, mutation);
+			commit(mutation);
 			return node;
-		} finally {
-			readWriteLock.w.unlock();
 		}
 	}
 
+	/**
+	 * Apply many removals and registrations as one mutation: the lock is
+	 * taken once and a single snapshot is published. The removals are applied
+	 * first, so a node can be removed and registered again.
+	 * 
+	 * @param newNodes
+	 *            the nodes to insert or update
+	 * @param leases
+	 *            the duration of the lease of each new node, null to remove
+	 *            the lease
+	 * @param addresses
+	 *            the addresses of the nodes to remove
+	 * @param registered
+	 *            receives the node records of the registered nodes
+	 * @param removed
+	 *            receives the removed nodes
+	 */
+	void bulk(List<ClusterNode> newNodes, List<Integer> leases,
+			Collection<String> addresses, List<ClusterNode> registered,
+			List<ClusterNode> removed) {
+		long time = System.currentTimeMillis();
+		synchronized (this) {
+			Mutation mutation = new Mutation();
+			for (String address : addresses) {
+				ClusterNode node = remove(address, mutation);
+				if (node != null)
+					removed.add(node);
+			}
+			for (int i = 0; i < newNodes.size(); i++) {
+				ClusterNode node = upsert(newNodes.get(i), mutation);
+				lease(node, leases.get(i), time, mutation);
+				registered.add(node);
+			}
+			commit(mutation);
+		}
+	}
+
+	/**
+	 * Move the node to the active or inactive set of its services, depending
+	 * on its current status. Only called when the node switches between
+	 * online and offline.
+	 * 
+	 * @param node
+	 *            the node which has been checked
+	 */
 	void status(ClusterNode node) {
 		if (node == null)
 			return;
 		if (node.services == null || node.services.isEmpty())
 			return;
-		readWriteLock.r.lock();
-		try {
-			registerServices(node);
-		} finally {
-			readWriteLock.r.unlock();
+		synchronized (this) {
+			// The node may have been removed in the meantime
+			if (nodesMap.get(node.address) != node)
+				return;
+			if (!registerServices(node))
+				return;
+			publish(false, true);
+			journal.add(node.isActive() ? ClusterChangeJson.Type.active
+					: ClusterChangeJson.Type.inactive, node, null);
 		}
 	}
 
-	HashMap<String, ClusterNodeSet> getServicesMap() {
-		return cacheNodesByServiceMap;
+	Map<String, Cache> getServicesMap() {
+		return snapshotRef.get().servicesMap;
 	}
 
 }
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.manager;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A latency weighted selection over an array of nodes. The weights are
+ * stored in an alias table (Vose), so a selection costs two random numbers
+ * and no allocation. The table is rebuilt when it is older than
+ * {@link #TTL_MS}, to follow the latencies.
+ */
+final class ClusterNodeSelector {
+
+	/**
+	 * The lifetime of a table
+	 */
+	final static long TTL_MS = 1000;
+
+	/**
+	 * The minimal latency, so a very fast node does not take all the traffic
+	 */
+	final static double MIN_LATENCY_MS = 1;
+
+	final long time;
+	private final ClusterNodeArray nodes;
+	private final double[] probabilities;
+	private final int[] aliases;
+
+	private ClusterNodeSelector(ClusterNodeArray nodes, long time) {
+		this.nodes = nodes;
+		this.time = time;
+		int n = nodes.size;
+		probabilities = new double[n];
+		aliases = new int[n];
+		// The nodes without latency get the average weight
+		double[] weights = new double[n];
+		double sum = 0;
+		int known = 0;
+		for (int i = 0; i < n; i++) {
+			double latency = nodes.get(i).getLatencyAverage();
+			if (latency <= 0)
+				continue;
+			weights[i] = 1 / Math.max(latency, MIN_LATENCY_MS);
+			sum += weights[i];
+			known++;
+		}
+		double average = known == 0 ? 1 : sum / known;
+		sum = 0;
+		for (int i = 0; i < n; i++) {
+			if (weights[i] == 0)
+				weights[i] = average;
+			sum += weights[i];
+		}
+		// Vose's alias method
+		int[] small = new int[n];
+		int[] large = new int[n];
+		int smallCount = 0;
+		int largeCount = 0;
+		for (int i = 0; i < n; i++) {
+			weights[i] = weights[i] * n / sum;
+			if (weights[i] < 1)
+				small[smallCount++] = i;
+			else
+				large[largeCount++] = i;
+		}
+		while (smallCount > 0 && largeCount > 0) {
+			int less = small[--smallCount];
+			int more = large[--largeCount];
+			probabilities[less] = weights[less];
+			aliases[less] = more;
+			weights[more] = weights[more] + weights[less] - 1;
+			if (weights[more] < 1)
+				small[smallCount++] = more;
+			else
+				large[largeCount++] = more;
+		}
+		while (largeCount > 0)
+			probabilities[large[--largeCount]] = 1;
+		// Rounding errors
+		while (smallCount > 0)
+			probabilities[small[--smallCount]] = 1;
+	}
+
+	/**
+	 * @param nodes
+	 *            the active nodes
+	 * @param time
+	 *            the current time
+	 * @return a new table with the current latencies
+	 */
+	static ClusterNodeSelector build(ClusterNodeArray nodes, long time) {
+		return new ClusterNodeSelector(nodes, time);
+	}
+
+	/**
+	 * @param random
+	 *            the random generator of the current thread
+	 * @return a node
+	 */
+	ClusterNode select(ThreadLocalRandom random) {
+		int i = random.nextInt(probabilities.length);
+		return nodes.get(random.nextDouble() < probabilities[i] ? i
+				: aliases[i]);
+	}
+}
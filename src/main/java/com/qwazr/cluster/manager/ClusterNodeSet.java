@@ -16,35 +16,163 @@
 package com.qwazr.cluster.manager;
 
 import java.util.HashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import com.qwazr.utils.LockUtils;
+import com.qwazr.cluster.service.ClusterSelectionStrategy;
 
+/**
+ * The nodes providing one service. This class is not thread safe, it is only
+ * modified by the writer of the {@link ClusterNodeMap}. The readers use the
+ * immutable {@link Cache}.
+ */
 public class ClusterNodeSet {
 
-	private final LockUtils.ReadWriteLock readWriteLock = new LockUtils.ReadWriteLock();
+	/**
+	 * The nodes sharing the same state. A removed node is replaced by the last
+	 * node of the array, so any move costs a few block copies.
+	 */
+	private static class IndexedNodes {
+
+		private final HashMap<String, Integer> positions;
+		private ClusterNodeArray nodes;
+
+		private IndexedNodes() {
+			positions = new HashMap<String, Integer>();
+			nodes = ClusterNodeArray.EMPTY;
+		}
+
+		private boolean contains(String address) {
+			return positions.containsKey(address);
+		}
+
+		private void add(ClusterNode node) {
+			positions.put(node.address, nodes.size);
+			nodes = nodes.add(node);
+		}
+
+		private boolean remove(String address) {
+			Integer position = positions.remove(address);
+			if (position == null)
+				return false;
+			int last = nodes.size - 1;
+			if (position != last) {
+				ClusterNode lastNode = nodes.get(last);
+				nodes = nodes.set(position, lastNode);
+				positions.put(lastNode.address, position);
+			}
+			nodes = nodes.removeLast();
+			return true;
+		}
+	}
+
+	private final IndexedNodes activeNodes;
+	private final IndexedNodes inactiveNodes;
+
+	/**
+	 * The consistent hash ring of the active nodes
+	 */
+	private ClusterHashRing ring;
+
+	/**
+	 * An immutable view of the active and inactive nodes, with the structures
+	 * used to select an active node
+	 */
+	static class Cache {
+
+		final long epoch;
+		final ClusterNodeArray activeArray;
+		final ClusterNodeArray inactiveArray;
+		final ClusterHashRing ring;
 
-	private final HashMap<String, ClusterNode> activeMap;
-	private final HashMap<String, ClusterNode> inactiveMap;
+		private final AtomicInteger roundRobin;
+		private volatile ClusterNodeSelector selector;
+		private final AtomicBoolean rebuilding;
 
-	class Cache {
+		private Cache(long epoch, ClusterNodeArray activeArray,
+				ClusterNodeArray inactiveArray, ClusterHashRing ring) {
+			this.epoch = epoch;
+			this.activeArray = activeArray;
+			this.inactiveArray = inactiveArray;
+			this.ring = ring;
+			this.roundRobin = new AtomicInteger();
+			this.selector = null;
+			this.rebuilding = new AtomicBoolean();
+		}
 
-		final ClusterNode[] activeArray;
-		final ClusterNode[] inactiveArray;
+		/**
+		 * @return the latency weighted selector. When it is too old, one
+		 *         thread rebuilds it while the others keep using the old one.
+		 */
+		private ClusterNodeSelector getSelector() {
+			long time = System.currentTimeMillis();
+			ClusterNodeSelector s = selector;
+			if (s == null) {
+				synchronized (this) {
+					if (selector == null)
+						selector = ClusterNodeSelector.build(activeArray, time);
+					return selector;
+				}
+			}
+			if (time - s.time <= ClusterNodeSelector.TTL_MS
+					|| !rebuilding.compareAndSet(false, true))
+				return s;
+			try {
+				s = ClusterNodeSelector.build(activeArray, time);
+				selector = s;
+				return s;
+			} finally {
+				rebuilding.set(false);
+			}
+		}
 
-		private Cache() {
-			this.activeArray = activeMap.values().toArray(
-					new ClusterNode[activeMap.size()]);
-			this.inactiveArray = inactiveMap.values().toArray(
-					new ClusterNode[inactiveMap.size()]);
+		/**
+		 * @param strategy
+		 *            the selection strategy, uniform if null
+		 * @return an active node, or null if there is no active node
+		 */
+		ClusterNode select(ClusterSelectionStrategy strategy) {
+			int size = activeArray.size;
+			if (size == 0)
+				return null;
+			if (size == 1)
+				return activeArray.get(0);
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			if (strategy == null)
+				strategy = ClusterSelectionStrategy.uniform;
+			switch (strategy) {
+			case power_of_two:
+				int i = random.nextInt(size);
+				int j = random.nextInt(size - 1);
+				if (j >= i)
+					j++;
+				ClusterNode node1 = activeArray.get(i);
+				ClusterNode node2 = activeArray.get(j);
+				// A node without latency (0) is preferred, so it gets checked
+				return node2.getLatencyAverage() < node1.getLatencyAverage() ? node2
+						: node1;
+			case latency_weighted:
+				return getSelector().select(random);
+			case round_robin:
+				return activeArray.get((roundRobin.getAndIncrement() & Integer.MAX_VALUE)
+						% size);
+			default:
+				return activeArray.get(random.nextInt(size));
+			}
 		}
 	}
 
 	private Cache cache;
 
+	private boolean dirty;
+
 	ClusterNodeSet() {
+		activeNodes = new IndexedNodes();
+		inactiveNodes = new IndexedNodes();
+		ring = ClusterHashRing.EMPTY;
 		cache = null;
-		activeMap = new HashMap<String, ClusterNode>();
-		inactiveMap = new HashMap<String, ClusterNode>();
+		dirty = true;
 	}
 
 	/**
@@ -52,24 +180,17 @@ public class ClusterNodeSet {
 	 * 
 	 * @param node
 	 *            The cluster not to insert
+	 * @return true if the set has been modified
 	 */
-	private void active(ClusterNode node) {
+	private boolean active(ClusterNode node) {
 		// We check first if it is not already present in the right list
-		readWriteLock.r.lock();
-		try {
-			if (activeMap.containsKey(node.address))
-				return;
-		} finally {
-			readWriteLock.r.unlock();
-		}
-		readWriteLock.w.lock();
-		try {
-			inactiveMap.remove(node.address);
-			activeMap.put(node.address, node);
-			cache = new Cache();
-		} finally {
-			readWriteLock.w.unlock();
-		}
+		if (activeNodes.contains(node.address))
+			return false;
+		inactiveNodes.remove(node.address);
+		activeNodes.add(node);
+		ring = ring.add(node);
+		dirty = true;
+		return true;
 	}
 
 	/**
@@ -77,69 +198,66 @@ public class ClusterNodeSet {
 	 * 
 	 * @param node
 	 *            The cluster not to insert
+	 * @return true if the set has been modified
 	 */
-	private void inactive(ClusterNode node) {
+	private boolean inactive(ClusterNode node) {
 		// We check first if it is not already present in the right list
-		readWriteLock.r.lock();
-		try {
-			if (inactiveMap.containsKey(node.address))
-				return;
-		} finally {
-			readWriteLock.r.unlock();
-		}
-		readWriteLock.w.lock();
-		try {
-			activeMap.remove(node.address);
-			inactiveMap.put(node.address, node);
-			cache = new Cache();
-		} finally {
-			readWriteLock.w.unlock();
-		}
+		if (inactiveNodes.contains(node.address))
+			return false;
+		if (activeNodes.remove(node.address))
+			ring = ring.remove(node);
+		inactiveNodes.add(node);
+		dirty = true;
+		return true;
 	}
 
 	/**
 	 * @param node
 	 *            The clusterNode to insert
+	 * @return true if the set has been modified
 	 */
-	void insert(ClusterNode node) {
+	boolean insert(ClusterNode node) {
 		if (node.isActive())
-			active(node);
+			return active(node);
 		else
-			inactive(node);
+			return inactive(node);
 	}
 
 	/**
 	 * 
 	 * @param node
 	 *            The ClusterNode to remove
+	 * @return true if the set has been modified
 	 */
-	void remove(ClusterNode node) {
-		readWriteLock.w.lock();
-		try {
-			activeMap.remove(node.address);
-			inactiveMap.remove(node.address);
-			cache = new Cache();
-		} finally {
-			readWriteLock.w.unlock();
-		}
+	boolean remove(ClusterNode node) {
+		if (activeNodes.remove(node.address))
+			ring = ring.remove(node);
+		else if (!inactiveNodes.remove(node.address))
+			return false;
+		dirty = true;
+		return true;
 	}
 
 	/**
 	 * @return if the set is empty
 	 */
 	boolean isEmpty() {
-		readWriteLock.r.lock();
-		try {
-			return activeMap.isEmpty() && inactiveMap.isEmpty();
-		} finally {
-			readWriteLock.r.unlock();
-		}
+		return activeNodes.nodes.size == 0 && inactiveNodes.nodes.size == 0;
 	}
 
 	/**
-	 * @return a cached list of active nodes and inactive nodes
+	 * @param epoch
+	 *            the epoch of the snapshot which is being published
+	 * @return a cached list of active nodes and inactive nodes. The cache is
+	 *         only rebuilt if the set has been modified, it keeps the epoch
+	 *         of its last modification.
 	 */
-	Cache getCache() {
+	Cache getCache(long epoch) {
+		if (dirty) {
+			cache = new Cache(epoch, activeNodes.nodes, inactiveNodes.nodes,
+					ring);
+			dirty = false;
+		}
 		return cache;
 	}
 
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.manager;
+
+/**
+ * A phi accrual failure detector. The checks are not periodic (see
+ * {@link ClusterCheckSchedule}), so the detector does not use the intervals
+ * between the checks. It keeps the delays between the time a successful
+ * check was due and the time of its response: the wait of the monitoring
+ * thread plus the latency of the probe. The phi value gives the suspicion
+ * level: the probability that the node is still alive, given the time elapsed
+ * since its next answer was expected, is 10^-phi.
+ */
+class ClusterPhiDetector {
+
+	/**
+	 * The number of delays kept
+	 */
+	final static int WINDOW = 100;
+
+	/**
+	 * The minimum standard deviation, so a very regular node is not suspected
+	 * after a small delay
+	 */
+	final static double MIN_STD_DEVIATION_MS = 500;
+
+	private final long[] delays;
+	private int count;
+	private int position;
+	private long sum;
+	private double squaresSum;
+
+	ClusterPhiDetector() {
+		delays = new long[WINDOW];
+		count = 0;
+		position = 0;
+		sum = 0;
+		squaresSum = 0;
+	}
+
+	/**
+	 * Record a successful check
+	 * 
+	 * @param delay
+	 *            the time between the due time of the check and its response
+	 */
+	synchronized void heartbeat(long delay) {
+		delay = Math.max(delay, 0);
+		if (count == WINDOW) {
+			long evicted = delays[position];
+			sum -= evicted;
+			squaresSum -= (double) evicted * evicted;
+		} else
+			count++;
+		delays[position] = delay;
+		position = (position + 1) % WINDOW;
+		sum += delay;
+		squaresSum += (double) delay * delay;
+	}
+
+	/**
+	 * @param elapsed
+	 *            the time elapsed since the next answer was expected
+	 * @return the suspicion level, or null if there is not enough history
+	 */
+	synchronized Double phi(long elapsed) {
+		if (count == 0)
+			return null;
+		double mean = (double) sum / count;
+		double variance = squaresSum / count - mean * mean;
+		double stdDeviation = Math.max(Math.sqrt(Math.max(variance, 0)),
+				MIN_STD_DEVIATION_MS);
+		return phi(elapsed, mean, stdDeviation);
+	}
+
+	/**
+	 * The cumulative distribution function of the normal distribution is
+	 * approximated by a logistic function.
+	 */
+	static double phi(long elapsed, double mean, double stdDeviation) {
+		double y = (elapsed - mean) / stdDeviation;
+		double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+		double phi;
+		if (elapsed > mean)
+			phi = -Math.log10(e / (1.0 + e));
+		else
+			phi = -Math.log10(1.0 - 1.0 / (1.0 + e));
+		// Overflow of the exponential: the node is certainly dead
+		return Double.isNaN(phi) || Double.isInfinite(phi) ? Double.MAX_VALUE
+				: Math.max(phi, 0);
+	}
+}
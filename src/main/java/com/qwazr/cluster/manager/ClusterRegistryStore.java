@@ -0,0 +1,460 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.manager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persist the registered nodes of a master in its data directory: a snapshot
+ * of the nodes, and a journal of the registrations and removals made since
+ * the snapshot. The journal is buffered, it is written and synced to the disk
+ * in batches by {@link #sync()}. When the journal grows, a new snapshot is
+ * written and the older files are deleted. Each record is framed by its
+ * length and its CRC32, so a record partially written by a crash ends the
+ * replay.
+ */
+class ClusterRegistryStore {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(ClusterRegistryStore.class);
+
+	private final static String SNAPSHOT_NAME = "registry.snapshot";
+	private final static String SNAPSHOT_TEMP_NAME = "registry.snapshot.tmp";
+	private final static String JOURNAL_PREFIX = "registry.journal.";
+
+	private final static int MAGIC = 0x51434c52;
+	private final static int FORMAT_VERSION = 1;
+
+	/**
+	 * The maximum length of a record. A larger length is a corrupted frame, it
+	 * is never allocated.
+	 */
+	final static int MAX_RECORD_LENGTH = 1 << 24;
+
+	private final static byte RECORD_UPSERT = 1;
+	private final static byte RECORD_REMOVE = 2;
+
+	/**
+	 * A snapshot is written when the journal holds more records than this
+	 * minimum and than the number of nodes
+	 */
+	final static int COMPACTION_MIN_RECORDS = 4096;
+
+	/**
+	 * Serialize the records, one instance per writing thread
+	 */
+	private static class RecordWriter {
+
+		private final ByteArrayOutputStream bytes;
+		private final DataOutputStream data;
+		private final CRC32 crc;
+
+		private RecordWriter() {
+			bytes = new ByteArrayOutputStream();
+			data = new DataOutputStream(bytes);
+			crc = new CRC32();
+		}
+
+		private void write(DataOutputStream output, byte type,
+				String address, Collection<String> services)
+				throws IOException {
+			bytes.reset();
+			data.writeByte(type);
+			data.writeUTF(address);
+			if (type == RECORD_UPSERT) {
+				data.writeInt(services == null ? 0 : services.size());
+				if (services != null)
+					for (String service : services)
+						data.writeUTF(service);
+			}
+			data.flush();
+			if (bytes.size() > MAX_RECORD_LENGTH)
+				throw new IOException("Record too long: " + address);
+			crc.reset();
+			crc.update(bytes.toByteArray(), 0, bytes.size());
+			output.writeInt(bytes.size());
+			output.writeInt((int) crc.getValue());
+			bytes.writeTo(output);
+		}
+	}
+
+	private final File directory;
+
+	private final RecordWriter recordWriter;
+
+	private long generation;
+	private FileOutputStream journalFile;
+	private DataOutputStream journalOutput;
+	private int journalRecords;
+	private boolean dirty;
+	private boolean closed;
+
+	ClusterRegistryStore(File directory) throws IOException {
+		if (!directory.exists() && !directory.mkdirs())
+			throw new IOException("Cannot create the directory: "
+					+ directory);
+		this.directory = directory;
+		recordWriter = new RecordWriter();
+		generation = 0;
+		journalFile = null;
+		journalOutput = null;
+		journalRecords = 0;
+		dirty = false;
+		closed = false;
+	}
+
+	/**
+	 * @return the journal files sorted by generation
+	 */
+	private TreeMap<Long, File> getJournalFiles() {
+		TreeMap<Long, File> files = new TreeMap<Long, File>();
+		File[] list = directory.listFiles();
+		if (list == null)
+			return files;
+		for (File file : list) {
+			String name = file.getName();
+			if (!name.startsWith(JOURNAL_PREFIX))
+				continue;
+			try {
+				files.put(Long.parseLong(name.substring(JOURNAL_PREFIX
+						.length())), file);
+			} catch (NumberFormatException e) {
+				logger.warn("Unexpected file: " + file);
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Read the snapshot, then replay the journals written after it. If the
+	 * snapshot cannot be read, all the remaining journals are replayed: the
+	 * nodes only known by the snapshot are lost, they register again.
+	 * 
+	 * @return the services of each registered node
+	 * @throws IOException
+	 *             if a journal cannot be read
+	 */
+	synchronized Map<String, Set<String>> load() throws IOException {
+		long time = System.currentTimeMillis();
+		Map<String, Set<String>> nodes = new LinkedHashMap<String, Set<String>>();
+		long snapshotGeneration = 0;
+		File snapshotFile = new File(directory, SNAPSHOT_NAME);
+		if (snapshotFile.exists()) {
+			try {
+				snapshotGeneration = readSnapshot(snapshotFile, nodes);
+			} catch (IOException e) {
+				logger.error("Cannot read the registry snapshot "
+						+ snapshotFile + ", only the journals are replayed", e);
+				nodes.clear();
+				snapshotGeneration = 0;
+			}
+		}
+		int records = 0;
+		for (Map.Entry<Long, File> entry : getJournalFiles().entrySet()) {
+			generation = Math.max(generation, entry.getKey());
+			// Already in the snapshot
+			if (entry.getKey() < snapshotGeneration)
+				continue;
+			try (DataInputStream input = open(entry.getValue())) {
+				while (readRecord(input, nodes))
+					records++;
+			}
+		}
+		generation = Math.max(generation, snapshotGeneration);
+		logger.info("Registry loaded: " + nodes.size() + " node(s), "
+				+ records + " journal record(s) in "
+				+ (System.currentTimeMillis() - time) + " ms");
+		return nodes;
+	}
+
+	/**
+	 * @param snapshotFile
+	 *            the snapshot to read
+	 * @param nodes
+	 *            receives the services of each node of the snapshot
+	 * @return the generation of the snapshot
+	 * @throws IOException
+	 *             if the snapshot is not valid or cannot be read
+	 */
+	private static long readSnapshot(File snapshotFile,
+			Map<String, Set<String>> nodes) throws IOException {
+		try (DataInputStream input = open(snapshotFile)) {
+			if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION)
+				throw new IOException("Unexpected snapshot format: "
+						+ snapshotFile);
+			long snapshotGeneration = input.readLong();
+			int count = input.readInt();
+			for (int i = 0; i < count; i++)
+				if (!readRecord(input, nodes))
+					throw new IOException("Corrupted snapshot: "
+							+ snapshotFile);
+			return snapshotGeneration;
+		}
+	}
+
+	private static DataInputStream open(File file) throws IOException {
+		return new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file), 65536));
+	}
+
+	/**
+	 * Read and apply one record
+	 * 
+	 * @return false at the end of the file, or if the record is not complete
+	 */
+	private static boolean readRecord(DataInputStream input,
+			Map<String, Set<String>> nodes) throws IOException {
+		byte[] bytes;
+		long checksum;
+		try {
+			int length = input.readInt();
+			checksum = input.readInt() & 0xffffffffL;
+			if (length <= 0)
+				return false;
+			if (length > MAX_RECORD_LENGTH) {
+				logger.warn("Invalid record length in the registry, the replay stops");
+				return false;
+			}
+			bytes = new byte[length];
+			input.readFully(bytes);
+		} catch (EOFException e) {
+			return false;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		if (crc.getValue() != checksum) {
+			logger.warn("Truncated record in the registry, the replay stops");
+			return false;
+		}
+		DataInputStream record = new DataInputStream(new ByteArrayInputStream(
+				bytes));
+		byte type = record.readByte();
+		String address = record.readUTF().intern();
+		switch (type) {
+		case RECORD_UPSERT:
+			int count = record.readInt();
+			Set<String> services = new HashSet<String>();
+			for (int i = 0; i < count; i++)
+				services.add(record.readUTF().intern());
+			// A moved entry keeps the order of the latest registration
+			nodes.remove(address);
+			nodes.put(address, services);
+			return true;
+		case RECORD_REMOVE:
+			nodes.remove(address);
+			return true;
+		default:
+			throw new IOException("Unexpected record type: " + type);
+		}
+	}
+
+	private void append(byte type, String address, Collection<String> services) {
+		if (closed || journalOutput == null)
+			return;
+		try {
+			recordWriter.write(journalOutput, type, address, services);
+			journalRecords++;
+			dirty = true;
+		} catch (IOException e) {
+			logger.error("Cannot write the registry journal", e);
+		}
+	}
+
+	/**
+	 * Journal the registration (or the new services) of a node
+	 * 
+	 * @param node
+	 *            the registered node
+	 */
+	synchronized void upsert(ClusterNode node) {
+		append(RECORD_UPSERT, node.address, node.services);
+	}
+
+	/**
+	 * Journal the removal of a node
+	 * 
+	 * @param node
+	 *            the removed node
+	 */
+	synchronized void remove(ClusterNode node) {
+		append(RECORD_REMOVE, node.address, null);
+	}
+
+	/**
+	 * Write the buffered records and sync the journal to the disk
+	 * 
+	 * @throws IOException
+	 *             if the journal cannot be written
+	 */
+	void sync() throws IOException {
+		FileChannel channel;
+		synchronized (this) {
+			if (!dirty || journalOutput == null)
+				return;
+			journalOutput.flush();
+			dirty = false;
+			channel = journalFile.getChannel();
+		}
+		// The writers do not wait for the disk
+		try {
+			channel.force(false);
+		} catch (ClosedChannelException e) {
+			// The journal has been rotated or closed in the meantime, it was
+			// synced before being closed
+		}
+	}
+
+	/**
+	 * @return the number of records written in the current journal
+	 */
+	synchronized int getJournalRecords() {
+		return journalRecords;
+	}
+
+	/**
+	 * @param nodeCount
+	 *            the number of registered nodes
+	 * @return true if a new snapshot should be written
+	 */
+	synchronized boolean isCompactionDue(int nodeCount) {
+		return journalRecords > COMPACTION_MIN_RECORDS
+				&& journalRecords > nodeCount;
+	}
+
+	/**
+	 * Close the current journal and start a new one. The snapshot of the
+	 * current state has to be written with the returned generation. Must be
+	 * called with the writer lock of the node map, so the new journal
+	 * follows exactly the snapshot.
+	 * 
+	 * @return the generation of the new journal
+	 * @throws IOException
+	 *             if the journal cannot be created
+	 */
+	synchronized long rotate() throws IOException {
+		if (closed)
+			throw new IOException("The registry is closed");
+		closeJournal();
+		generation++;
+		journalFile = new FileOutputStream(new File(directory,
+				JOURNAL_PREFIX + generation), true);
+		journalOutput = new DataOutputStream(new BufferedOutputStream(
+				journalFile, 65536));
+		journalRecords = 0;
+		dirty = false;
+		return generation;
+	}
+
+	/**
+	 * Sync the journal, whatever a concurrent {@link #sync()} is doing, then
+	 * close it. Must be called with the lock.
+	 */
+	private void closeJournal() throws IOException {
+		if (journalOutput == null)
+			return;
+		journalOutput.flush();
+		journalFile.getChannel().force(false);
+		dirty = false;
+		journalOutput.close();
+		journalOutput = null;
+		journalFile = null;
+	}
+
+	/**
+	 * Write the snapshot, then delete the journals it contains. The nodes are
+	 * read outside of the writer lock, a change made in the meantime is also
+	 * in the new journal, where it is replayed again.
+	 * 
+	 * @param snapshotGeneration
+	 *            the generation given by {@link #rotate()}
+	 * @param nodes
+	 *            the registered nodes
+	 * @throws IOException
+	 *             if the snapshot cannot be written
+	 */
+	void writeSnapshot(long snapshotGeneration, List<ClusterNode> nodes)
+			throws IOException {
+		long time = System.currentTimeMillis();
+		File tempFile = new File(directory, SNAPSHOT_TEMP_NAME);
+		// The record buffer of the journal is used by the writers
+		RecordWriter writer = new RecordWriter();
+		try (FileOutputStream file = new FileOutputStream(tempFile)) {
+			DataOutputStream output = new DataOutputStream(
+					new BufferedOutputStream(file, 65536));
+			output.writeInt(MAGIC);
+			output.writeInt(FORMAT_VERSION);
+			output.writeLong(snapshotGeneration);
+			output.writeInt(nodes.size());
+			for (ClusterNode node : nodes) {
+				writer.write(output, RECORD_UPSERT, node.address,
+						node.services);
+			}
+			output.flush();
+			file.getChannel().force(true);
+		}
+		Files.move(tempFile.toPath(),
+				new File(directory, SNAPSHOT_NAME).toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		List<File> obsoletes = new ArrayList<File>(getJournalFiles().headMap(
+				snapshotGeneration).values());
+		for (File obsolete : obsoletes)
+			if (!obsolete.delete())
+				logger.warn("Cannot delete " + obsolete);
+		logger.info("Registry snapshot: " + nodes.size() + " node(s) in "
+				+ (System.currentTimeMillis() - time) + " ms");
+	}
+
+	/**
+	 * Sync and close the journal. The next changes are not persisted.
+	 */
+	synchronized void close() {
+		if (closed)
+			return;
+		try {
+			closeJournal();
+		} catch (IOException e) {
+			logger.error("Cannot close the registry journal", e);
+		}
+		closed = true;
+	}
+}
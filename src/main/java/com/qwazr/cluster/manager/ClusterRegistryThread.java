@@ -0,0 +1,53 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.manager;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.qwazr.utils.threads.PeriodicThread;
+
+/**
+ * Sync the journal of the registry to the disk, and compact it when needed.
+ * The changes made since the last sync may be lost by a crash, the nodes
+ * register again.
+ */
+public class ClusterRegistryThread extends PeriodicThread {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(ClusterRegistryThread.class);
+
+	private final ClusterNodeMap clusterNodeMap;
+
+	ClusterRegistryThread(int monitoring_period_seconds,
+			ClusterNodeMap clusterNodeMap) {
+		super("Registry sync", monitoring_period_seconds);
+		this.clusterNodeMap = clusterNodeMap;
+		setDaemon(true);
+		start();
+	}
+
+	@Override
+	protected void runner() {
+		try {
+			clusterNodeMap.syncStore();
+		} catch (IOException e) {
+			logger.error("Cannot write the registry", e);
+		}
+	}
+}
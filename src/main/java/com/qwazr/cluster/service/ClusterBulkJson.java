@@ -0,0 +1,49 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.service;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+/**
+ * Many registrations and removals sent in one request
+ */
+@JsonInclude(Include.NON_EMPTY)
+public class ClusterBulkJson {
+
+	/**
+	 * The nodes to register
+	 */
+	public final List<ClusterNodeRegisterJson> register;
+
+	/**
+	 * The addresses of the nodes to unregister
+	 */
+	public final List<String> unregister;
+
+	public ClusterBulkJson() {
+		register = null;
+		unregister = null;
+	}
+
+	public ClusterBulkJson(List<ClusterNodeRegisterJson> register,
+			List<String> unregister) {
+		this.register = register;
+		this.unregister = unregister;
+	}
+}
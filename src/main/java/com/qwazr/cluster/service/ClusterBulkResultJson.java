@@ -0,0 +1,58 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.service;
+
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+/**
+ * The result of a bulk request
+ */
+@JsonInclude(Include.NON_EMPTY)
+public class ClusterBulkResultJson {
+
+	/**
+	 * The status of each registered node
+	 */
+	public final Map<String, ClusterNodeStatusJson> registered;
+
+	/**
+	 * The addresses of the unregistered nodes. The unknown nodes are not
+	 * listed.
+	 */
+	public final List<String> unregistered;
+
+	/**
+	 * The addresses which have been rejected, with the error
+	 */
+	public final Map<String, String> errors;
+
+	public ClusterBulkResultJson() {
+		registered = null;
+		unregistered = null;
+		errors = null;
+	}
+
+	public ClusterBulkResultJson(Map<String, ClusterNodeStatusJson> registered,
+			List<String> unregistered, Map<String, String> errors) {
+		this.registered = registered;
+		this.unregistered = unregistered;
+		this.errors = errors;
+	}
+}
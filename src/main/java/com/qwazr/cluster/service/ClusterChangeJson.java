@@ -0,0 +1,113 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.service;
+
+import java.util.Set;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+@JsonInclude(Include.NON_NULL)
+public class ClusterChangeJson {
+
+	public static enum Type {
+
+		/**
+		 * A new node has been registered
+		 */
+		register,
+
+		/**
+		 * The node has been unregistered
+		 */
+		unregister,
+
+		/**
+		 * The node is now online
+		 */
+		active,
+
+		/**
+		 * The node is now offline
+		 */
+		inactive,
+
+		/**
+		 * The services of the node have changed
+		 */
+		services,
+
+		/**
+		 * Only sent by the stream listener: the history is not available, the
+		 * state should be reloaded
+		 */
+		reset;
+	}
+
+	final public long seq;
+
+	final public Type type;
+
+	final public String address;
+
+	final public Set<String> services;
+
+	/**
+	 * The services of the node before a services change
+	 */
+	final public Set<String> previous_services;
+
+	final public ClusterNodeStatusJson status;
+
+	public ClusterChangeJson() {
+		seq = 0;
+		type = null;
+		address = null;
+		services = null;
+		previous_services = null;
+		status = null;
+	}
+
+	public ClusterChangeJson(long seq, Type type, String address,
+			Set<String> services, ClusterNodeStatusJson status) {
+		this(seq, type, address, services, null, status);
+	}
+
+	public ClusterChangeJson(long seq, Type type, String address,
+			Set<String> services, Set<String> previous_services,
+			ClusterNodeStatusJson status) {
+		this.seq = seq;
+		this.type = type;
+		this.address = address;
+		this.services = services;
+		this.previous_services = previous_services;
+		this.status = status;
+	}
+
+	/**
+	 * A node which leaves a service concerns the subscribers of this service
+	 * 
+	 * @param service
+	 *            the name of the service
+	 * @return true if the node provides, or provided, the service
+	 */
+	public boolean concerns(String service) {
+		return (services != null && services.contains(service))
+				|| (previous_services != null && previous_services
+						.contains(service));
+	}
+
+}
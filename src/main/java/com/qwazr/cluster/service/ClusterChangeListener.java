@@ -0,0 +1,30 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.service;
+
+public interface ClusterChangeListener {
+
+	/**
+	 * Called for each change of the cluster. On the master, it is called by
+	 * the writer and should never block.
+	 * 
+	 * @param change
+	 *            the change
+	 * @return false to stop listening
+	 */
+	boolean onChange(ClusterChangeJson change);
+
+}
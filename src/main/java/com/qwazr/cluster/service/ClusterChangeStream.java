@@ -0,0 +1,142 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.qwazr.cluster.manager.ClusterManager;
+import com.qwazr.utils.server.ServerException;
+
+/**
+ * Push the changes to the client using the server-sent events format. The
+ * first event (init) gives the instance and the last sequence number of the
+ * master. Each change is sent as a "change" event. A comment is sent when the
+ * stream is idle, to detect closed connections.
+ */
+class ClusterChangeStream implements StreamingOutput, ClusterChangeListener {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(ClusterChangeStream.class);
+
+	private final static ObjectMapper mapper = new ObjectMapper();
+
+	/**
+	 * The maximum number of pending changes. A slower client is disconnected.
+	 */
+	private final static int QUEUE_SIZE = 1024;
+
+	/**
+	 * Each open stream holds a worker thread of the servlet container (8 per
+	 * core by default). The streams may use half of them.
+	 */
+	private final static int MAX_STREAMS = Math.max(1, Runtime.getRuntime()
+			.availableProcessors() * 4);
+
+	private final static AtomicInteger openStreams = new AtomicInteger();
+
+	private final ClusterManager manager;
+
+	private final String service;
+
+	private final LinkedBlockingQueue<ClusterChangeJson> queue;
+
+	private volatile boolean overflow;
+
+	ClusterChangeStream(ClusterManager manager, String service)
+			throws ServerException {
+		if (!manager.isMaster())
+			throw new ServerException(Status.NOT_ACCEPTABLE,
+					"I am not a master");
+		if (openStreams.get() >= MAX_STREAMS)
+			throw new ServerException(Status.SERVICE_UNAVAILABLE,
+					"Too many change streams: " + MAX_STREAMS);
+		this.manager = manager;
+		this.service = service;
+		this.queue = new LinkedBlockingQueue<ClusterChangeJson>(QUEUE_SIZE);
+		this.overflow = false;
+	}
+
+	@Override
+	public boolean onChange(ClusterChangeJson change) {
+		if (service != null && !change.concerns(service))
+			return true;
+		if (queue.offer(change))
+			return true;
+		overflow = true;
+		return false;
+	}
+
+	private void writeEvent(Writer writer, Long id, String event, Object data)
+			throws IOException {
+		if (id != null)
+			writer.write("id: " + id + '\n');
+		writer.write("event: " + event + '\n');
+		writer.write("data: " + mapper.writeValueAsString(data) + "\n\n");
+		writer.flush();
+	}
+
+	@Override
+	public void write(OutputStream output) throws IOException {
+		Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+		try {
+			// Streams opened at the same time may pass the check of the
+			// constructor, the client reconnects later
+			if (openStreams.incrementAndGet() > MAX_STREAMS) {
+				logger.warn("Too many change streams, disconnected");
+				return;
+			}
+			manager.addChangeListener(this);
+			writeEvent(writer, null, "init", manager.getChanges(0, null));
+			while (!overflow) {
+				ClusterChangeJson change = queue.poll(
+						ClusterServiceInterface.STREAM_HEARTBEAT_MS,
+						TimeUnit.MILLISECONDS);
+				if (change == null) {
+					writer.write(":\n\n");
+					writer.flush();
+					continue;
+				}
+				writeEvent(writer, change.seq, "change", change);
+			}
+			logger.warn("Change stream too slow, disconnected");
+		} catch (InterruptedException e) {
+			logger.warn(e.getMessage(), e);
+		} catch (ServerException e) {
+			throw new IOException(e);
+		} finally {
+			openStreams.decrementAndGet();
+			try {
+				manager.removeChangeListener(this);
+			} catch (ServerException e) {
+				logger.warn(e.getMessage(), e);
+			}
+		}
+	}
+}
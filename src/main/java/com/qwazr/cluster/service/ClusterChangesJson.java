@@ -0,0 +1,62 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.service;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+@JsonInclude(Include.NON_NULL)
+public class ClusterChangesJson {
+
+	/**
+	 * The identifier of the master which owns the sequence numbers
+	 */
+	final public String instance;
+
+	/**
+	 * The sequence number of the latest change
+	 */
+	final public long last;
+
+	/**
+	 * True if the changes are not available. The client should reload the
+	 * full node list, then ask the changes since the last sequence number.
+	 */
+	final public boolean full_snapshot;
+
+	/**
+	 * The changes, in sequence order
+	 */
+	final public List<ClusterChangeJson> changes;
+
+	public ClusterChangesJson() {
+		instance = null;
+		last = 0;
+		full_snapshot = false;
+		changes = null;
+	}
+
+	public ClusterChangesJson(String instance, long last,
+			List<ClusterChangeJson> changes) {
+		this.instance = instance;
+		this.last = last;
+		this.full_snapshot = changes == null;
+		this.changes = changes;
+	}
+
+}
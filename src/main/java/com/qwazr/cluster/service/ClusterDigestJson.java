@@ -0,0 +1,44 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.service;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+@JsonInclude(Include.NON_NULL)
+public class ClusterDigestJson {
+
+	/**
+	 * The hash of all the registrations
+	 */
+	final public long root;
+
+	/**
+	 * The hash of each bucket
+	 */
+	final public long[] buckets;
+
+	public ClusterDigestJson() {
+		root = 0;
+		buckets = null;
+	}
+
+	public ClusterDigestJson(long root, long[] buckets) {
+		this.root = root;
+		this.buckets = buckets;
+	}
+
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.service;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+/**
+ * The latency of the checks over the recent window, in milliseconds
+ */
+@JsonInclude(Include.NON_NULL)
+public class ClusterLatencyJson {
+
+	public final Long count;
+	public final Long p50;
+	public final Long p90;
+	public final Long p99;
+	public final Long max;
+
+	public ClusterLatencyJson() {
+		count = null;
+		p50 = null;
+		p90 = null;
+		p99 = null;
+		max = null;
+	}
+
+	public ClusterLatencyJson(long count, long p50, long p90, long p99,
+			long max) {
+		this.count = count;
+		this.p50 = p50;
+		this.p90 = p90;
+		this.p99 = p99;
+		this.max = max;
+	}
+}
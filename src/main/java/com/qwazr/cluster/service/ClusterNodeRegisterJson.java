@@ -28,19 +28,33 @@ public class ClusterNodeRegisterJson {
 	public final String address;
 	public final Set<String> services;
 
+	/**
+	 * If set, the node renews a lease of this duration with heartbeats
+	 * instead of being checked by the master
+	 */
+	public final Integer lease_ms;
+
 	public ClusterNodeRegisterJson() {
 		address = null;
 		services = null;
+		lease_ms = null;
 	}
 
 	public ClusterNodeRegisterJson(String address, Set<String> services) {
+		this(address, services, null);
+	}
+
+	public ClusterNodeRegisterJson(String address, Set<String> services,
+			Integer lease_ms) {
 		this.address = address;
 		this.services = services;
+		this.lease_ms = lease_ms;
 	}
 
 	public ClusterNodeRegisterJson(String address, String... services) {
 		this.address = address;
 		this.services = new HashSet<String>(Arrays.asList(services));
+		this.lease_ms = null;
 	}
 
 }
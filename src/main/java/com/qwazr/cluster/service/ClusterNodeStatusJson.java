@@ -58,6 +58,11 @@ public class ClusterNodeStatusJson {
 
 	final public String error;
 
+	/**
+	 * The suspicion level given by the failure detector
+	 */
+	final public Double phi;
+
 	public ClusterNodeStatusJson() {
 		online = false;
 		error_since = null;
@@ -65,11 +70,18 @@ public class ClusterNodeStatusJson {
 		state = null;
 		latency = null;
 		error = null;
+		phi = null;
 	}
 
 	public ClusterNodeStatusJson(Date latest_check, State state, Long latency,
 			String error, Date error_since) {
+		this(latest_check, state, latency, error, error_since, null);
+	}
+
+	public ClusterNodeStatusJson(Date latest_check, State state, Long latency,
+			String error, Date error_since, Double phi) {
 		this.latest_check = latest_check;
+		this.phi = phi;
 		this.state = state;
 		this.latency = latency;
 		this.error = error;
@@ -0,0 +1,44 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.service;
+
+/**
+ * How the active node is chosen by the selection endpoint
+ */
+public enum ClusterSelectionStrategy {
+
+	/**
+	 * Each active node has the same probability
+	 */
+	uniform,
+
+	/**
+	 * Two nodes are picked at random, the one with the lowest observed latency
+	 * is chosen
+	 */
+	power_of_two,
+
+	/**
+	 * The probability of a node is inversely proportional to its observed
+	 * latency
+	 */
+	latency_weighted,
+
+	/**
+	 * The active nodes are chosen in turn
+	 */
+	round_robin;
+}
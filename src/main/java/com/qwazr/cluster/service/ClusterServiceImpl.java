@@ -20,7 +20,14 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.Response.Status;
 
 import com.qwazr.cluster.manager.ClusterManager;
@@ -29,17 +36,38 @@ import com.qwazr.utils.server.ServerException;
 
 public class ClusterServiceImpl implements ClusterServiceInterface {
 
+	@Context
+	private Request request;
+
+	@Context
+	private HttpServletResponse response;
+
+	/**
+	 * Set the ETag of the response. If the client already has the current
+	 * version (If-None-Match), a 304 Not Modified is returned. The same ETag
+	 * is given to the JSON and the Smile representations, so it is weak: they
+	 * are equivalent, not identical. The response varies with the Accept
+	 * header.
+	 * 
+	 * @param etag
+	 *            the current ETag of the resource
+	 */
+	private void checkETag(String etag) {
+		EntityTag entityTag = new EntityTag(etag, true);
+		ResponseBuilder builder = request.evaluatePreconditions(entityTag);
+		if (builder != null)
+			throw new WebApplicationException(builder.header(HttpHeaders.VARY,
+					HttpHeaders.ACCEPT).build());
+		response.setHeader(HttpHeaders.ETAG, entityTag.toString());
+		response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+	}
+
 	@Override
 	public ClusterStatusJson list() {
 		try {
 			ClusterManager manager = ClusterManager.INSTANCE;
-			List<ClusterNode> clusterNodeList = manager.getNodeList();
-			if (clusterNodeList == null)
-				return null;
-			ClusterStatusJson clusterStatus = new ClusterStatusJson(manager);
-			for (ClusterNode clusterNode : clusterNodeList)
-				clusterStatus.addNodeStatus(clusterNode);
-			return clusterStatus;
+			checkETag(manager.getClusterStatusETag());
+			return manager.getClusterStatus();
 		} catch (ServerException e) {
 			throw e.getJsonException();
 		}
@@ -49,6 +77,7 @@ public class ClusterServiceImpl implements ClusterServiceInterface {
 	public Map<String, Set<String>> getNodes() {
 		try {
 			ClusterManager manager = ClusterManager.INSTANCE;
+			checkETag(manager.getNodesETag());
 			Map<String, Set<String>> nodeMap = new HashMap<String, Set<String>>();
 			List<ClusterNode> clusterNodeList;
 			clusterNodeList = manager.getNodeList();
@@ -64,6 +93,54 @@ public class ClusterServiceImpl implements ClusterServiceInterface {
 		}
 	}
 
+	@Override
+	public ClusterChangesJson getChanges(Long since, String instance) {
+		try {
+			return ClusterManager.INSTANCE.getChanges(since == null ? 0
+					: since, instance);
+		} catch (ServerException e) {
+			throw e.getJsonException();
+		}
+	}
+
+	@Override
+	public Response getStream(String service_name) {
+		try {
+			ClusterChangeStream stream = new ClusterChangeStream(
+					ClusterManager.INSTANCE, service_name);
+			return Response.ok(stream, TEXT_EVENT_STREAM)
+					.header("Cache-Control", "no-cache").build();
+		} catch (ServerException e) {
+			throw e.getJsonException();
+		}
+	}
+
+	@Override
+	public ClusterDigestJson getDigest() {
+		try {
+			ClusterManager manager = ClusterManager.INSTANCE;
+			checkETag(manager.getDigestETag());
+			return manager.getDigest();
+		} catch (ServerException e) {
+			throw e.getJsonException();
+		}
+	}
+
+	@Override
+	public Map<String, Set<String>> getDigestNodes(Set<Integer> buckets) {
+		try {
+			return ClusterManager.INSTANCE.getDigestNodes(buckets);
+		} catch (ServerException e) {
+			throw e.getJsonException();
+		}
+	}
+
+	@Override
+	public Response getReady() {
+		return ClusterManager.INSTANCE.isReady() ? Response.ok().build()
+				: Response.status(Status.SERVICE_UNAVAILABLE).build();
+	}
+
 	@Override
 	public Response check(String checkValue) {
 		return Response.ok()
@@ -78,7 +155,7 @@ public class ClusterServiceImpl implements ClusterServiceInterface {
 		ClusterManager manager = ClusterManager.INSTANCE;
 		try {
 			ClusterNode clusterNode = manager.upsertNode(register.address,
-					register.services);
+					register.services, register.lease_ms);
 			return clusterNode.getStatus();
 		} catch (Exception e) {
 			throw ServerException.getJsonException(e);
@@ -99,12 +176,48 @@ public class ClusterServiceImpl implements ClusterServiceInterface {
 		}
 	}
 
+	@Override
+	public Response heartbeat(String address) {
+		if (address == null)
+			throw new ServerException(Status.NOT_ACCEPTABLE).getJsonException();
+		ClusterManager manager = ClusterManager.INSTANCE;
+		try {
+			return manager.renewLease(address) ? Response.ok().build()
+					: Response.status(Status.NOT_FOUND).build();
+		} catch (Exception e) {
+			throw ServerException.getTextException(e);
+		}
+	}
+
+	@Override
+	public ClusterBulkResultJson bulk(ClusterBulkJson bulk) {
+		if (bulk == null)
+			throw new ServerException(Status.NOT_ACCEPTABLE).getJsonException();
+		try {
+			return ClusterManager.INSTANCE.bulk(bulk.register, bulk.unregister);
+		} catch (ServerException e) {
+			throw e.getJsonException();
+		}
+	}
+
+	@Override
+	public ClusterServiceLatencyJson getServiceLatency(String service_name) {
+		ClusterManager manager = ClusterManager.INSTANCE;
+		try {
+			checkETag(manager.getServiceLatencyETag(service_name));
+			return manager.getServiceLatency(service_name);
+		} catch (ServerException e) {
+			throw e.getJsonException();
+		}
+	}
+
 	@Override
 	public List<String> getActiveNodes(String service_name) {
 		if (service_name == null)
 			throw new ServerException(Status.NOT_ACCEPTABLE).getJsonException();
 		ClusterManager manager = ClusterManager.INSTANCE;
 		try {
+			checkETag(manager.getActiveNodesETag(service_name));
 			return manager.getActiveNodes(service_name);
 		} catch (ServerException e) {
 			throw e.getJsonException();
@@ -112,12 +225,44 @@ public class ClusterServiceImpl implements ClusterServiceInterface {
 	}
 
 	@Override
-	public String getActiveNodeRandom(String service_name) {
+	public List<String> getActiveNodesByHash(String service_name, String key,
+			Integer replicas) {
+		if (service_name == null || key == null)
+			throw new ServerException(Status.NOT_ACCEPTABLE).getJsonException();
+		if (replicas != null && replicas < 1)
+			throw new ServerException(Status.NOT_ACCEPTABLE,
+					"The number of replicas must be positive").getJsonException();
+		ClusterManager manager = ClusterManager.INSTANCE;
+		try {
+			// The ring only changes with the active nodes
+			checkETag(manager.getActiveNodesETag(service_name));
+			return manager.getActiveNodesByHash(service_name, key,
+					replicas == null ? 1 : replicas);
+		} catch (ServerException e) {
+			throw e.getJsonException();
+		}
+	}
+
+	@Override
+	public String getActiveNodeRandom(String service_name,
+			ClusterSelectionStrategy strategy) {
 		if (service_name == null)
 			throw new ServerException(Status.NOT_ACCEPTABLE).getJsonException();
 		ClusterManager manager = ClusterManager.INSTANCE;
 		try {
-			return manager.getActiveNodeRandom(service_name);
+			return manager.getActiveNode(service_name, strategy);
+		} catch (ServerException e) {
+			throw e.getJsonException();
+		}
+	}
+
+	@Override
+	public Map<String, ClusterServiceStatusJson> getServicesStatus(
+			Set<String> service_names) {
+		ClusterManager manager = ClusterManager.INSTANCE;
+		try {
+			checkETag(manager.getServicesStatusETag(service_names));
+			return manager.getServiceStatus(service_names);
 		} catch (ServerException e) {
 			throw e.getJsonException();
 		}
@@ -127,6 +272,7 @@ public class ClusterServiceImpl implements ClusterServiceInterface {
 	public ClusterServiceStatusJson getServiceStatus(String service_name) {
 		ClusterManager manager = ClusterManager.INSTANCE;
 		try {
+			checkETag(manager.getServiceStatusETag(service_name));
 			return manager.getServiceStatus(service_name);
 		} catch (ServerException e) {
 			throw e.getJsonException();
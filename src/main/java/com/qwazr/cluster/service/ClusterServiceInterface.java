@@ -33,52 +33,133 @@ import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
+import com.fasterxml.jackson.jaxrs.smile.SmileMediaTypes;
+
 @Path("/cluster")
 public interface ClusterServiceInterface {
 
 	public final String HEADER_CHECK_NAME = "X-OSS-CLUSTER-CHECK-TOKEN";
 
+	public final String TEXT_EVENT_STREAM = "text/event-stream";
+
+	/**
+	 * The binary encoding of the JSON documents, smaller and faster to parse.
+	 * JSON is still the default when the client accepts any type.
+	 */
+	public final String APPLICATION_SMILE = SmileMediaTypes.APPLICATION_JACKSON_SMILE;
+
+	/**
+	 * The period of the comments sent on an idle stream
+	 */
+	public final int STREAM_HEARTBEAT_MS = 15000;
+
 	@GET
 	@Path("/")
-	@Produces(MediaType.APPLICATION_JSON)
+	@Produces({ MediaType.APPLICATION_JSON, APPLICATION_SMILE })
 	public ClusterStatusJson list();
 
 	@GET
 	@Path("/nodes")
-	@Produces(MediaType.APPLICATION_JSON)
+	@Produces({ MediaType.APPLICATION_JSON, APPLICATION_SMILE })
 	public Map<String, Set<String>> getNodes();
 
+	@GET
+	@Path("/changes")
+	@Produces({ MediaType.APPLICATION_JSON, APPLICATION_SMILE })
+	public ClusterChangesJson getChanges(@QueryParam("since") Long since,
+			@QueryParam("instance") String instance);
+
+	@GET
+	@Path("/stream")
+	@Produces(TEXT_EVENT_STREAM)
+	public Response getStream(@QueryParam("service") String service_name);
+
+	@GET
+	@Path("/digest")
+	@Produces({ MediaType.APPLICATION_JSON, APPLICATION_SMILE })
+	public ClusterDigestJson getDigest();
+
+	@GET
+	@Path("/digest/nodes")
+	@Produces({ MediaType.APPLICATION_JSON, APPLICATION_SMILE })
+	public Map<String, Set<String>> getDigestNodes(
+			@QueryParam("bucket") Set<Integer> buckets);
+
 	@PUT
 	@POST
 	@Path("/")
-	@Consumes(MediaType.APPLICATION_JSON)
-	@Produces(MediaType.APPLICATION_JSON)
+	@Consumes({ MediaType.APPLICATION_JSON, APPLICATION_SMILE })
+	@Produces({ MediaType.APPLICATION_JSON, APPLICATION_SMILE })
 	public ClusterNodeStatusJson register(ClusterNodeRegisterJson register);
 
 	@DELETE
 	@Path("/")
 	public Response unregister(@QueryParam("address") String address);
 
+	@POST
+	@Path("/heartbeat")
+	public Response heartbeat(@QueryParam("address") String address);
+
+	@POST
+	@Path("/bulk")
+	@Consumes({ MediaType.APPLICATION_JSON, APPLICATION_SMILE })
+	@Produces({ MediaType.APPLICATION_JSON, APPLICATION_SMILE })
+	public ClusterBulkResultJson bulk(ClusterBulkJson bulk);
+
+	@GET
+	@Path("/ready")
+	public Response getReady();
+
 	@HEAD
 	@Path("/")
 	public Response check(@HeaderParam(HEADER_CHECK_NAME) String checkValue);
 
+	@GET
+	@Path("/services")
+	@Produces({ MediaType.APPLICATION_JSON, APPLICATION_SMILE })
+	public Map<String, ClusterServiceStatusJson> getServicesStatus(
+			@QueryParam("service") Set<String> service_names);
+
 	@GET
 	@Path("/services/{service_name}")
-	@Produces(MediaType.APPLICATION_JSON)
+	@Produces({ MediaType.APPLICATION_JSON, APPLICATION_SMILE })
 	public ClusterServiceStatusJson getServiceStatus(
 			@PathParam("service_name") String service_name);
 
+	@GET
+	@Path("/services/{service_name}/latency")
+	@Produces({ MediaType.APPLICATION_JSON, APPLICATION_SMILE })
+	public ClusterServiceLatencyJson getServiceLatency(
+			@PathParam("service_name") String service_name);
+
 	@GET
 	@Path("/services/{service_name}/active")
-	@Produces(MediaType.APPLICATION_JSON)
+	@Produces({ MediaType.APPLICATION_JSON, APPLICATION_SMILE })
 	public List<String> getActiveNodes(
 			@PathParam("service_name") String service_name);
 
+	@GET
+	@Path("/services/{service_name}/active/hash/{key}")
+	@Produces({ MediaType.APPLICATION_JSON, APPLICATION_SMILE })
+	public List<String> getActiveNodesByHash(
+			@PathParam("service_name") String service_name,
+			@PathParam("key") String key,
+			@QueryParam("replicas") Integer replicas);
+
 	@GET
 	@Path("/services/{service_name}/active/random")
 	@Produces(MediaType.TEXT_PLAIN)
 	public String getActiveNodeRandom(
-			@PathParam("service_name") String service_name);
+			@PathParam("service_name") String service_name,
+			@QueryParam("strategy") ClusterSelectionStrategy strategy);
+
+	/**
+	 * @param service_name
+	 *            the name of the service
+	 * @return an active node selected with the default (uniform) strategy
+	 */
+	public default String getActiveNodeRandom(String service_name) {
+		return getActiveNodeRandom(service_name, null);
+	}
 
 }
@@ -0,0 +1,42 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.service;
+
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+/**
+ * The latency of a service: all its nodes together, then each node
+ */
+@JsonInclude(Include.NON_NULL)
+public class ClusterServiceLatencyJson {
+
+	public final ClusterLatencyJson service;
+	public final Map<String, ClusterLatencyJson> nodes;
+
+	public ClusterServiceLatencyJson() {
+		service = null;
+		nodes = null;
+	}
+
+	public ClusterServiceLatencyJson(ClusterLatencyJson service,
+			Map<String, ClusterLatencyJson> nodes) {
+		this.service = service;
+		this.nodes = nodes;
+	}
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.service;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.Produces;
+import javax.ws.rs.ext.Provider;
+
+import com.fasterxml.jackson.jaxrs.smile.JacksonSmileProvider;
+import com.qwazr.cluster.client.ClusterWireFormat;
+
+/**
+ * Read and write the Smile documents with the mapper of the cluster clients,
+ * which writes the repeated strings once
+ */
+@Provider
+@Consumes(ClusterServiceInterface.APPLICATION_SMILE)
+@Produces(ClusterServiceInterface.APPLICATION_SMILE)
+public class ClusterSmileProvider extends JacksonSmileProvider {
+
+	public ClusterSmileProvider() {
+		super(ClusterWireFormat.smile.mapper);
+	}
+}
@@ -31,6 +31,11 @@ import com.qwazr.cluster.service.ClusterServiceStatusJson.StatusEnum;
 public class ClusterStatusJson {
 
 	public final boolean is_master;
+
+	/**
+	 * False until a master has reconciled its nodes with the other masters
+	 */
+	public final Boolean ready;
 	public final Set<String> active_nodes;
 	public final Map<String, ClusterNodeStatusJson> inactive_nodes;
 	public final Map<String, StatusEnum> services;
@@ -39,6 +44,7 @@ public class ClusterStatusJson {
 
 	public ClusterStatusJson() {
 		is_master = false;
+		ready = null;
 		active_nodes = null;
 		inactive_nodes = null;
 		services = null;
@@ -47,12 +53,27 @@ public class ClusterStatusJson {
 	}
 
 	public ClusterStatusJson(ClusterManager clusterManager) {
-		this.is_master = clusterManager.isMaster();
+		this(clusterManager.isMaster(), clusterManager.isReady(),
+				clusterManager.getServicesStatus(), clusterManager
+						.getMasterSet(), clusterManager.getLastExecutions());
+	}
+
+	public ClusterStatusJson(boolean is_master,
+			Map<String, StatusEnum> services, Set<String> masters,
+			Map<String, Date> last_executions) {
+		this(is_master, null, services, masters, last_executions);
+	}
+
+	public ClusterStatusJson(boolean is_master, Boolean ready,
+			Map<String, StatusEnum> services, Set<String> masters,
+			Map<String, Date> last_executions) {
+		this.is_master = is_master;
+		this.ready = ready;
 		this.active_nodes = new TreeSet<String>();
 		this.inactive_nodes = new TreeMap<String, ClusterNodeStatusJson>();
-		this.services = clusterManager.getServicesStatus();
-		this.masters = clusterManager.getMasterSet();
-		this.last_executions = clusterManager.getLastExecutions();
+		this.services = services;
+		this.masters = masters;
+		this.last_executions = last_executions;
 	}
 
 	public void addNodeStatus(ClusterNode node) {
@@ -0,0 +1,139 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.client;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ClusterMasterSelectorTest {
+
+	private static ClusterMasterStats master(double latency) {
+		ClusterMasterStats stats = new ClusterMasterStats("master");
+		if (latency > 0)
+			stats.success((long) latency, true);
+		return stats;
+	}
+
+	private static ClusterMasterStats open() {
+		ClusterMasterStats stats = new ClusterMasterStats("open");
+		long time = System.currentTimeMillis();
+		for (int i = 0; i < ClusterMasterStats.FAILURE_THRESHOLD; i++)
+			stats.failure(time);
+		return stats;
+	}
+
+	private static List<ClusterMasterStats> order(
+			ClusterMasterStats... masters) {
+		List<ClusterMasterStats> order = ClusterMasterSelector.order(
+				Arrays.asList(masters), Function.identity());
+		Assert.assertEquals(masters.length, order.size());
+		return order;
+	}
+
+	@Test
+	public void openMastersAreLast() {
+		ClusterMasterStats open = open();
+		ClusterMasterStats fast = master(1);
+		ClusterMasterStats slow = master(100);
+		for (int i = 0; i < 100; i++)
+			Assert.assertSame(open, order(open, fast, slow).get(2));
+		// The probe is not due yet
+		Assert.assertEquals(ClusterMasterStats.Circuit.open, open.getCircuit());
+	}
+
+	@Test
+	public void dueProbeIsFirst() {
+		ClusterMasterStats open1 = open();
+		ClusterMasterStats open2 = open();
+		ClusterMasterStats healthy = master(1);
+		long due = System.currentTimeMillis() + ClusterMasterStats.MIN_OPEN_MS;
+		while (System.currentTimeMillis() < due)
+			sleep(due - System.currentTimeMillis());
+		List<ClusterMasterStats> order = order(open1, healthy, open2);
+		// Only one probe per read
+		ClusterMasterStats probe = order.get(0);
+		Assert.assertEquals(ClusterMasterStats.Circuit.half_open,
+				probe.getCircuit());
+		Assert.assertSame(healthy, order.get(1));
+		ClusterMasterStats other = order.get(2);
+		Assert.assertNotSame(probe, other);
+		Assert.assertEquals(ClusterMasterStats.Circuit.open, other.getCircuit());
+		// The next read sends the other probe
+		order = order(open1, healthy, open2);
+		Assert.assertSame(other, order.get(0));
+		Assert.assertSame(healthy, order.get(1));
+		Assert.assertSame(probe, order.get(2));
+	}
+
+	@Test
+	public void failoverFollowsTheLatency() {
+		ClusterMasterStats fast = master(1);
+		ClusterMasterStats medium = master(10);
+		ClusterMasterStats slow = master(100);
+		for (int i = 0; i < 100; i++) {
+			List<ClusterMasterStats> order = order(slow, medium, fast);
+			List<ClusterMasterStats> rest = order.subList(1, order.size());
+			for (int j = 1; j < rest.size(); j++)
+				Assert.assertTrue(rest.get(j - 1).getLatencyAverage() <= rest
+						.get(j).getLatencyAverage());
+		}
+	}
+
+	@Test
+	public void fastestMasterIsChosenMoreOften() {
+		ClusterMasterStats fast = master(1);
+		ClusterMasterStats slow = master(100);
+		int fastFirst = 0;
+		for (int i = 0; i < 1000; i++)
+			if (order(slow, fast).get(0) == fast)
+				fastFirst++;
+		// The expected share is 100 / 101
+		Assert.assertTrue(fastFirst > 900);
+		// The slow master still receives reads
+		Assert.assertTrue(fastFirst < 1000);
+	}
+
+	@Test
+	public void unmeasuredMasterGetsTheBestWeight() {
+		ClusterMasterStats unknown = master(0);
+		ClusterMasterStats fast = master(1);
+		ClusterMasterStats slow = master(100);
+		int unknownFirst = 0;
+		int fastFirst = 0;
+		for (int i = 0; i < 1000; i++) {
+			ClusterMasterStats first = order(slow, unknown, fast).get(0);
+			if (first == unknown)
+				unknownFirst++;
+			else if (first == fast)
+				fastFirst++;
+		}
+		// The same weight as the fastest master: 100 / 201 of the reads
+		Assert.assertTrue(unknownFirst > 400);
+		Assert.assertTrue(fastFirst > 400);
+	}
+
+	private static void sleep(long ms) {
+		try {
+			Thread.sleep(ms);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,236 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.client;
+
+import java.io.IOException;
+import java.net.ConnectException;
+
+import javax.ws.rs.WebApplicationException;
+
+import org.apache.http.client.ClientProtocolException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.qwazr.cluster.client.ClusterMasterStats.Circuit;
+
+public class ClusterMasterStatsTest {
+
+	private final static long TIME = 1000000;
+
+	/**
+	 * @return stats with an open circuit since TIME
+	 */
+	private static ClusterMasterStats open() {
+		ClusterMasterStats stats = new ClusterMasterStats("master");
+		for (int i = 0; i < ClusterMasterStats.FAILURE_THRESHOLD; i++)
+			stats.failure(TIME);
+		Assert.assertEquals(Circuit.open, stats.getCircuit());
+		return stats;
+	}
+
+	@Test
+	public void circuitOpensAfterConsecutiveFailures() {
+		ClusterMasterStats stats = new ClusterMasterStats("master");
+		for (int i = 1; i < ClusterMasterStats.FAILURE_THRESHOLD; i++) {
+			stats.failure(TIME);
+			Assert.assertEquals(Circuit.closed, stats.getCircuit());
+		}
+		// A success resets the count
+		stats.success(10, true);
+		for (int i = 1; i < ClusterMasterStats.FAILURE_THRESHOLD; i++)
+			stats.failure(TIME);
+		Assert.assertEquals(Circuit.closed, stats.getCircuit());
+		stats.failure(TIME);
+		Assert.assertEquals(Circuit.open, stats.getCircuit());
+	}
+
+	@Test
+	public void openHalfOpenClosed() {
+		ClusterMasterStats stats = open();
+		long due = TIME + ClusterMasterStats.MIN_OPEN_MS;
+		Assert.assertFalse(stats.isProbeDue(due - 1));
+		Assert.assertFalse(stats.acquireProbe(due - 1));
+		Assert.assertTrue(stats.isProbeDue(due));
+		Assert.assertTrue(stats.acquireProbe(due));
+		Assert.assertEquals(Circuit.half_open, stats.getCircuit());
+		// Only one probe at a time
+		Assert.assertFalse(stats.acquireProbe(due));
+		stats.success(10, false);
+		Assert.assertEquals(Circuit.closed, stats.getCircuit());
+		Assert.assertFalse(stats.isProbeDue(due));
+	}
+
+	@Test
+	public void probeBackoffDoublesUpToTheMaximum() {
+		ClusterMasterStats stats = open();
+		long time = TIME;
+		long expected = ClusterMasterStats.MIN_OPEN_MS;
+		for (int i = 0; i < 10; i++) {
+			Assert.assertFalse(stats.acquireProbe(time + expected - 1));
+			time += expected;
+			Assert.assertTrue(stats.acquireProbe(time));
+			// The probe fails
+			stats.failure(time);
+			Assert.assertEquals(Circuit.open, stats.getCircuit());
+			expected = Math.min(expected * 2, ClusterMasterStats.MAX_OPEN_MS);
+		}
+		Assert.assertEquals(ClusterMasterStats.MAX_OPEN_MS, expected);
+		Assert.assertFalse(stats.isProbeDue(time
+				+ ClusterMasterStats.MAX_OPEN_MS - 1));
+		Assert.assertTrue(stats.isProbeDue(time
+				+ ClusterMasterStats.MAX_OPEN_MS));
+	}
+
+	@Test
+	public void successResetsTheBackoff() {
+		ClusterMasterStats stats = open();
+		long time = TIME + ClusterMasterStats.MIN_OPEN_MS;
+		Assert.assertTrue(stats.acquireProbe(time));
+		stats.failure(time);
+		time += ClusterMasterStats.MIN_OPEN_MS * 2;
+		Assert.assertTrue(stats.acquireProbe(time));
+		stats.success(10, true);
+		for (int i = 0; i < ClusterMasterStats.FAILURE_THRESHOLD; i++)
+			stats.failure(time);
+		Assert.assertTrue(stats.isProbeDue(time
+				+ ClusterMasterStats.MIN_OPEN_MS));
+	}
+
+	@Test
+	public void cancelledProbeAllowsAnotherOne() {
+		ClusterMasterStats stats = open();
+		long due = TIME + ClusterMasterStats.MIN_OPEN_MS;
+		Assert.assertTrue(stats.acquireProbe(due));
+		stats.cancelled();
+		Assert.assertEquals(Circuit.open, stats.getCircuit());
+		Assert.assertTrue(stats.acquireProbe(due));
+	}
+
+	@Test
+	public void answeredProbeClosesTheCircuit() {
+		ClusterMasterStats stats = open();
+		long due = TIME + ClusterMasterStats.MIN_OPEN_MS;
+		Assert.assertTrue(stats.acquireProbe(due));
+		// An HTTP error: the master is reachable
+		stats.answered();
+		Assert.assertEquals(Circuit.closed, stats.getCircuit());
+		Assert.assertEquals(ClusterMasterStats.DEFAULT_HEDGE_DELAY_MS,
+				stats.getHedgeDelay());
+		Assert.assertEquals(0, stats.getLatencyAverage(), 0);
+	}
+
+	@Test
+	public void lostProbeAllowsAnotherOne() {
+		ClusterMasterStats stats = open();
+		long due = TIME + ClusterMasterStats.MIN_OPEN_MS;
+		Assert.assertTrue(stats.acquireProbe(due));
+		Assert.assertFalse(stats.acquireProbe(due
+				+ ClusterMasterStats.MAX_OPEN_MS - 1));
+		Assert.assertTrue(stats.acquireProbe(due
+				+ ClusterMasterStats.MAX_OPEN_MS));
+	}
+
+	@Test
+	public void cancelledRequestKeepsTheCircuitClosed() {
+		ClusterMasterStats stats = new ClusterMasterStats("master");
+		stats.cancelled();
+		Assert.assertEquals(Circuit.closed, stats.getCircuit());
+	}
+
+	@Test
+	public void hedgeDelayIsThe95thPercentileOfTheReads() {
+		ClusterMasterStats stats = new ClusterMasterStats("master");
+		for (int i = 1; i < ClusterMasterStats.MIN_SAMPLES; i++)
+			stats.success(i, true);
+		Assert.assertEquals(ClusterMasterStats.DEFAULT_HEDGE_DELAY_MS,
+				stats.getHedgeDelay());
+		stats.success(ClusterMasterStats.MIN_SAMPLES, true);
+		// 1 to 16 ms: the 95th percentile is the 16th sample
+		Assert.assertEquals(ClusterMasterStats.MIN_SAMPLES,
+				stats.getHedgeDelay());
+		// The writes are ignored
+		for (int i = 0; i < ClusterMasterStats.SAMPLES; i++)
+			stats.success(5000, false);
+		Assert.assertEquals(ClusterMasterStats.MIN_SAMPLES,
+				stats.getHedgeDelay());
+		// The delay has a minimum
+		for (int i = 0; i < ClusterMasterStats.SAMPLES; i++)
+			stats.success(0, true);
+		Assert.assertEquals(ClusterMasterStats.MIN_HEDGE_DELAY_MS,
+				stats.getHedgeDelay());
+	}
+
+	@Test
+	public void cancelledSlowReadsKeepTheHedgeDelay() {
+		ClusterMasterStats stats = new ClusterMasterStats("master");
+		for (int i = 0; i < ClusterMasterStats.MIN_SAMPLES; i++)
+			stats.success(10, true);
+		Assert.assertEquals(10, stats.getHedgeDelay());
+		// The hedged reads which lost are slower than the delay
+		for (int i = 0; i < ClusterMasterStats.MIN_SAMPLES; i++)
+			stats.cancelled(50, true);
+		Assert.assertEquals(50, stats.getHedgeDelay());
+		// A shorter elapsed time tells nothing, the writes are ignored
+		for (int i = 0; i < ClusterMasterStats.SAMPLES; i++) {
+			stats.cancelled(3, true);
+			stats.cancelled(5000, false);
+		}
+		Assert.assertEquals(50, stats.getHedgeDelay());
+		// The latency average only follows the answers
+		Assert.assertEquals(10, stats.getLatencyAverage(), 0);
+	}
+
+	@Test
+	public void latencyAverage() {
+		ClusterMasterStats stats = new ClusterMasterStats("master");
+		Assert.assertEquals(0, stats.getLatencyAverage(), 0);
+		stats.success(100, true);
+		Assert.assertEquals(100, stats.getLatencyAverage(), 0);
+		stats.success(5000, false);
+		Assert.assertEquals(100, stats.getLatencyAverage(), 0);
+		stats.success(200, true);
+		Assert.assertTrue(stats.getLatencyAverage() > 100);
+		Assert.assertTrue(stats.getLatencyAverage() < 200);
+	}
+
+	@Test
+	public void healthFailures() {
+		Assert.assertTrue(ClusterMasterStats
+				.isHealthFailure(new ConnectException()));
+		Assert.assertTrue(ClusterMasterStats
+				.isHealthFailure(new WebApplicationException(new IOException())));
+		Assert.assertFalse(ClusterMasterStats
+				.isHealthFailure(new ClientProtocolException()));
+		Assert.assertFalse(ClusterMasterStats
+				.isHealthFailure(new JsonParseException("bad", null)));
+		Assert.assertFalse(ClusterMasterStats
+				.isHealthFailure(new WebApplicationException(503)));
+	}
+
+	@Test
+	public void answers() {
+		Assert.assertTrue(ClusterMasterStats
+				.isAnswer(new WebApplicationException(
+						new ClientProtocolException())));
+		Assert.assertTrue(ClusterMasterStats
+				.isAnswer(new JsonParseException("bad", null)));
+		Assert.assertFalse(ClusterMasterStats
+				.isAnswer(new WebApplicationException(new IOException())));
+		Assert.assertFalse(ClusterMasterStats
+				.isAnswer(new IllegalStateException()));
+	}
+}
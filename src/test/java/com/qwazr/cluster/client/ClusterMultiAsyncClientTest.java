@@ -0,0 +1,218 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.client;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response.Status;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.qwazr.cluster.service.ClusterNodeRegisterJson;
+import com.qwazr.cluster.service.ClusterNodeStatusJson;
+import com.qwazr.cluster.service.ClusterSelectionStrategy;
+
+public class ClusterMultiAsyncClientTest {
+
+	private enum Behavior {
+
+		/**
+		 * Answers at once
+		 */
+		answer,
+
+		/**
+		 * Cannot be reached
+		 */
+		down,
+
+		/**
+		 * Answers with an HTTP error
+		 */
+		error,
+
+		/**
+		 * Never answers
+		 */
+		hang
+	}
+
+	private static class FakeMaster extends ClusterSingleAsyncClient {
+
+		private final Behavior behavior;
+		private final AtomicInteger calls;
+		private volatile CompletableFuture<?> lastRequest;
+
+		private FakeMaster(String url, Behavior behavior) {
+			super(url, 1000);
+			this.behavior = behavior;
+			this.calls = new AtomicInteger();
+			this.lastRequest = null;
+		}
+
+		private <T> CompletableFuture<T> request(T value) {
+			calls.incrementAndGet();
+			CompletableFuture<T> request = new CompletableFuture<T>();
+			lastRequest = request;
+			switch (behavior) {
+			case answer:
+				request.complete(value);
+				break;
+			case down:
+				request.completeExceptionally(new IOException(
+						"Connection refused"));
+				break;
+			case error:
+				request.completeExceptionally(new WebApplicationException(
+						Status.SERVICE_UNAVAILABLE));
+				break;
+			case hang:
+				break;
+			}
+			return request;
+		}
+
+		@Override
+		public CompletableFuture<String> getActiveNodeRandom(
+				String service_name, ClusterSelectionStrategy strategy) {
+			return request(masterUrl);
+		}
+
+		@Override
+		public CompletableFuture<ClusterNodeStatusJson> register(
+				ClusterNodeRegisterJson register) {
+			return request(new ClusterNodeStatusJson());
+		}
+
+		/**
+		 * Make the selector ask this master first, and let it wait "delay"
+		 * milliseconds before hedging
+		 */
+		private FakeMaster fast(long delay) {
+			for (int i = 0; i < ClusterMasterStats.MIN_SAMPLES; i++)
+				stats.success(delay, true);
+			return this;
+		}
+
+		/**
+		 * Make the selector ask this master last
+		 */
+		private FakeMaster slow() {
+			stats.success(ClusterMasterStats.MAX_OPEN_MS, true);
+			return this;
+		}
+	}
+
+	/**
+	 * Far below the default hedging delay
+	 */
+	private final static long HEDGE_LIMIT_MS = ClusterMasterStats.DEFAULT_HEDGE_DELAY_MS
+			/ 2;
+
+	private static ClusterMultiAsyncClient client(FakeMaster... masters) {
+		return new ClusterMultiAsyncClient(masters, 1000);
+	}
+
+	private static String read(ClusterMultiAsyncClient client)
+			throws Exception {
+		return client.getActiveNodeRandom("job", null).get(5,
+				TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void readFailsOverToTheSecondMaster() throws Exception {
+		FakeMaster down = new FakeMaster("http://down", Behavior.down)
+				.fast(1);
+		FakeMaster up = new FakeMaster("http://up", Behavior.answer).slow();
+		ClusterMultiAsyncClient client = client(down, up);
+		for (int i = 0; i < 8; i++) {
+			long start = System.currentTimeMillis();
+			Assert.assertEquals("http://up", read(client));
+			// The failure is not hedged, the next master is asked at once
+			Assert.assertTrue(System.currentTimeMillis() - start < HEDGE_LIMIT_MS);
+		}
+		Assert.assertTrue(down.calls.get() > 0);
+		Assert.assertEquals(8, up.calls.get());
+	}
+
+	@Test
+	public void slowReadIsHedged() throws Exception {
+		FakeMaster slow = new FakeMaster("http://slow", Behavior.hang)
+				.fast(20);
+		FakeMaster up = new FakeMaster("http://up", Behavior.answer).slow();
+		ClusterMultiAsyncClient client = client(slow, up);
+		for (int i = 0; i < 8; i++) {
+			long start = System.currentTimeMillis();
+			Assert.assertEquals("http://up", read(client));
+			Assert.assertTrue(System.currentTimeMillis() - start < HEDGE_LIMIT_MS);
+		}
+		Assert.assertTrue(slow.calls.get() > 0);
+		// The hedged request is cancelled by the answer of the other master
+		Assert.assertTrue(slow.lastRequest.isCancelled());
+	}
+
+	@Test
+	public void readFailsWhenAllMastersFail() throws Exception {
+		ClusterMultiAsyncClient client = client(new FakeMaster("http://down",
+				Behavior.down), new FakeMaster("http://error", Behavior.error));
+		try {
+			read(client);
+			Assert.fail("The read should fail");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof WebApplicationException);
+		}
+	}
+
+	@Test
+	public void fanOutStopsAtTheDeadline() throws Exception {
+		FakeMaster up = new FakeMaster("http://up", Behavior.answer);
+		FakeMaster error = new FakeMaster("http://error", Behavior.error);
+		FakeMaster hang = new FakeMaster("http://hang", Behavior.hang);
+		ClusterMultiAsyncClient client = client(up, error, hang);
+		long deadline = 200;
+		long start = System.currentTimeMillis();
+		ClusterFanOutResult<ClusterNodeStatusJson> result = client
+				.registerAll(null, deadline).get(5, TimeUnit.SECONDS);
+		long duration = System.currentTimeMillis() - start;
+		Assert.assertTrue(duration >= deadline);
+		Assert.assertTrue(duration < deadline * 5);
+		Assert.assertEquals(1, result.getSuccessCount());
+		Assert.assertEquals(3, result.masters.size());
+		Assert.assertTrue(result.masters.get(0).success);
+		Assert.assertFalse(result.masters.get(1).success);
+		Assert.assertFalse(result.masters.get(2).success);
+		Assert.assertEquals("Deadline exceeded", result.masters.get(2).error);
+		// The request still running at the deadline is cancelled
+		Assert.assertTrue(hang.lastRequest.isCancelled());
+	}
+
+	@Test
+	public void fanOutDoesNotWaitForTheDeadline() throws Exception {
+		ClusterMultiAsyncClient client = client(new FakeMaster("http://up1",
+				Behavior.answer), new FakeMaster("http://up2", Behavior.answer));
+		long start = System.currentTimeMillis();
+		ClusterFanOutResult<ClusterNodeStatusJson> result = client
+				.registerAll(null, 5000).get(5, TimeUnit.SECONDS);
+		Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+		Assert.assertEquals(2, result.getSuccessCount());
+	}
+}
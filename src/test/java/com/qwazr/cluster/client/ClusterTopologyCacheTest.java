@@ -0,0 +1,176 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.client;
+
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response.Status;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ClusterTopologyCacheTest {
+
+	private final static long TTL_MS = 200;
+
+	/**
+	 * The masters are down: each load waits, then fails
+	 */
+	private final static long LOAD_MS = 1000;
+
+	private static class DownMasters extends ClusterMultiClient {
+
+		private final AtomicInteger running;
+		private final AtomicInteger maxRunning;
+		private final AtomicInteger loads;
+		private volatile boolean down;
+		private volatile String hanging;
+		private volatile RuntimeException failure;
+
+		private DownMasters() throws URISyntaxException {
+			super(Collections.singletonList("http://localhost:9"), 1000,
+					TTL_MS);
+			running = new AtomicInteger();
+			maxRunning = new AtomicInteger();
+			loads = new AtomicInteger();
+			down = false;
+			hanging = null;
+			failure = null;
+		}
+
+		@Override
+		List<String> fetchActiveNodes(String service_name) {
+			loads.incrementAndGet();
+			if (failure != null)
+				throw failure;
+			if (service_name.equals(hanging)) {
+				try {
+					Thread.sleep(LOAD_MS * 10);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				throw new WebApplicationException(Status.GATEWAY_TIMEOUT);
+			}
+			if (!down)
+				return Arrays.asList("http://localhost:9091");
+			maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+			try {
+				Thread.sleep(LOAD_MS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				running.decrementAndGet();
+			}
+			throw new WebApplicationException(Status.SERVICE_UNAVAILABLE);
+		}
+	}
+
+	@Test
+	public void expiredEntryIsReloadedOnce() throws Exception {
+		DownMasters client = new DownMasters();
+		Assert.assertEquals(1, client.getActiveNodes("job").size());
+		client.down = true;
+		Thread.sleep(TTL_MS + 50);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			Future<?>[] futures = new Future<?>[8];
+			long[] durations = new long[futures.length];
+			for (int i = 0; i < futures.length; i++) {
+				final int n = i;
+				futures[i] = executor.submit(() -> {
+					long start = System.currentTimeMillis();
+					// The stale entry is served
+					Assert.assertEquals(1, client.getActiveNodes("job").size());
+					durations[n] = System.currentTimeMillis() - start;
+					return null;
+				});
+			}
+			int fast = 0;
+			for (int i = 0; i < futures.length; i++) {
+				futures[i].get();
+				if (durations[i] < LOAD_MS / 2)
+					fast++;
+			}
+			// Only one caller waited for the masters
+			Assert.assertTrue(fast >= futures.length - 1);
+			Assert.assertEquals(1, client.maxRunning.get());
+		} finally {
+			executor.shutdown();
+		}
+		// The load failed: the next callers do not wait for the masters
+		Thread.sleep(TTL_MS + 50);
+		for (int i = 0; i < 4; i++) {
+			long start = System.currentTimeMillis();
+			Assert.assertEquals(1, client.getActiveNodes("job").size());
+			Assert.assertTrue(System.currentTimeMillis() - start < LOAD_MS / 2);
+		}
+		// The masters are back, the background refresh reloads the entry
+		client.down = false;
+		Thread.sleep(LOAD_MS + 100);
+		int loads = client.loads.get();
+		client.getActiveNodes("job");
+		waitForLoads(client, loads + 1);
+	}
+
+	private static void waitForLoads(DownMasters client, int loads)
+			throws InterruptedException {
+		long timeout = System.currentTimeMillis() + 5000;
+		while (client.loads.get() < loads) {
+			Assert.assertTrue(System.currentTimeMillis() < timeout);
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void unexpectedErrorDoesNotStopTheRefresh() throws Exception {
+		DownMasters client = new DownMasters();
+		client.getActiveNodes("job");
+		client.failure = new IllegalStateException("Unexpected");
+		Thread.sleep(TTL_MS / 2 + 20);
+		int loads = client.loads.get();
+		// Background refresh, which fails
+		client.getActiveNodes("job");
+		waitForLoads(client, loads + 1);
+		Thread.sleep(50);
+		// The next refresh is still possible
+		client.failure = null;
+		client.getActiveNodes("job");
+		waitForLoads(client, loads + 2);
+	}
+
+	@Test
+	public void hangingRefreshDoesNotHoldTheOthers() throws Exception {
+		DownMasters client = new DownMasters();
+		client.getActiveNodes("hanging");
+		client.getActiveNodes("job");
+		client.hanging = "hanging";
+		Thread.sleep(TTL_MS / 2 + 20);
+		int loads = client.loads.get();
+		client.getActiveNodes("hanging");
+		waitForLoads(client, loads + 1);
+		client.getActiveNodes("job");
+		// Refreshed while the other service is still waiting
+		waitForLoads(client, loads + 2);
+	}
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.client;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ClusterWireFormatTest {
+
+	@Test
+	public void parse() {
+		Assert.assertEquals(ClusterWireFormat.smile,
+				ClusterWireFormat.parse(null));
+		Assert.assertEquals(ClusterWireFormat.smile,
+				ClusterWireFormat.parse(" "));
+		Assert.assertEquals(ClusterWireFormat.smile,
+				ClusterWireFormat.parse("smile"));
+		Assert.assertEquals(ClusterWireFormat.smile,
+				ClusterWireFormat.parse(" Smile "));
+		Assert.assertEquals(ClusterWireFormat.json,
+				ClusterWireFormat.parse("JSON"));
+		Assert.assertEquals(ClusterWireFormat.json,
+				ClusterWireFormat.parse("json\n"));
+		// An unknown format falls back to JSON
+		Assert.assertEquals(ClusterWireFormat.json,
+				ClusterWireFormat.parse("xml"));
+	}
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.gossip;
+
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import com.qwazr.cluster.gossip.GossipUpdate.State;
+
+/**
+ * Many members running in the same JVM on the loopback interface
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class GossipTest {
+
+	private final static int MEMBERS = 20;
+
+	private final static GossipConfiguration CONFIGURATION = new GossipConfiguration(
+			0, 100, 20, 3, 3, 3);
+
+	private final static List<GossipMembership> members = new ArrayList<GossipMembership>();
+
+	@BeforeClass
+	public static void startMembers() throws SocketException {
+		List<InetSocketAddress> seeds = null;
+		for (int i = 0; i < MEMBERS; i++) {
+			GossipMembership member = new GossipMembership("member" + i,
+					new InetSocketAddress("127.0.0.1", 0), "127.0.0.1", seeds,
+					CONFIGURATION, null);
+			// The first member is the seed of the others
+			if (seeds == null)
+				seeds = Collections.singletonList(new InetSocketAddress(
+						"127.0.0.1", Integer.parseInt(member.getAddress()
+								.split(":")[1])));
+			members.add(member);
+			member.start();
+		}
+	}
+
+	@AfterClass
+	public static void stopMembers() {
+		for (GossipMembership member : members)
+			member.close();
+	}
+
+	private static boolean converged(List<GossipMembership> memberList,
+			Collection<String> deadIds) {
+		for (GossipMembership member : memberList) {
+			Map<String, State> states = member.getMembers();
+			if (states.size() != MEMBERS - 1)
+				return false;
+			for (Map.Entry<String, State> entry : states.entrySet()) {
+				boolean dead = deadIds.contains(entry.getKey());
+				if (dead != (entry.getValue() == State.dead))
+					return false;
+			}
+		}
+		return true;
+	}
+
+	private static void waitForConvergence(List<GossipMembership> memberList,
+			String... deadIds) throws InterruptedException {
+		long timeout = System.currentTimeMillis() + 30000;
+		while (!converged(memberList, Arrays.asList(deadIds))) {
+			Assert.assertTrue(System.currentTimeMillis() < timeout);
+			Thread.sleep(100);
+		}
+	}
+
+	@Test
+	public void test10_join() throws InterruptedException {
+		waitForConvergence(members);
+	}
+
+	@Test
+	public void test20_failure() throws InterruptedException {
+		GossipMembership failed = members.get(MEMBERS / 2);
+		failed.close();
+		List<GossipMembership> survivors = new ArrayList<GossipMembership>(
+				members);
+		survivors.remove(failed);
+		waitForConvergence(survivors, failed.getId());
+		for (GossipMembership member : survivors)
+			Assert.assertFalse(member.isAlive(failed.getId()));
+	}
+
+	/**
+	 * A member is paused (as during a long GC pause) until the others declare
+	 * it dead and stop spreading the news. When it resumes, it must refute
+	 * and come back.
+	 */
+	@Test
+	public void test30_recovery() throws InterruptedException {
+		GossipMembership failed = members.get(MEMBERS / 2);
+		GossipMembership paused = members.get(MEMBERS / 4);
+		List<GossipMembership> survivors = new ArrayList<GossipMembership>(
+				members);
+		survivors.remove(failed);
+		List<GossipMembership> others = new ArrayList<GossipMembership>(
+				survivors);
+		others.remove(paused);
+		paused.setPaused(true);
+		try {
+			waitForConvergence(others, failed.getId(), paused.getId());
+			// Let the dead update stop being piggybacked
+			Thread.sleep(3000);
+		} finally {
+			paused.setPaused(false);
+		}
+		waitForConvergence(survivors, failed.getId());
+		for (GossipMembership member : others)
+			Assert.assertTrue(member.isAlive(paused.getId()));
+	}
+}
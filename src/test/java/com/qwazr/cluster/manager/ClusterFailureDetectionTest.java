@@ -0,0 +1,141 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.manager;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * The schedule of the checks and the failure detector of one node, as used by
+ * {@link ClusterNode}, on a simulated clock.
+ */
+public class ClusterFailureDetectionTest {
+
+	/**
+	 * The period of the monitoring thread
+	 */
+	private final static long TICK_MS = 1000;
+
+	private final static double MAX_JITTER = 1 + ClusterCheckSchedule.JITTER;
+
+	/**
+	 * A dead node is evicted by the fast retry following its first failure
+	 */
+	private final static long MAX_EVICTION_MS = (long) (ClusterCheckSchedule.FAST_MS * MAX_JITTER)
+			+ 2 * TICK_MS;
+
+	private static class SimulatedNode {
+
+		private final ClusterCheckSchedule schedule;
+		private final ClusterPhiDetector detector;
+		private final Random random;
+		private boolean active;
+		private long lastSuccess;
+		private long firstFailure;
+
+		private SimulatedNode(long seed) {
+			schedule = new ClusterCheckSchedule();
+			detector = new ClusterPhiDetector();
+			random = new Random(seed);
+			active = false;
+			lastSuccess = 0;
+			firstFailure = 0;
+		}
+
+		private void check(long now, boolean alive) {
+			if (!schedule.isDue(now))
+				return;
+			// A dead node refuses the connection at once
+			long time = now + (alive ? 1 + random.nextInt(50) : 1);
+			if (alive) {
+				detector.heartbeat(time - schedule.getDue());
+				schedule.checked(true, !active, time);
+				active = true;
+				lastSuccess = time;
+				firstFailure = 0;
+				return;
+			}
+			if (firstFailure == 0)
+				firstFailure = time;
+			Double phi = detector.phi(time - schedule.getExpected());
+			boolean stay = active && phi != null
+					&& phi < ClusterManager.DEFAULT_PHI_THRESHOLD;
+			schedule.checked(false, active && !stay, time);
+			active = stay;
+		}
+	}
+
+	/**
+	 * @return the time after the simulation
+	 */
+	private static long run(SimulatedNode node, long now, long duration,
+			boolean alive) {
+		long end = now + duration;
+		for (; now < end; now += TICK_MS)
+			node.check(now, alive);
+		return now;
+	}
+
+	@Test
+	public void stableNodeDies() {
+		// The next check of a stable node, then one fast retry
+		long maxDelay = (long) (ClusterCheckSchedule.STABLE_MS * MAX_JITTER)
+				+ MAX_EVICTION_MS;
+		for (long seed = 0; seed < 20; seed++) {
+			SimulatedNode node = new SimulatedNode(seed);
+			long now = run(node, System.currentTimeMillis(), 7200000, true);
+			Assert.assertTrue(node.active);
+			while (node.active)
+				now = run(node, now, TICK_MS, false);
+			Assert.assertTrue(now - node.lastSuccess <= maxDelay);
+			Assert.assertTrue(now - node.firstFailure <= MAX_EVICTION_MS);
+		}
+	}
+
+	@Test
+	public void flappingNodeDies() {
+		for (long seed = 0; seed < 20; seed++) {
+			SimulatedNode node = new SimulatedNode(seed);
+			long now = System.currentTimeMillis();
+			// A mixed history: short outages between long online periods
+			for (int i = 0; i < 10; i++) {
+				now = run(node, now, 600000, true);
+				now = run(node, now, 20000, false);
+			}
+			now = run(node, now, 600000, true);
+			Assert.assertTrue(node.active);
+			while (node.active)
+				now = run(node, now, TICK_MS, false);
+			Assert.assertTrue(now - node.firstFailure <= MAX_EVICTION_MS);
+		}
+	}
+
+	@Test
+	public void oneFailedCheckIsTolerated() {
+		for (long seed = 0; seed < 20; seed++) {
+			SimulatedNode node = new SimulatedNode(seed);
+			long now = run(node, System.currentTimeMillis(), 3600000, true);
+			// Wait for the next check, which fails
+			while (node.firstFailure == 0)
+				now = run(node, now, TICK_MS, false);
+			Assert.assertTrue(node.active);
+			run(node, now, 600000, true);
+			Assert.assertTrue(node.active);
+		}
+	}
+}
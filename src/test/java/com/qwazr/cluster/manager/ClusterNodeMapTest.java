@@ -0,0 +1,89 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.manager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.qwazr.cluster.service.ClusterChangeJson;
+
+public class ClusterNodeMapTest {
+
+	private final static Set<String> SERVICES = Collections.singleton("job");
+
+	private final static int LEASE_MS = 5000;
+
+	@Test
+	public void leasedBulkIsPublishedOnce() throws Exception {
+		ClusterNodeMap map = new ClusterNodeMap();
+		int count = 10;
+		List<ClusterNode> newNodes = new ArrayList<ClusterNode>(count);
+		List<Integer> leases = new ArrayList<Integer>(count);
+		for (int i = 0; i < count; i++) {
+			newNodes.add(new ClusterNode("http://localhost:" + (9100 + i),
+					SERVICES));
+			leases.add(LEASE_MS);
+		}
+		long version = map.getSnapshot().version;
+		List<ClusterNode> registered = new ArrayList<ClusterNode>(count);
+		map.bulk(newNodes, leases, Collections.<String> emptyList(),
+				registered, new ArrayList<ClusterNode>());
+		Assert.assertEquals(version + 1, map.getSnapshot().version);
+		Assert.assertEquals(count, registered.size());
+		for (ClusterNode node : registered) {
+			Assert.assertTrue(node.isLeased());
+			Assert.assertTrue(node.isActive());
+		}
+		// The nodes are active in the published snapshot
+		Assert.assertEquals(count, map.getNodeSet("job").activeArray.size);
+		Assert.assertEquals(0, map.getNodeSet("job").inactiveArray.size);
+		// Each node is registered then active
+		List<ClusterChangeJson> changes = map.getJournal().getChanges(null,
+				0).changes;
+		Assert.assertEquals(count * 2, changes.size());
+		for (int i = 0; i < changes.size(); i += 2) {
+			Assert.assertEquals(ClusterChangeJson.Type.register,
+					changes.get(i).type);
+			Assert.assertEquals(ClusterChangeJson.Type.active,
+					changes.get(i + 1).type);
+			Assert.assertTrue(changes.get(i + 1).status.online);
+		}
+	}
+
+	@Test
+	public void leasedUpsertIsPublishedOnce() throws Exception {
+		ClusterNodeMap map = new ClusterNodeMap();
+		// Registered without lease, the node waits for its check
+		ClusterNode node = map.upsert("http://localhost:9100", SERVICES);
+		Assert.assertFalse(node.isActive());
+		Assert.assertEquals(1, map.getNodeSet("job").inactiveArray.size);
+		long version = map.getSnapshot().version;
+		Assert.assertSame(node,
+				map.upsert("http://localhost:9100", SERVICES, LEASE_MS));
+		Assert.assertEquals(version + 1, map.getSnapshot().version);
+		Assert.assertTrue(node.isActive());
+		Assert.assertEquals(1, map.getNodeSet("job").activeArray.size);
+		Assert.assertEquals(0, map.getNodeSet("job").inactiveArray.size);
+		// Registered again without lease, the node is checked again
+		map.upsert("http://localhost:9100", SERVICES, null);
+		Assert.assertFalse(node.isLeased());
+	}
+}
@@ -0,0 +1,299 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.manager;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClusterRegistryStoreTest {
+
+	private final static String NODE1 = "http://localhost:9101";
+	private final static String NODE2 = "http://localhost:9102";
+	private final static String NODE3 = "http://localhost:9103";
+
+	private File directory;
+
+	@Before
+	public void before() throws IOException {
+		directory = Files.createTempDirectory("cluster-registry").toFile();
+	}
+
+	@After
+	public void after() throws IOException {
+		FileUtils.deleteDirectory(directory);
+	}
+
+	private static Set<String> services(String... services) {
+		return new HashSet<String>(Arrays.asList(services));
+	}
+
+	private static ClusterNode node(String address, String... services)
+			throws Exception {
+		return new ClusterNode(address, services(services));
+	}
+
+	private File journal(long generation) {
+		return new File(directory, "registry.journal." + generation);
+	}
+
+	private File snapshot() {
+		return new File(directory, "registry.snapshot");
+	}
+
+	/**
+	 * Write a journal with the three nodes, NODE2 is removed
+	 * 
+	 * @return the generation of the journal
+	 */
+	private long writeJournal(ClusterRegistryStore store) throws Exception {
+		long generation = store.rotate();
+		store.upsert(node(NODE1, "job"));
+		store.upsert(node(NODE2, "job"));
+		store.upsert(node(NODE3, "job", "web"));
+		store.remove(node(NODE2));
+		store.upsert(node(NODE1, "web"));
+		store.close();
+		return generation;
+	}
+
+	private void checkJournalNodes(Map<String, Set<String>> nodes) {
+		Assert.assertEquals(2, nodes.size());
+		Assert.assertEquals(services("web"), nodes.get(NODE1));
+		Assert.assertEquals(services("job", "web"), nodes.get(NODE3));
+	}
+
+	@Test
+	public void emptyDirectory() throws IOException {
+		Assert.assertTrue(new ClusterRegistryStore(directory).load().isEmpty());
+	}
+
+	@Test
+	public void journalReplay() throws Exception {
+		writeJournal(new ClusterRegistryStore(directory));
+		checkJournalNodes(new ClusterRegistryStore(directory).load());
+	}
+
+	@Test
+	public void snapshotAndJournalReplay() throws Exception {
+		ClusterRegistryStore store = new ClusterRegistryStore(directory);
+		long first = store.rotate();
+		store.upsert(node(NODE1, "job"));
+		store.upsert(node(NODE2, "job"));
+		long second = store.rotate();
+		store.writeSnapshot(second,
+				Arrays.asList(node(NODE1, "job"), node(NODE2, "job")));
+		// The snapshot contains the first journal
+		Assert.assertFalse(journal(first).exists());
+		store.remove(node(NODE1));
+		store.upsert(node(NODE3, "web"));
+		store.close();
+		Map<String, Set<String>> nodes = new ClusterRegistryStore(directory)
+				.load();
+		Assert.assertEquals(2, nodes.size());
+		Assert.assertEquals(services("job"), nodes.get(NODE2));
+		Assert.assertEquals(services("web"), nodes.get(NODE3));
+	}
+
+	@Test
+	public void tornTail() throws Exception {
+		long generation = writeJournal(new ClusterRegistryStore(directory));
+		// A record partially written by a crash
+		try (RandomAccessFile file = new RandomAccessFile(
+				journal(generation), "rw")) {
+			file.setLength(file.length() - 3);
+		}
+		Map<String, Set<String>> nodes = new ClusterRegistryStore(directory)
+				.load();
+		// The last upsert of NODE1 is lost
+		Assert.assertEquals(services("job"), nodes.get(NODE1));
+		Assert.assertEquals(services("job", "web"), nodes.get(NODE3));
+		Assert.assertEquals(2, nodes.size());
+	}
+
+	@Test
+	public void corruptedTail() throws Exception {
+		long generation = writeJournal(new ClusterRegistryStore(directory));
+		try (DataOutputStream output = new DataOutputStream(
+				new FileOutputStream(journal(generation), true))) {
+			// The length is rejected before any allocation
+			output.writeInt(Integer.MAX_VALUE);
+			output.writeInt(0);
+		}
+		checkJournalNodes(new ClusterRegistryStore(directory).load());
+		try (DataOutputStream output = new DataOutputStream(
+				new FileOutputStream(journal(generation), true))) {
+			// A bad checksum
+			output.writeInt(4);
+			output.writeInt(0);
+			output.writeInt(0);
+		}
+		checkJournalNodes(new ClusterRegistryStore(directory).load());
+	}
+
+	@Test
+	public void badSnapshotFallsBackToTheJournals() throws Exception {
+		writeJournal(new ClusterRegistryStore(directory));
+		Files.write(snapshot().toPath(), "not a snapshot".getBytes());
+		checkJournalNodes(new ClusterRegistryStore(directory).load());
+	}
+
+	@Test
+	public void truncatedSnapshotFallsBackToTheJournals() throws Exception {
+		ClusterRegistryStore store = new ClusterRegistryStore(directory);
+		long generation = store.rotate();
+		store.writeSnapshot(generation,
+				Arrays.asList(node(NODE1, "job"), node(NODE2, "job")));
+		store.upsert(node(NODE3, "web"));
+		store.close();
+		try (RandomAccessFile file = new RandomAccessFile(snapshot(), "rw")) {
+			file.setLength(file.length() - 3);
+		}
+		Map<String, Set<String>> nodes = new ClusterRegistryStore(directory)
+				.load();
+		Assert.assertEquals(1, nodes.size());
+		Assert.assertEquals(services("web"), nodes.get(NODE3));
+	}
+
+	@Test
+	public void compaction() throws Exception {
+		ClusterRegistryStore store = new ClusterRegistryStore(directory);
+		long first = store.rotate();
+		ClusterNode node1 = node(NODE1, "job");
+		for (int i = 0; i < ClusterRegistryStore.COMPACTION_MIN_RECORDS; i++)
+			store.upsert(node1);
+		Assert.assertFalse(store.isCompactionDue(1));
+		store.upsert(node1);
+		Assert.assertTrue(store.isCompactionDue(1));
+		// Not due while the journal is shorter than the node list
+		Assert.assertFalse(store.isCompactionDue(Integer.MAX_VALUE));
+		long second = store.rotate();
+		Assert.assertEquals(first + 1, second);
+		Assert.assertFalse(store.isCompactionDue(1));
+		store.writeSnapshot(second, Collections.singletonList(node1));
+		Assert.assertFalse(journal(first).exists());
+		Assert.assertTrue(journal(second).exists());
+		store.close();
+		Map<String, Set<String>> nodes = new ClusterRegistryStore(directory)
+				.load();
+		Assert.assertEquals(1, nodes.size());
+		Assert.assertEquals(services("job"), nodes.get(NODE1));
+	}
+
+	@Test
+	public void syncDuringRotation() throws Exception {
+		ClusterRegistryStore store = new ClusterRegistryStore(directory);
+		store.rotate();
+		int threads = 4;
+		int nodes = 500;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int t = 0; t < threads; t++) {
+				final int port = 10000 + t * nodes;
+				futures.add(executor.submit(() -> {
+					for (int i = 0; i < nodes; i++) {
+						store.upsert(node("http://localhost:" + (port + i),
+								"job"));
+						// Never fails, even if the journal was rotated
+						store.sync();
+					}
+					return null;
+				}));
+			}
+			for (int i = 0; i < 200; i++) {
+				store.rotate();
+				Thread.sleep(1);
+			}
+			for (Future<?> future : futures)
+				future.get();
+		} finally {
+			executor.shutdown();
+		}
+		store.close();
+		Assert.assertEquals(threads * nodes,
+				new ClusterRegistryStore(directory).load().size());
+	}
+
+	@Test
+	public void statusChangesAreNotJournaled() throws Exception {
+		ClusterNodeMap map = new ClusterNodeMap();
+		ClusterRegistryStore store = new ClusterRegistryStore(directory);
+		map.restore(store);
+		// Registered and active at once
+		ClusterNode node = map.upsert(NODE1, services("job"), 5000);
+		Assert.assertTrue(node.isActive());
+		Assert.assertEquals(1, store.getJournalRecords());
+		// The same services, the lease only
+		map.upsert(NODE1, services("job"), 5000);
+		Assert.assertEquals(1, store.getJournalRecords());
+		map.upsert(NODE1, services("job", "web"), 5000);
+		Assert.assertEquals(2, store.getJournalRecords());
+		map.remove(NODE1);
+		Assert.assertEquals(3, store.getJournalRecords());
+		map.closeStore();
+	}
+
+	@Test
+	public void restartRestore() throws Exception {
+		ClusterNodeMap map = new ClusterNodeMap();
+		map.restore(new ClusterRegistryStore(directory));
+		Assert.assertTrue(map.isPersistent());
+		map.upsert(NODE1, services("job"));
+		map.upsert(NODE2, services("job", "web"));
+		map.upsert(NODE3, services("web"));
+		map.remove(NODE3);
+		map.upsert(NODE1, services("web"));
+		map.closeStore();
+
+		// The master restarts
+		ClusterNodeMap restored = new ClusterNodeMap();
+		restored.restore(new ClusterRegistryStore(directory));
+		List<ClusterNode> nodes = restored.getNodeList();
+		Assert.assertEquals(2, nodes.size());
+		Assert.assertEquals(services("web"),
+				restored.getSnapshot().nodesMap.get(NODE1).services);
+		Assert.assertEquals(services("job", "web"),
+				restored.getSnapshot().nodesMap.get(NODE2).services);
+		Assert.assertNull(restored.getSnapshot().nodesMap.get(NODE3));
+		Assert.assertEquals(2, restored.getNodeSet("web").inactiveArray.size);
+		restored.closeStore();
+
+		// The restore wrote a snapshot and started a new journal
+		Assert.assertTrue(snapshot().exists());
+		Assert.assertEquals(2, new ClusterRegistryStore(directory).load()
+				.size());
+	}
+}
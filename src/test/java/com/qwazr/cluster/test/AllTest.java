@@ -15,15 +15,23 @@
  */
 package com.qwazr.cluster.test;
 
+import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
+import org.apache.http.HttpResponse;
+import org.apache.http.client.fluent.Request;
 import org.junit.Assert;
 import org.junit.FixMethodOrder;
 import org.junit.Test;
@@ -32,9 +40,19 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.qwazr.cluster.ClusterServer;
+import com.qwazr.cluster.client.ClusterChangeStreamReader;
+import com.qwazr.cluster.client.ClusterSingleAsyncClient;
 import com.qwazr.cluster.client.ClusterSingleClient;
+import com.qwazr.cluster.service.ClusterBulkJson;
+import com.qwazr.cluster.service.ClusterBulkResultJson;
+import com.qwazr.cluster.service.ClusterChangeJson;
+import com.qwazr.cluster.service.ClusterChangeListener;
+import com.qwazr.cluster.service.ClusterChangesJson;
 import com.qwazr.cluster.service.ClusterNodeRegisterJson;
 import com.qwazr.cluster.service.ClusterNodeStatusJson;
+import com.qwazr.cluster.service.ClusterSelectionStrategy;
+import com.qwazr.cluster.service.ClusterServiceInterface;
+import com.qwazr.cluster.service.ClusterServiceLatencyJson;
 import com.qwazr.cluster.service.ClusterServiceStatusJson;
 import com.qwazr.cluster.service.ClusterServiceStatusJson.StatusEnum;
 import com.qwazr.cluster.service.ClusterStatusJson;
@@ -65,6 +83,21 @@ public class AllTest {
 		Assert.assertTrue(result.masters.contains(CLIENT_ADDRESS));
 	}
 
+	@Test
+	public void test02_ready() throws URISyntaxException,
+			InterruptedException {
+		ClusterSingleClient client = getClusterClient();
+		// Without other master, the background reconciliation ends at once
+		long end = System.currentTimeMillis() + CLIENT_TIMEOUT;
+		while (client.getReady().getStatus() != 200
+				&& System.currentTimeMillis() < end)
+			Thread.sleep(100);
+		Assert.assertEquals(200, client.getReady().getStatus());
+		ClusterStatusJson result = client.list();
+		Assert.assertNotNull(result);
+		Assert.assertEquals(Boolean.TRUE, result.ready);
+	}
+
 	@Test
 	public void test10_register_two_services() throws URISyntaxException {
 		HashSet<String> serviceSet = new HashSet<String>(
@@ -97,6 +130,69 @@ public class AllTest {
 				|| result.inactive_nodes.size() == 1);
 	}
 
+	@Test
+	public void test13_changes() throws URISyntaxException {
+		ClusterChangesJson result = getClusterClient().getChanges(null, null);
+		Assert.assertNotNull(result);
+		Assert.assertTrue(result.full_snapshot);
+		Assert.assertNotNull(result.instance);
+		Assert.assertTrue(result.last > 0);
+		result = getClusterClient().getChanges(result.last - 1,
+				result.instance);
+		Assert.assertNotNull(result);
+		Assert.assertFalse(result.full_snapshot);
+		Assert.assertNotNull(result.changes);
+		Assert.assertEquals(1, result.changes.size());
+	}
+
+	/**
+	 * Skip the changes of the other nodes (the activation of the local node)
+	 */
+	private static ClusterChangeJson nextChange(
+			LinkedBlockingQueue<ClusterChangeJson> changes, String address)
+			throws InterruptedException {
+		ClusterChangeJson change;
+		while ((change = changes.poll(10, TimeUnit.SECONDS)) != null)
+			if (address.equals(change.address))
+				return change;
+		return null;
+	}
+
+	@Test
+	public void test14_stream() throws URISyntaxException,
+			InterruptedException {
+		final LinkedBlockingQueue<ClusterChangeJson> changes = new LinkedBlockingQueue<ClusterChangeJson>();
+		ClusterSingleClient client = getClusterClient();
+		ClusterChangeStreamReader reader = client.listen(SERVICES[0],
+				new ClusterChangeListener() {
+					@Override
+					public boolean onChange(ClusterChangeJson change) {
+						changes.add(change);
+						return true;
+					}
+				});
+		try {
+			// The first change asks the listener to load the state
+			ClusterChangeJson change = changes.poll(10, TimeUnit.SECONDS);
+			Assert.assertNotNull(change);
+			Assert.assertEquals(ClusterChangeJson.Type.reset, change.type);
+			// A node which leaves the service is notified to its subscribers
+			String address = "http://localhost:9994";
+			client.register(new ClusterNodeRegisterJson(address, SERVICES[0]));
+			change = nextChange(changes, address);
+			Assert.assertNotNull(change);
+			Assert.assertEquals(ClusterChangeJson.Type.register, change.type);
+			client.register(new ClusterNodeRegisterJson(address, SERVICES[1]));
+			change = nextChange(changes, address);
+			Assert.assertNotNull(change);
+			Assert.assertEquals(ClusterChangeJson.Type.services, change.type);
+			Assert.assertTrue(change.previous_services.contains(SERVICES[0]));
+			Assert.assertEquals(200, client.unregister(address).getStatus());
+		} finally {
+			reader.close();
+		}
+	}
+
 	/**
 	 * We wait 30 seconds until the service is visible as active.
 	 * 
@@ -145,6 +241,44 @@ public class AllTest {
 		Assert.assertEquals(1, result.size());
 	}
 
+	private HttpResponse getNodes(String accept) throws IOException {
+		return Request.Get(CLIENT_ADDRESS + "/cluster/nodes")
+				.addHeader(HttpHeaders.ACCEPT, accept).execute()
+				.returnResponse();
+	}
+
+	@Test
+	public void test21_get_node_list_formats() throws IOException {
+		// JSON is the default when any type is accepted
+		HttpResponse response = getNodes(MediaType.WILDCARD);
+		Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+		Assert.assertTrue(response.getEntity().getContentType().getValue()
+				.startsWith(MediaType.APPLICATION_JSON));
+		Assert.assertEquals(HttpHeaders.ACCEPT,
+				response.getFirstHeader(HttpHeaders.VARY).getValue());
+		// The representations are equivalent, not identical
+		String etag = response.getFirstHeader(HttpHeaders.ETAG).getValue();
+		Assert.assertTrue(etag.startsWith("W/"));
+		response = getNodes(ClusterServiceInterface.APPLICATION_SMILE);
+		Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+		Assert.assertTrue(response.getEntity().getContentType().getValue()
+				.startsWith(ClusterServiceInterface.APPLICATION_SMILE));
+		Assert.assertEquals(HttpHeaders.ACCEPT,
+				response.getFirstHeader(HttpHeaders.VARY).getValue());
+		Assert.assertEquals(etag, response.getFirstHeader(HttpHeaders.ETAG)
+				.getValue());
+	}
+
+	@Test
+	public void test21_get_node_list_not_modified() throws URISyntaxException {
+		ClusterSingleClient client = getClusterClient();
+		Map<String, Set<String>> result1 = client.getNodes();
+		Assert.assertNotNull(result1);
+		// The second call gets a 304, the client returns the same instance
+		Map<String, Set<String>> result2 = client.getNodes();
+		Assert.assertSame(result1, result2);
+	}
+
 	@Test
 	public void test22_get_active_list() throws URISyntaxException {
 		for (String service : SERVICES) {
@@ -155,6 +289,46 @@ public class AllTest {
 		}
 	}
 
+	@Test
+	public void test23_service_latency() throws URISyntaxException {
+		for (String service : SERVICES) {
+			// The node is active, so at least one check succeeded
+			ClusterServiceLatencyJson result = getClusterClient()
+					.getServiceLatency(service);
+			Assert.assertNotNull(result);
+			Assert.assertNotNull(result.service);
+			Assert.assertTrue(result.service.count >= 1);
+			Assert.assertNotNull(result.nodes.get(CLIENT_ADDRESS));
+		}
+	}
+
+	@Test
+	public void test23_service_status_not_modified() throws URISyntaxException {
+		ClusterSingleClient client = getClusterClient();
+		for (String service : SERVICES) {
+			ClusterServiceStatusJson result1 = client.getServiceStatus(service);
+			Assert.assertNotNull(result1);
+			// The checks of the active node do not change the status
+			ClusterServiceStatusJson result2 = client.getServiceStatus(service);
+			Assert.assertSame(result1, result2);
+		}
+	}
+
+	@Test
+	public void test24_active_hash() throws URISyntaxException {
+		ClusterSingleClient client = getClusterClient();
+		for (String service : SERVICES) {
+			List<String> result = client.getActiveNodesByHash(service,
+					"my key", null);
+			Assert.assertNotNull(result);
+			Assert.assertEquals(1, result.size());
+			Assert.assertEquals(CLIENT_ADDRESS, result.get(0));
+			// Only one node, only one replica
+			result = client.getActiveNodesByHash(service, "my key", 3);
+			Assert.assertEquals(1, result.size());
+		}
+	}
+
 	@Test
 	public void test25_active_random() throws URISyntaxException {
 		for (String service : SERVICES) {
@@ -164,6 +338,68 @@ public class AllTest {
 		}
 	}
 
+	@Test
+	public void test26_active_strategies() throws URISyntaxException {
+		ClusterSingleClient client = getClusterClient();
+		for (String service : SERVICES)
+			for (ClusterSelectionStrategy strategy : ClusterSelectionStrategy
+					.values())
+				Assert.assertEquals(CLIENT_ADDRESS,
+						client.getActiveNodeRandom(service, strategy));
+	}
+
+	@Test
+	public void test27_active_async() throws InterruptedException,
+			ExecutionException {
+		ClusterSingleAsyncClient client = new ClusterSingleAsyncClient(
+				CLIENT_ADDRESS, CLIENT_TIMEOUT);
+		for (String service : SERVICES) {
+			List<String> result = client.getActiveNodes(service).get();
+			Assert.assertNotNull(result);
+			Assert.assertEquals(1, result.size());
+			Assert.assertEquals(CLIENT_ADDRESS, result.get(0));
+			Assert.assertEquals(CLIENT_ADDRESS,
+					client.getActiveNodeRandom(service, null).get());
+		}
+	}
+
+	@Test
+	public void test28_bulk() throws URISyntaxException {
+		ClusterSingleClient client = getClusterClient();
+		List<String> addresses = Arrays.asList("http://localhost:9991",
+				"http://localhost:9992");
+		List<ClusterNodeRegisterJson> registers = Arrays.asList(
+				new ClusterNodeRegisterJson(addresses.get(0), SERVICES),
+				new ClusterNodeRegisterJson(addresses.get(1), SERVICES));
+		ClusterBulkResultJson result = client.bulk(new ClusterBulkJson(
+				registers, null));
+		Assert.assertNotNull(result);
+		Assert.assertEquals(2, result.registered.size());
+		Assert.assertTrue(result.registered.keySet().containsAll(addresses));
+		Assert.assertEquals(3, client.getNodes().size());
+		result = client.bulk(new ClusterBulkJson(null, addresses));
+		Assert.assertEquals(addresses.size(), result.unregistered.size());
+		Assert.assertEquals(1, client.getNodes().size());
+	}
+
+	@Test
+	public void test29_services_status() throws URISyntaxException {
+		ClusterSingleClient client = getClusterClient();
+		Map<String, ClusterServiceStatusJson> result = client
+				.getServicesStatus(new HashSet<String>(Arrays.asList(SERVICES)));
+		Assert.assertNotNull(result);
+		Assert.assertEquals(SERVICES.length, result.size());
+		for (String service : SERVICES) {
+			ClusterServiceStatusJson status = result.get(service);
+			Assert.assertNotNull(status);
+			Assert.assertEquals(StatusEnum.ok, status.status);
+			Assert.assertEquals(CLIENT_ADDRESS, status.active.get(0));
+		}
+		// Without any name, all the services are returned
+		Assert.assertTrue(client.getServicesStatus(null).keySet()
+				.containsAll(Arrays.asList(SERVICES)));
+	}
+
 	@Test
 	public void test30_check_unregister() throws URISyntaxException {
 		Response response = getClusterClient().unregister(CLIENT_ADDRESS);
@@ -171,6 +407,22 @@ public class AllTest {
 		Assert.assertEquals(200, response.getStatus());
 	}
 
+	@Test
+	public void test31_lease() throws URISyntaxException {
+		ClusterSingleClient client = getClusterClient();
+		String address = "http://localhost:9993";
+		// Unknown node, it has to register
+		Assert.assertEquals(404, client.heartbeat(address).getStatus());
+		ClusterNodeStatusJson status = client
+				.register(new ClusterNodeRegisterJson(address,
+						new HashSet<String>(Arrays.asList(SERVICES)), 5000));
+		Assert.assertNotNull(status);
+		Assert.assertTrue(status.online);
+		Assert.assertEquals(200, client.heartbeat(address).getStatus());
+		Assert.assertEquals(200, client.unregister(address).getStatus());
+		Assert.assertEquals(404, client.heartbeat(address).getStatus());
+	}
+
 	@Test
 	public void test32_list_is_empty() throws URISyntaxException {
 		ClusterStatusJson result = getClusterClient().list();
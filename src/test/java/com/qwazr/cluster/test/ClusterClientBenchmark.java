@@ -0,0 +1,141 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.test;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.http.client.fluent.Request;
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.qwazr.cluster.ClusterServer;
+import com.qwazr.cluster.client.ClusterConnectionPool;
+import com.qwazr.cluster.client.ClusterSingleClient;
+import com.qwazr.utils.json.client.JsonClientAbstract;
+
+/**
+ * Compares the execution path of the previous client, inherited from
+ * {@link JsonClientAbstract}, with the pooled connections, against the local
+ * master. Not part of the default test run:
+ * 
+ * <pre>
+ * mvn test -Dtest=ClusterClientBenchmark
+ * </pre>
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class ClusterClientBenchmark {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(ClusterClientBenchmark.class);
+
+	private final String CLIENT_ADDRESS = "http://"
+			+ ClusterServer.serverDefinition.defaultHostname + ':'
+			+ ClusterServer.serverDefinition.defaultWebServiceTcpPort;
+
+	private final int CLIENT_TIMEOUT = 60000;
+
+	private final static int THREADS = 8;
+
+	private final static int REQUESTS = 2000;
+
+	private final static int WARMUP = 200;
+
+	/**
+	 * Run the request REQUESTS times in each thread, and log the throughput
+	 * and the latency percentiles
+	 */
+	private void run(String name, Callable<Object> request) throws Exception {
+		for (int i = 0; i < WARMUP; i++)
+			request.call();
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			long start = System.nanoTime();
+			@SuppressWarnings("unchecked")
+			Future<long[]>[] futures = new Future[THREADS];
+			for (int t = 0; t < THREADS; t++)
+				futures[t] = executor.submit(() -> {
+					long[] latencies = new long[REQUESTS];
+					for (int i = 0; i < REQUESTS; i++) {
+						long time = System.nanoTime();
+						Assert.assertNotNull(request.call());
+						latencies[i] = System.nanoTime() - time;
+					}
+					return latencies;
+				});
+			long[] all = new long[THREADS * REQUESTS];
+			for (int t = 0; t < THREADS; t++)
+				System.arraycopy(futures[t].get(), 0, all, t * REQUESTS,
+						REQUESTS);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			Arrays.sort(all);
+			logger.info(String.format(
+					"%s: %.0f req/s - p50 %.2f ms - p99 %.2f ms - max %.2f ms",
+					name, all.length / seconds, all[all.length / 2] / 1e6,
+					all[(int) (all.length * 0.99)] / 1e6,
+					all[all.length - 1] / 1e6));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * The previous client: each request is executed by
+	 * {@link JsonClientAbstract}, and the JSON response is read by its
+	 * handler
+	 */
+	private static class PreviousClient extends JsonClientAbstract {
+
+		private PreviousClient(String url, int msTimeOut)
+				throws URISyntaxException {
+			super(url, msTimeOut);
+		}
+
+		private Map<String, Set<String>> getDigestNodes()
+				throws URISyntaxException, IOException {
+			Request request = Request.Get(getBaseUrl("/cluster/digest/nodes")
+					.build());
+			return execute(request, null, msTimeOut,
+					ClusterSingleClient.MapStringSetStringTypeRef, 200);
+		}
+	}
+
+	@Test
+	public void test10_previous_client() throws Exception {
+		PreviousClient client = new PreviousClient(CLIENT_ADDRESS,
+				CLIENT_TIMEOUT);
+		run("previous client", () -> client.getDigestNodes());
+	}
+
+	@Test
+	public void test20_pooled_connection() throws Exception {
+		ClusterSingleClient client = new ClusterSingleClient(CLIENT_ADDRESS,
+				CLIENT_TIMEOUT);
+		run("pooled connections", () -> client.getDigestNodes(null));
+		logger.info("Pool: " + ClusterConnectionPool.getStats());
+	}
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2015 OpenSearchServer Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.qwazr.cluster.client.ClusterSingleClient;
+import com.qwazr.cluster.client.ClusterWireFormat;
+import com.qwazr.cluster.service.ClusterNodeStatusJson;
+import com.qwazr.cluster.service.ClusterNodeStatusJson.State;
+import com.qwazr.cluster.service.ClusterServiceStatusJson;
+
+/**
+ * Compares the size and the encoding and decoding times of the JSON and Smile
+ * documents of a large cluster. Not part of the default test run:
+ * 
+ * <pre>
+ * mvn test -Dtest=ClusterWireFormatBenchmark
+ * </pre>
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class ClusterWireFormatBenchmark {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(ClusterWireFormatBenchmark.class);
+
+	private final static int NODES = 5000;
+
+	private final static int SERVICES = 20;
+
+	private final static int SERVICES_PER_NODE = 3;
+
+	private final static int WARMUP = 200;
+
+	private final static int RUNS = 500;
+
+	private static String address(int i) {
+		return "http://10.0." + (i / 250) + '.' + (i % 250) + ":9091";
+	}
+
+	/**
+	 * The node map, as returned by /cluster/nodes
+	 */
+	private static Map<String, Set<String>> buildNodes() {
+		Map<String, Set<String>> nodes = new LinkedHashMap<String, Set<String>>();
+		for (int i = 0; i < NODES; i++) {
+			Set<String> services = new HashSet<String>();
+			for (int j = 0; j < SERVICES_PER_NODE; j++)
+				services.add("service" + ((i + j * 7) % SERVICES));
+			nodes.put(address(i), services);
+		}
+		return nodes;
+	}
+
+	/**
+	 * The status of every service, as returned by /cluster/services. One
+	 * node out of ten is inactive.
+	 */
+	private static Map<String, ClusterServiceStatusJson> buildServicesStatus() {
+		Date date = new Date();
+		Map<String, ClusterServiceStatusJson> status = new TreeMap<String, ClusterServiceStatusJson>();
+		for (int s = 0; s < SERVICES; s++) {
+			List<String> active = new ArrayList<String>();
+			Map<String, ClusterNodeStatusJson> inactive = new LinkedHashMap<String, ClusterNodeStatusJson>();
+			for (int i = s; i < NODES; i += SERVICES / SERVICES_PER_NODE) {
+				String address = address(i);
+				if (i % 10 == 0)
+					inactive.put(address, new ClusterNodeStatusJson(date,
+							State.unreachable, 10000L,
+							"Cluster node failure  - " + address, date, 9.5));
+				else
+					active.add(address);
+			}
+			status.put("service" + s, new ClusterServiceStatusJson(active,
+					inactive));
+		}
+		return status;
+	}
+
+	private static <T> T compare(String name, T document,
+			TypeReference<T> typeRef) throws IOException {
+		T decoded = null;
+		for (ClusterWireFormat format : ClusterWireFormat.values()) {
+			ObjectMapper mapper = format.mapper;
+			byte[] bytes = mapper.writeValueAsBytes(document);
+			for (int i = 0; i < WARMUP; i++)
+				mapper.readValue(mapper.writeValueAsBytes(document), typeRef);
+			long start = System.nanoTime();
+			for (int i = 0; i < RUNS; i++)
+				mapper.writeValueAsBytes(document);
+			double encodeMs = (System.nanoTime() - start) / 1e6 / RUNS;
+			start = System.nanoTime();
+			for (int i = 0; i < RUNS; i++)
+				decoded = mapper.readValue(bytes, typeRef);
+			double decodeMs = (System.nanoTime() - start) / 1e6 / RUNS;
+			logger.info(String.format(
+					"%s - %s: %d bytes - encode %.3f ms - decode %.3f ms",
+					name, format, bytes.length, encodeMs, decodeMs));
+		}
+		return decoded;
+	}
+
+	@Test
+	public void test10_nodes() throws IOException {
+		Map<String, Set<String>> nodes = buildNodes();
+		Assert.assertEquals(nodes, compare("nodes", nodes,
+				ClusterSingleClient.MapStringSetStringTypeRef));
+	}
+
+	@Test
+	public void test20_services_status() throws IOException {
+		Map<String, ClusterServiceStatusJson> status = buildServicesStatus();
+		Map<String, ClusterServiceStatusJson> decoded = compare(
+				"services status", status,
+				ClusterSingleClient.MapStringServiceStatusTypeRef);
+		Assert.assertEquals(status.keySet(), decoded.keySet());
+		for (Map.Entry<String, ClusterServiceStatusJson> entry : status
+				.entrySet())
+			Assert.assertEquals(entry.getValue().active,
+					decoded.get(entry.getKey()).active);
+	}
+}
@@ -17,18 +17,35 @@ package com.qwazr.cluster.test;
 
 import java.io.File;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.runner.Description;
 import org.junit.runner.notification.RunListener;
 
 import com.qwazr.cluster.ClusterServer;
+import com.qwazr.cluster.manager.ClusterManager;
 
 public class ExecutionListener extends RunListener {
 
 	private final String DATADIR_PATH = "src/test/resources/com/opensearchserver/cluster/test/datadir";
 
+	/**
+	 * The server writes in a copy of the data directory, the source tree stays
+	 * clean
+	 */
+	private final String TEST_DATADIR_PATH = "target/test-datadir";
+
 	@Override
 	public void testRunStarted(Description description) throws Exception {
-		final File dataDir = new File(DATADIR_PATH);
+		final File sourceDir = new File(DATADIR_PATH);
+		final File dataDir = new File(TEST_DATADIR_PATH);
+		FileUtils.deleteDirectory(dataDir);
+		if (sourceDir.exists())
+			FileUtils.copyDirectory(sourceDir, dataDir);
+		else
+			dataDir.mkdirs();
+		// The tests expect an empty registry
+		FileUtils.deleteDirectory(new File(dataDir,
+				ClusterManager.CLUSTER_REGISTRY_DIRECTORY));
 		final String parameter = "-d" + dataDir.getAbsolutePath();
 		final String[] parameters = { parameter };
 		ClusterServer.main(parameters);